@@ -0,0 +1,47 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: ./bench.sh flightDB 5432 user --load
+#          ./bench.sh flightDB 5432 user -t 8 'bookFlight|seatsAvailable'
+# --load reloads data/*.csv first; everything else is passed to JMH.
+# Results are kept as JSON in bench/results, one file per run.
+# Needs a running server with the schema, e.g. from postgresql/startPostgreSQL.sh
+# and postgresql/createPostgreDB.sh (which create the database on port 9999).
+JMH_VERSION=1.37
+REPO=https://repo1.maven.org/maven2
+LIB=bench/lib
+
+# fail before the minutes of JMH forks rather than in every one of them
+if command -v pg_isready > /dev/null && ! pg_isready -q -h localhost -p $PORT -d $DBNAME; then
+	echo "No PostgreSQL server accepting connections on localhost:$PORT, start one with ../postgresql/startPostgreSQL.sh" >&2
+	exit 1
+fi
+
+mkdir -p $LIB
+for JAR in org/openjdk/jmh/jmh-core/$JMH_VERSION/jmh-core-$JMH_VERSION.jar \
+           org/openjdk/jmh/jmh-generator-annprocess/$JMH_VERSION/jmh-generator-annprocess-$JMH_VERSION.jar \
+           net/sf/jopt-simple/jopt-simple/5.0.4/jopt-simple-5.0.4.jar \
+           org/apache/commons/commons-math3/3.6.1/commons-math3-3.6.1.jar; do
+	if [ ! -f $LIB/$(basename $JAR) ]; then
+		curl -sSfL -o $LIB/$(basename $JAR) $REPO/$JAR || exit 1
+	fi
+done
+CP=$(ls $LIB/*.jar | tr '\n' ':')lib/postgresql-42.1.4.jar
+
+# the JMH annotation processor generates the benchmark harness
+rm -rf bench/bin
+mkdir -p bench/bin
+javac -cp "$CP" -processorpath "$CP" -d bench/bin src/*.java $(find bench/src -name '*.java') || exit 1
+
+if [ "$1" == "--load" ]; then
+	shift
+	java -cp "bench/bin:$CP" CsvLoader $DBNAME $PORT $USER --data ../data --truncate || exit 1
+fi
+
+mkdir -p bench/results
+java -cp "bench/bin:$CP" org.openjdk.jmh.Main \
+	-jvmArgsAppend "-Dbench.db=$DBNAME -Dbench.port=$PORT -Dbench.user=$USER -Ddbproject.pool.maxSize=64" \
+	-rf json -rff bench/results/$(date +%Y%m%d-%H%M%S).json "$@"
@@ -0,0 +1,122 @@
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * This class implements the benchmarked operations on a DBproject.  The
+ * database is named by the system properties bench.db, bench.port and
+ * bench.user (see bench.sh).
+ *
+ */
+public class BenchOperations implements bench.Operations{
+	static final String SQL_FLIGHTS_WITH_PLANE = "SELECT DISTINCT flight_id FROM FlightInfo ORDER BY flight_id";
+	static final String SQL_CUSTOMERS = "SELECT id FROM Customer ORDER BY id";
+	static final String SQL_NEXT_RNUM = "SELECT COALESCE(MAX(rnum), -1) + 1 FROM Reservation";
+	static final String SQL_UNSELL =
+		"UPDATE Flight f SET num_sold = f.num_sold - n.cnt " +
+		"FROM (SELECT fid, COUNT(*) AS cnt FROM Reservation WHERE rnum >= ? AND status = 'R' GROUP BY fid) n WHERE f.fnum = n.fid";
+	static final String SQL_UNBOOK = "DELETE FROM Reservation WHERE rnum >= ?";
+	//the seats the seat map gave the benchmark's reservations
+	static final String SQL_UNSEAT = "UPDATE Seat SET rnum = NULL WHERE rnum >= ?";
+
+	private final DBproject _esql;
+	//reservations from this number on were made by the benchmark
+	private final int _firstRnum;
+
+	public BenchOperations() throws SQLException {
+		this._esql = new DBproject(System.getProperty("bench.db"), System.getProperty("bench.port", "5432"),
+			System.getProperty("bench.user", System.getProperty("user.name")), "");
+		this._firstRnum = this._esql.queryForInt(SQL_NEXT_RNUM, 0);
+	}
+
+	public int[] flightNumbers() throws SQLException {
+		return toArray(this._esql.queryForList(SQL_FLIGHTS_WITH_PLANE, rs -> rs.getInt(1)));
+	}
+
+	public int[] customerIds() throws SQLException {
+		return toArray(this._esql.queryForList(SQL_CUSTOMERS, rs -> rs.getInt(1)));
+	}
+
+	public int flightCost(int flightNum) throws SQLException {
+		return this._esql.queryForInt(DBproject.SQL_FLIGHT_COST, 0, flightNum);
+	}
+
+	public String customerGender(int customerId) throws SQLException {
+		return this._esql.queryForString(DBproject.SQL_CUSTOMER_GENDER, customerId);
+	}
+
+	public char book(int customerId, int flightNum) throws SQLException {
+		return this._esql.bookFlight(customerId, flightNum).getStatus();
+	}
+
+	public Integer seatsAvailable(int flightNum) throws SQLException {
+		return this._esql.getSeatsAvailable(flightNum);
+	}
+
+	public Integer seatsAvailableUncached(int flightNum) throws SQLException {
+		return this._esql.queryForInteger(DBproject.SQL_SEATS_AVAILABLE, flightNum);
+	}
+
+	public long repairsPerPlane() throws SQLException {
+		return this._esql.getRepairStats().printPerPlane(discard());
+	}
+
+	public long repairsPerYear() throws SQLException {
+		return this._esql.getRepairStats().printPerYear(discard());
+	}
+
+	public long repairsPerPlaneQuery() throws SQLException {
+		return this._esql.streamQuery(DBproject.SQL_REPAIRS_PER_PLANE, rs -> rs.getInt(2));
+	}
+
+	public long repairsPerYearQuery() throws SQLException {
+		return this._esql.streamQuery(DBproject.SQL_REPAIRS_PER_YEAR, rs -> rs.getInt(2));
+	}
+
+	public int passengers(int flightNum, char status) throws SQLException {
+		return this._esql.countPassengers(flightNum, status);
+	}
+
+	public void resetBookings() throws SQLException {
+		Connection conn = this._esql.pinConnection();
+		try{
+			conn.setAutoCommit(false);
+			try{
+				this._esql.executeUpdate(SQL_UNSELL, this._firstRnum);
+				if (SeatMap.ENABLED){
+					this._esql.executeUpdate(SQL_UNSEAT, this._firstRnum);
+				}
+				this._esql.executeUpdate(SQL_UNBOOK, this._firstRnum);
+				conn.commit();
+			}catch (SQLException e){
+				conn.rollback();
+				throw e;
+			}finally{
+				conn.setAutoCommit(true);
+			}
+		}finally{
+			this._esql.unpinConnection();
+		}
+		// every copy of the deleted bookings, so the next iteration starts from the same state
+		this._esql.getSeatCache().clear();
+		this._esql.getReservationSnapshot().invalidate();
+		this._esql.getSeatMap().invalidateAll();
+	}
+
+	public void close(){
+		this._esql.cleanup();
+	}
+
+	private static ResultPrinter discard(){
+		return new ResultPrinter(Writer.nullWriter(), ResultPrinter.Format.TSV, false);
+	}
+
+	private static int[] toArray(List<Integer> values){
+		int[] array = new int[values.size()];
+		for (int i = 0; i < array.length; ++i){
+			array[i] = values.get(i);
+		}
+		return array;
+	}
+}
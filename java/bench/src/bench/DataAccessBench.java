@@ -0,0 +1,117 @@
+package bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the DBproject data access paths against a running
+ * database loaded from data/*.csv.  Every operation is measured for
+ * throughput and, in sample time mode, for latency percentiles.  Flights
+ * and customers are picked uniformly at random per call; bookings are
+ * undone after every iteration so each iteration sees the same data.
+ *
+ * Run through bench.sh; add JMH options after the database arguments,
+ * e.g. -t 8 for eight threads or a regular expression to pick benchmarks.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class DataAccessBench{
+	private Operations _ops;
+	private int[] _flights;
+	private int[] _customers;
+
+	@Setup(Level.Trial)
+	public void open() throws Exception {
+		this._ops = (Operations) Class.forName("BenchOperations").getDeclaredConstructor().newInstance();
+		this._flights = this._ops.flightNumbers();
+		this._customers = this._ops.customerIds();
+		if (this._flights.length == 0 || this._customers.length == 0){
+			throw new IllegalStateException("No flights or customers; load data/*.csv first (bench.sh --load)");
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void undoBookings() throws Exception {
+		this._ops.resetBookings();
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws Exception {
+		this._ops.close();
+	}
+
+	@Benchmark
+	public int flightById() throws Exception {
+		return this._ops.flightCost(flight());
+	}
+
+	@Benchmark
+	public String customerById() throws Exception {
+		return this._ops.customerGender(customer());
+	}
+
+	@Benchmark
+	public char bookFlight() throws Exception {
+		return this._ops.book(customer(), flight());
+	}
+
+	@Benchmark
+	public Integer seatsAvailable() throws Exception {
+		return this._ops.seatsAvailable(flight());
+	}
+
+	@Benchmark
+	public Integer seatsAvailableUncached() throws Exception {
+		return this._ops.seatsAvailableUncached(flight());
+	}
+
+	@Benchmark
+	public long repairsPerPlane() throws Exception {
+		return this._ops.repairsPerPlane();
+	}
+
+	@Benchmark
+	public long repairsPerYear() throws Exception {
+		return this._ops.repairsPerYear();
+	}
+
+	@Benchmark
+	public long repairsPerPlaneQuery() throws Exception {
+		return this._ops.repairsPerPlaneQuery();
+	}
+
+	@Benchmark
+	public long repairsPerYearQuery() throws Exception {
+		return this._ops.repairsPerYearQuery();
+	}
+
+	@Benchmark
+	public int passengersWithStatus() throws Exception {
+		return this._ops.passengers(flight(), "WCR".charAt(ThreadLocalRandom.current().nextInt(3)));
+	}
+
+	private int flight(){
+		return this._flights[ThreadLocalRandom.current().nextInt(this._flights.length)];
+	}
+
+	private int customer(){
+		return this._customers[ThreadLocalRandom.current().nextInt(this._customers.length)];
+	}
+}
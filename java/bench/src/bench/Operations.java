@@ -0,0 +1,55 @@
+package bench;
+
+/**
+ * The DBproject operations the benchmarks measure.  JMH does not accept
+ * benchmarks in the default package and a named package cannot see
+ * DBproject, so the operations are reached through this interface; the
+ * implementation (BenchOperations) lives next to DBproject.
+ *
+ */
+public interface Operations{
+
+	/**
+	 * @return the numbers of the flights that have a plane assigned
+	 */
+	int[] flightNumbers() throws Exception;
+
+	/**
+	 * @return the ids of all customers
+	 */
+	int[] customerIds() throws Exception;
+
+	int flightCost(int flightNum) throws Exception;
+
+	String customerGender(int customerId) throws Exception;
+
+	/**
+	 * @return the status of the reservation made, R or W
+	 */
+	char book(int customerId, int flightNum) throws Exception;
+
+	Integer seatsAvailable(int flightNum) throws Exception;
+
+	Integer seatsAvailableUncached(int flightNum) throws Exception;
+
+	/**
+	 * @return the number of report rows
+	 */
+	long repairsPerPlane() throws Exception;
+
+	long repairsPerYear() throws Exception;
+
+	long repairsPerPlaneQuery() throws Exception;
+
+	long repairsPerYearQuery() throws Exception;
+
+	int passengers(int flightNum, char status) throws Exception;
+
+	/**
+	 * Method to undo the bookings made since the operations were opened, so
+	 * every iteration starts from the loaded data.
+	 */
+	void resetBookings() throws Exception;
+
+	void close() throws Exception;
+}
@@ -0,0 +1,5 @@
+#! /bin/bash
+
+# Example: ./check.sh
+#          ./check.sh 42    (repeats a failed run with the seed it printed)
+java -cp bin/ StructureCheck "$@"
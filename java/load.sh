@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: source ./load.sh flightDB 5432 user --truncate --defer-constraints --threads 4
+java -cp lib/*:bin/ CsvLoader $DBNAME $PORT $USER --data ../data "$@"
@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: ./loadgen.sh flightDB 5432 user --threads 32 --duration 60 --mix book=50,seats=50 --skew 1.2
+java -cp lib/*:bin/ LoadGenerator $DBNAME $PORT $USER --data ../data "$@"
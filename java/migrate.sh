@@ -0,0 +1,8 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: source ./migrate.sh flightDB 5432 user --explain explain-report.txt
+java -cp lib/*:bin/ MigrationRunner $DBNAME $PORT $USER --dir ../sql/migrations "$@"
@@ -2,6 +2,9 @@
 DBNAME=$1
 PORT=$2
 USER=$3
+shift 3
 
 # Example: source ./run.sh flightDB 5432 user
-java -cp lib/*:bin/ DBproject $DBNAME $PORT $USER
+#          ./run.sh flightDB 5432 user book customer=12 flight=7
+#          ./run.sh flightDB 5432 user --script ops.txt > results.jsonl
+java -cp lib/*:bin/ DBproject $DBNAME $PORT $USER "$@"
@@ -0,0 +1,9 @@
+#! /bin/bash
+DBNAME=$1
+PORT=$2
+USER=$3
+shift 3
+
+# Example: ./serve.sh flightDB 5432 user --listen 8080
+#          curl -X POST 'http://127.0.0.1:8080/op/book?customer=12&flight=7'
+java -Ddbproject.pool.maxSize=32 -cp lib/*:bin/ BookingService $DBNAME $PORT $USER "$@"
@@ -0,0 +1,57 @@
+/**
+ * This class holds one reservation as returned by a booking: its number,
+ * the customer and flight, the status the database assigned
+ * ('R' reserved, 'W' waitlisted, 'C' cancelled), and the seat when it was
+ * booked through the seat map.
+ *
+ */
+public class Booking{
+	private final int _rnum;
+	private final int _customerId;
+	private final int _flightNum;
+	private final char _status;
+	//seat number, 0 when no seat was assigned
+	private final int _seat;
+
+	public Booking(int rnum, int customerId, int flightNum, char status){
+		this(rnum, customerId, flightNum, status, 0);
+	}
+
+	public Booking(int rnum, int customerId, int flightNum, char status, int seat){
+		this._rnum = rnum;
+		this._customerId = customerId;
+		this._flightNum = flightNum;
+		this._status = status;
+		this._seat = seat;
+	}
+
+	public int getRnum(){
+		return this._rnum;
+	}
+
+	public int getCustomerId(){
+		return this._customerId;
+	}
+
+	public int getFlightNum(){
+		return this._flightNum;
+	}
+
+	public char getStatus(){
+		return this._status;
+	}
+
+	public int getSeat(){
+		return this._seat;
+	}
+
+	public boolean isReserved(){
+		return this._status == 'R';
+	}
+
+	@Override
+	public String toString(){
+		return "Reservation " + this._rnum + " (customer " + this._customerId + ", flight " + this._flightNum + ", status " + this._status
+			+ (this._seat > 0 ? ", seat " + this._seat : "") + ")";
+	}
+}
@@ -0,0 +1,265 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class serves the menu operations over HTTP, so many booking clients
+ * can share one process and its connection pool:
+ *
+ *   POST /op/book?customer=12&amp;flight=7
+ *   POST /op/add-plane   with a form or JSON body: {"make": "Boeing", ...}
+ *   GET  /op/seats?flight=7
+ *   GET  /health, GET /stats
+ *   GET  /metrics        query statistics in the Prometheus text format
+ *
+ * Operations and their arguments are those of CommandRunner (except
+ * bulk-book, which would read files on the server, and archive, which
+ * writes them), and the response body
+ * is its JSON result line.  Operations that change data must be POSTed.
+ * The status is 200 on success, 400 for bad arguments, 404 for unknown
+ * operations, 405 for a GET of a change, 409 when the database refused the
+ * change (integrity violation), 503 when no connection became available
+ * and 500 for other errors.
+ *
+ * Every request runs on its own virtual thread on Java 21 and later, and
+ * borrows a pooled connection only while it talks to the database.  On
+ * older Java a fixed pool of platform threads (--threads) serves requests.
+ *
+ */
+public class BookingService{
+	static final int MAX_BODY_BYTES = 64 * 1024;
+	static final String JSON = "application/json; charset=utf-8";
+
+	private final DBproject _esql;
+	private final HttpServer _server;
+	private final ExecutorService _executor;
+
+	public BookingService(DBproject esql, InetSocketAddress address, ExecutorService executor) throws IOException {
+		this._esql = esql;
+		this._executor = executor;
+		this._server = HttpServer.create(address, 1024);
+		this._server.setExecutor(executor);
+		this._server.createContext("/op/", this::handleOperation);
+		this._server.createContext("/health", exchange -> respond(exchange, 200, "{\"ok\":true}\n"));
+		this._server.createContext("/stats", this::handleStats);
+		this._server.createContext("/metrics", this::handleMetrics);
+	}
+
+	public void start(){
+		this._server.start();
+	}
+
+	/**
+	 * Method to stop accepting requests, give the ones in flight a moment
+	 * to finish, and stop the workers.
+	 */
+	public void stop(int graceSeconds){
+		this._server.stop(graceSeconds);
+		this._executor.shutdown();
+	}
+
+	public InetSocketAddress getAddress(){
+		return this._server.getAddress();
+	}
+
+	private void handleOperation(HttpExchange exchange) throws IOException {
+		try{
+			String method = exchange.getRequestMethod();
+			if (!method.equals("GET") && !method.equals("POST")){
+				respond(exchange, 405, "{\"ok\":false,\"error\":\"use GET or POST\"}\n");
+				return;
+			}
+			String op = exchange.getRequestURI().getPath().substring("/op/".length());
+			if (!CommandRunner.OPERATIONS.contains(op) || op.equals("bulk-book") || op.equals("archive")){
+				StringBuilder body = new StringBuilder("{\"ok\":false,\"error\":");
+				ResultPrinter.appendJsonString(body, "unknown operation " + op);
+				respond(exchange, 404, body.append("}\n").toString());
+				return;
+			}
+			if (method.equals("GET") && !CommandRunner.READS.contains(op)){
+				exchange.getResponseHeaders().set("Allow", "POST");
+				respond(exchange, 405, "{\"ok\":false,\"error\":\"use POST for operations that change data\"}\n");
+				return;
+			}
+			Map<String, String> args;
+			try{
+				args = parseQuery(exchange.getRequestURI().getRawQuery());
+				String body = readBody(exchange.getRequestBody()).trim();
+				if (body.startsWith("{")){
+					args.putAll(CommandRunner.parseJson(body));
+				}else if (!body.isEmpty()){
+					args.putAll(parseQuery(body));
+				}
+			}catch (IllegalArgumentException e){
+				StringBuilder body = new StringBuilder("{\"ok\":false,\"error\":");
+				ResultPrinter.appendJsonString(body, "bad request: " + e.getMessage());
+				respond(exchange, 400, body.append("}\n").toString());
+				return;
+			}
+
+			StringWriter result = new StringWriter(128);
+			CommandRunner runner = new CommandRunner(this._esql, result);
+			int status = runner.run(op, args) ? 200 : statusOf(runner.getLastSqlState(), runner.isLastBadArguments());
+			respond(exchange, status, result.toString());
+		}finally{
+			exchange.close();
+		}
+	}
+
+	private void handleStats(HttpExchange exchange) throws IOException {
+		try{
+			ConnectionPool pool = this._esql.getPool();
+			SeatCache seats = this._esql.getSeatCache();
+			respond(exchange, 200, String.format("{\"pool\":{\"active\":%d,\"idle\":%d,\"max\":%d,\"borrows\":%d,\"timeouts\":%d,\"wait_ms_max\":%.3f}," +
+				"\"seat_cache\":{\"hits\":%d,\"misses\":%d}}\n", pool.getActiveCount(), pool.getIdleCount(), pool.getMaxSize(),
+				pool.getBorrowCount(), pool.getTimeouts(), pool.getWaitNanosMax() / 1e6, seats.getHits(), seats.getMisses()));
+		}finally{
+			exchange.close();
+		}
+	}
+
+	private void handleMetrics(HttpExchange exchange) throws IOException {
+		try{
+			StringWriter text = new StringWriter(8192);
+			this._esql.getMetrics().writePrometheus(text, this._esql.getPool());
+			byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, bytes.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(bytes);
+			out.close();
+		}finally{
+			exchange.close();
+		}
+	}
+
+	static int statusOf(String sqlState, boolean badArguments){
+		if (badArguments){
+			return 400;
+		}
+		if (sqlState == null){
+			// failed in this process, e.g. a seat map batch or an archive file that could not be written
+			return 500;
+		}
+		if (sqlState.startsWith("23")){
+			return 409;
+		}
+		if (sqlState.startsWith("08")){
+			return 503;
+		}
+		return 500;
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", JSON);
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	static Map<String, String> parseQuery(String query){
+		Map<String, String> args = new LinkedHashMap<String, String>();
+		if (query == null || query.isEmpty()){
+			return args;
+		}
+		for (String pair : query.split("&")){
+			if (pair.isEmpty()){
+				continue;
+			}
+			int eq = pair.indexOf('=');
+			String key = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? "" : pair.substring(eq + 1);
+			args.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+		}
+		return args;
+	}
+
+	private static String readBody(InputStream in) throws IOException {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) > 0){
+			body.write(buffer, 0, n);
+			if (body.size() > MAX_BODY_BYTES){
+				throw new IllegalArgumentException("body larger than " + MAX_BODY_BYTES + " bytes");
+			}
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The main execution method
+	 *
+	 * @param args <dbname> <port> <user> [--listen [host:]port] [--threads n]
+	 */
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + BookingService.class.getName() +
+				" <dbname> <port> <user> [--listen [<host>:]<port>] [--threads <n>]");
+			System.exit(2);
+		}
+		String host = "127.0.0.1";
+		int listenPort = 8080;
+		int threads = 64;
+		try{
+			for (int i = 3; i < args.length; ++i){
+				if (args[i].equals("--listen") && i + 1 < args.length){
+					String listen = args[++i];
+					int colon = listen.lastIndexOf(':');
+					if (colon >= 0){
+						host = listen.substring(0, colon);
+					}
+					listenPort = Integer.parseInt(listen.substring(colon + 1));
+				}else if (args[i].equals("--threads") && i + 1 < args.length){
+					threads = Integer.parseInt(args[++i]);
+				}else{
+					throw new IllegalArgumentException("Unknown option: " + args[i]);
+				}
+			}
+		}catch (IllegalArgumentException e){
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+
+		ExecutorService executor;
+		String workers;
+		try{
+			executor = LoadGenerator.newVirtualThreadExecutor();
+			workers = "virtual threads";
+		}catch (UnsupportedOperationException e){
+			executor = Executors.newFixedThreadPool(threads);
+			workers = threads + " platform threads";
+		}
+
+		try{
+			Class.forName("org.postgresql.Driver");
+			final DBproject esql = DBproject.connect(args[0], args[1], args[2], "");
+			final BookingService service = new BookingService(esql, new InetSocketAddress(host, listenPort), executor);
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				service.stop(2);
+				System.out.println(esql.getPool().getStats());
+				esql.cleanup();
+			}));
+			service.start();
+			System.out.println("Serving on http://" + host + ":" + service.getAddress().getPort() + "/ with " + workers
+				+ ", up to " + esql.getPool().getMaxSize() + " database connections");
+		}catch (Exception e){
+			System.err.println("Could not start the service: " + e.getMessage());
+			executor.shutdownNow();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,211 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+/**
+ * This class books reservations in bulk from a file of customer/flight
+ * pairs.  The file is read in chunks; every chunk is streamed into a
+ * temporary staging table with COPY and booked with a few set based
+ * statements inside one transaction, so a chunk of thousands of bookings
+ * costs a handful of round trips instead of several per booking.
+ *
+ * File format: one "customer_id,flight_num" pair per line.  Blank lines and
+ * lines starting with '#' are skipped.
+ *
+ */
+public class BulkBooking{
+	public static final int DEFAULT_CHUNK_SIZE = Integer.getInteger("dbproject.bulk.chunkSize", 5000);
+
+	static final String SQL_CREATE_STAGING =
+		"CREATE TEMPORARY TABLE IF NOT EXISTS bulk_booking (line INTEGER NOT NULL, cid INTEGER NOT NULL, fid INTEGER NOT NULL) ON COMMIT DELETE ROWS";
+	static final String SQL_COPY_STAGING = "COPY bulk_booking (line, cid, fid) FROM STDIN";
+	// flights are locked in fnum order so concurrent bulk loads cannot deadlock
+	static final String SQL_LOCK_FLIGHTS =
+		"SELECT fnum FROM Flight WHERE fnum IN (SELECT fid FROM bulk_booking) ORDER BY fnum FOR UPDATE";
+	static final String SQL_REJECTED =
+		"SELECT b.line, b.cid, b.fid, CASE WHEN c.id IS NULL THEN 'customer' ELSE 'flight' END AS missing FROM bulk_booking b " +
+		"LEFT JOIN Customer c ON c.id = b.cid LEFT JOIN Flight f ON f.fnum = b.fid " +
+		"WHERE c.id IS NULL OR f.fnum IS NULL ORDER BY b.line";
+	/*
+	 * Numbers the valid requests, ranks them per flight in file order and
+	 * reserves as many as the flight has free seats; the rest are waitlisted.
+	 * rnum i of the chunk is taken from the reserved id blocks passed in as
+	 * an array.  num_sold is raised by the number of 'R' rows per flight.
+	 */
+	static final String SQL_BOOK_STAGED =
+		"WITH valid AS (" +
+		"SELECT b.line, b.cid, b.fid, CAST(row_number() OVER (ORDER BY b.line) - 1 AS INTEGER) AS idx " +
+		"FROM bulk_booking b JOIN Customer c ON c.id = b.cid JOIN Flight f ON f.fnum = b.fid), " +
+		"capacity AS (" +
+		"SELECT fi.flight_id AS fid, SUM(pl.seats) AS seats FROM FlightInfo fi JOIN Plane pl ON pl.id = fi.plane_id " +
+		"WHERE fi.flight_id IN (SELECT fid FROM valid) GROUP BY fi.flight_id), " +
+		"ranked AS (" +
+		"SELECT v.cid, v.fid, v.idx, row_number() OVER (PARTITION BY v.fid ORDER BY v.line) AS pos, " +
+		"COALESCE(cap.seats, 0) - f.num_sold AS free " +
+		"FROM valid v JOIN Flight f ON f.fnum = v.fid LEFT JOIN capacity cap ON cap.fid = v.fid), " +
+		"booked AS (" +
+		"INSERT INTO Reservation (rnum, cid, fid, status) " +
+		"SELECT (CAST(? AS INTEGER[]))[r.idx / ? + 1] + r.idx % ?, r.cid, r.fid, CASE WHEN r.pos <= r.free THEN 'R' ELSE 'W' END " +
+		"FROM ranked r RETURNING fid, status), " +
+		"sold AS (" +
+		"UPDATE Flight f SET num_sold = f.num_sold + n.cnt " +
+		"FROM (SELECT fid, COUNT(*) AS cnt FROM booked WHERE status = 'R' GROUP BY fid) n WHERE f.fnum = n.fid RETURNING f.fnum) " +
+		"SELECT status, COUNT(*) FROM booked GROUP BY status";
+
+	/**
+	 * Totals of one bulk run.
+	 */
+	public static class Result{
+		public long reserved = 0;
+		public long waitlisted = 0;
+		public long rejected = 0;
+		public long chunks = 0;
+		public long millis = 0;
+
+		@Override
+		public String toString(){
+			long total = this.reserved + this.waitlisted;
+			double rate = this.millis == 0 ? total : total * 1000.0 / this.millis;
+			return String.format("%d reserved, %d waitlisted, %d rejected in %d chunks, %d ms (%.0f bookings/s)",
+				this.reserved, this.waitlisted, this.rejected, this.chunks, this.millis, rate);
+		}
+	}
+
+	private final DBproject _esql;
+	private final int _chunkSize;
+	private final PrintStream _log;
+
+	public BulkBooking(DBproject esql, int chunkSize, PrintStream log){
+		if (chunkSize <= 0){
+			throw new IllegalArgumentException("chunk size must be positive: " + chunkSize);
+		}
+		this._esql = esql;
+		this._chunkSize = chunkSize;
+		this._log = log;
+	}
+
+	/**
+	 * Method to book every pair in the file.  Each chunk commits on its
+	 * own, so a failure only loses the chunk it happened in.
+	 *
+	 * @param path the file of customer/flight pairs
+	 * @return the totals of the run
+	 * @throws java.io.IOException when the file cannot be read
+	 * @throws java.sql.SQLException when a chunk fails to book
+	 */
+	public Result run(String path) throws IOException, SQLException {
+		Result result = new Result();
+		long start = System.currentTimeMillis();
+		BufferedReader reader = new BufferedReader(new FileReader(path), 1 << 16);
+		long started = this._esql.getMetrics().beginOperation();
+		boolean failed = true;
+		try{
+			StringBuilder chunk = new StringBuilder(this._chunkSize * 24);
+			int rows = 0;
+			int lineNo = 0;
+			String line;
+			while ((line = reader.readLine()) != null){
+				++lineNo;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")){
+					continue;
+				}
+				String[] fields = line.split("[,\\s]+");
+				int cid;
+				int fid;
+				try{
+					if (fields.length != 2){
+						throw new NumberFormatException();
+					}
+					cid = Integer.parseInt(fields[0]);
+					fid = Integer.parseInt(fields[1]);
+				}catch (NumberFormatException e){
+					// a header line is expected, anything else is reported
+					if (lineNo > 1){
+						this._log.println("line " + lineNo + ": not a customer_id,flight_num pair, skipped: " + line);
+						++result.rejected;
+					}
+					continue;
+				}
+				chunk.append(lineNo).append('\t').append(cid).append('\t').append(fid).append('\n');
+				if (++rows == this._chunkSize){
+					bookChunk(chunk, rows, result);
+					chunk.setLength(0);
+					rows = 0;
+				}
+			}
+			if (rows > 0){
+				bookChunk(chunk, rows, result);
+			}
+			failed = false;
+		}finally{
+			reader.close();
+			this._esql.getMetrics().endOperation("bulk-book", started, failed ? -1 : result.reserved + result.waitlisted);
+		}
+		result.millis = System.currentTimeMillis() - start;
+		return result;
+	}
+
+	private void bookChunk(CharSequence rows, int count, Result result) throws SQLException {
+		Connection conn = this._esql.pinConnection();
+		try{
+			conn.setAutoCommit(false);
+			try{
+				Statement stmt = conn.createStatement();
+				stmt.execute(SQL_CREATE_STAGING);
+				stmt.close();
+				try{
+					new CopyManager(conn.unwrap(BaseConnection.class)).copyIn(SQL_COPY_STAGING, new StringReader(rows.toString()));
+				}catch (IOException e){
+					throw new SQLException("Could not stream the chunk to the server", e);
+				}
+
+				this._esql.executeQueryAndReturnResult(SQL_LOCK_FLIGHTS, new Object[0]);
+				long rejected = this._esql.streamQuery(SQL_REJECTED, rs -> this._log.println("line " + rs.getInt(1) + ": "
+					+ ("customer".equals(rs.getString(4)) ? "no customer " + rs.getInt(2) : "no flight " + rs.getInt(3)) + ", skipped"));
+				result.rejected += rejected;
+
+				int valid = count - (int) rejected;
+				if (valid > 0){
+					IdAllocator ids = this._esql.getReservationNums();
+					int blockSize = ids.getBlockSize();
+					int[] starts = ids.nextBlocks((valid + blockSize - 1) / blockSize);
+					Integer[] boxed = new Integer[starts.length];
+					for (int i = 0; i < starts.length; ++i){
+						boxed[i] = starts[i];
+					}
+					Array blocks = conn.createArrayOf("int4", boxed);
+					this._esql.streamQuery(SQL_BOOK_STAGED, rs -> {
+						if ("R".equals(rs.getString(1))){
+							result.reserved += rs.getLong(2);
+						}else{
+							result.waitlisted += rs.getLong(2);
+						}
+					}, blocks, blockSize, blockSize);
+				}
+				conn.commit();
+				++result.chunks;
+				// num_sold changed on many flights at once; let the seat cache reload them
+				this._esql.getSeatCache().clear();
+				this._esql.getReservationSnapshot().invalidate();
+				// the reserved ones have no seat yet; reloaded seat maps seat them
+				this._esql.getSeatMap().invalidateAll();
+			}catch (SQLException | RuntimeException e){
+				conn.rollback();
+				throw e;
+			}finally{
+				conn.setAutoCommit(true);
+			}
+		}finally{
+			this._esql.unpinConnection();
+		}
+	}
+}
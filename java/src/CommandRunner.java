@@ -0,0 +1,526 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class runs the menu operations without prompts, for automation.
+ * An operation is given as a name and key=value arguments, either on the
+ * command line or one per line of a script:
+ *
+ *   book customer=12 flight=7
+ *   add-plane make=Boeing model="747 400" age=3 seats=416
+ *   {"op": "seats", "flight": 7}
+ *
+ * Script lines are plain (values with spaces in double quotes) or JSON
+ * objects with an "op" member; blank lines and lines starting with '#'
+ * are skipped.  Every operation writes one JSON line with "ok" and its
+ * results, or "error" (and "sqlstate" for database errors), and the
+ * operations of one run share a single pinned connection.
+ *
+ * Operations:
+ *   add-plane make model age seats                 -> id
+ *   add-pilot name nationality                     -> id
+ *   add-flight cost sold stops departure arrival from to [pilot plane] -> fnum
+ *              (dates as yyyy-MM-dd HH:mm, from/to the 5 letter airports;
+ *              with pilot and plane, refused if either is flying then)
+ *   add-technician name                            -> id
+ *   book customer flight [seat]                    -> rnum, status, seat
+ *              (a seat or -Ddbproject.seatmap=true books through the seat map)
+ *   seats flight                                   -> seats_available
+ *   passengers flight status                       -> count
+ *   repairs-per-plane, repairs-per-year            -> rows
+ *   bulk-book file                                 -> reserved, waitlisted, rejected
+ *   cancel reservation                             -> fnum, status (before), promoted
+ *   promote [flight] [batch]                       -> promoted (every flight without flight)
+ *   status-histogram                               -> rows of fnum, waitlisted, cancelled, reserved
+ *   routes from to after before [connect] [legs]   -> rows of legs, flights, route, departure, arrival, cost
+ *              (first departure between after and before, connect in minutes, default 60)
+ *   archive [days] [batch]                         -> archived, flights, partitions created and dropped
+ *   archived reservation | flight status           -> the archived reservation, or the count
+ *   schedule-conflicts                             -> rows of assigned, id, flight, departure, arrival,
+ *              other_flight, other_departure, other_arrival
+ *
+ */
+public class CommandRunner{
+	static final DateTimeFormatter DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+	static final List<String> OPERATIONS = Arrays.asList("add-plane", "add-pilot", "add-flight", "add-technician",
+		"book", "seats", "passengers", "repairs-per-plane", "repairs-per-year", "bulk-book", "cancel", "promote", "status-histogram", "routes",
+		"archive", "archived", "schedule-conflicts");
+	//the operations that change nothing
+	static final List<String> READS = Arrays.asList("seats", "passengers", "repairs-per-plane", "repairs-per-year",
+		"status-histogram", "routes", "archived", "schedule-conflicts");
+
+	private final DBproject _esql;
+	private final Writer _out;
+	private long _count = 0;
+	private long _failures = 0;
+	//SQLSTATE of the last operation if it failed in the database
+	private String _lastSqlState = null;
+	//whether the last operation failed on its arguments
+	private boolean _lastBadArguments = false;
+
+	public CommandRunner(DBproject esql, Writer out){
+		this._esql = esql;
+		this._out = out;
+	}
+
+	/**
+	 * Method to run one operation and write its result line.
+	 *
+	 * @param op the operation name
+	 * @param args the arguments by name
+	 * @return true if the operation succeeded
+	 * @throws java.io.IOException when the result cannot be written
+	 */
+	public boolean run(String op, Map<String, String> args) throws IOException {
+		++this._count;
+		StringBuilder result = new StringBuilder(128);
+		result.append("{\"n\":").append(this._count).append(",\"op\":");
+		ResultPrinter.appendJsonString(result, op);
+		long start = System.nanoTime();
+		boolean ok;
+		this._lastSqlState = null;
+		this._lastBadArguments = false;
+		try{
+			StringBuilder fields = new StringBuilder(64);
+			execute(op, args, fields);
+			result.append(",\"ok\":true").append(fields);
+			ok = true;
+		}catch (SQLException e){
+			result.append(",\"ok\":false,\"error\":");
+			ResultPrinter.appendJsonString(result, String.valueOf(e.getMessage()).trim());
+			if (e.getSQLState() != null){
+				result.append(",\"sqlstate\":");
+				ResultPrinter.appendJsonString(result, e.getSQLState());
+				this._lastSqlState = e.getSQLState();
+			}
+			ok = false;
+		}catch (IllegalArgumentException e){
+			result.append(",\"ok\":false,\"error\":");
+			ResultPrinter.appendJsonString(result, String.valueOf(e.getMessage()));
+			this._lastBadArguments = true;
+			ok = false;
+		}catch (IOException e){
+			result.append(",\"ok\":false,\"error\":");
+			ResultPrinter.appendJsonString(result, String.valueOf(e.getMessage()));
+			ok = false;
+		}catch (RuntimeException e){
+			// a bug or a failure outside the database fails this operation, not the script
+			result.append(",\"ok\":false,\"error\":");
+			ResultPrinter.appendJsonString(result, e.toString());
+			ok = false;
+		}
+		result.append(String.format(",\"ms\":%.3f}\n", (System.nanoTime() - start) / 1e6));
+		this._out.append(result);
+		if (!ok){
+			++this._failures;
+		}
+		return ok;
+	}
+
+	/**
+	 * Method to run every operation of a script, in order.  A failed
+	 * operation is reported and the script goes on, unless stopOnError.
+	 *
+	 * @param script the script lines
+	 * @param stopOnError whether to stop at the first failed operation
+	 * @return the number of failed operations, or of unreadable lines
+	 * @throws java.io.IOException when the script cannot be read or results written
+	 */
+	public long runScript(BufferedReader script, boolean stopOnError) throws IOException {
+		String line;
+		while ((line = script.readLine()) != null){
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")){
+				continue;
+			}
+			boolean ok;
+			try{
+				Map<String, String> args;
+				if (line.startsWith("{")){
+					args = parseJson(line);
+				}else{
+					List<String> tokens = tokenize(line);
+					args = parseArgs(tokens.subList(1, tokens.size()));
+					args.put("op", tokens.get(0));
+				}
+				String op = args.remove("op");
+				if (op == null){
+					throw new IllegalArgumentException("missing \"op\"");
+				}
+				ok = run(op, args);
+			}catch (IllegalArgumentException e){
+				++this._count;
+				++this._failures;
+				StringBuilder result = new StringBuilder(128);
+				result.append("{\"n\":").append(this._count).append(",\"ok\":false,\"error\":");
+				ResultPrinter.appendJsonString(result, "unreadable line: " + e.getMessage());
+				this._out.append(result.append("}\n"));
+				ok = false;
+			}
+			// hand results over while waiting for more input, batch them otherwise
+			if (!script.ready()){
+				this._out.flush();
+			}
+			if (!ok && stopOnError){
+				break;
+			}
+		}
+		this._out.flush();
+		return this._failures;
+	}
+
+	public long getCount(){
+		return this._count;
+	}
+
+	public long getFailures(){
+		return this._failures;
+	}
+
+	/**
+	 * @return the SQLSTATE of the last operation run, or null if it did not fail in the database
+	 */
+	public String getLastSqlState(){
+		return this._lastSqlState;
+	}
+
+	/**
+	 * @return whether the last operation run was refused for its arguments
+	 */
+	public boolean isLastBadArguments(){
+		return this._lastBadArguments;
+	}
+
+	private void execute(String op, Map<String, String> args, StringBuilder fields) throws SQLException, IOException {
+		switch (op){
+			case "add-plane":
+				field(fields, "id", this._esql.addPlane(text(args, "make"), text(args, "model"), number(args, "age"), number(args, "seats")));
+				break;
+			case "add-pilot":
+				field(fields, "id", this._esql.addPilot(text(args, "name"), text(args, "nationality")));
+				break;
+			case "add-flight":
+				if (args.containsKey("pilot") || args.containsKey("plane")){
+					field(fields, "fnum", this._esql.addFlight(number(args, "cost"), number(args, "sold"), number(args, "stops"),
+						dateTime(args, "departure"), dateTime(args, "arrival"), text(args, "to"), text(args, "from"),
+						number(args, "pilot"), number(args, "plane")));
+				}else{
+					field(fields, "fnum", this._esql.addFlight(number(args, "cost"), number(args, "sold"), number(args, "stops"),
+						dateTime(args, "departure"), dateTime(args, "arrival"), text(args, "to"), text(args, "from")));
+				}
+				break;
+			case "add-technician":
+				field(fields, "id", this._esql.addTechnician(text(args, "name")));
+				break;
+			case "book":{
+				Booking booking = args.containsKey("seat")
+					? this._esql.getSeatMap().book(number(args, "customer"), number(args, "flight"), number(args, "seat"))
+					: this._esql.bookFlight(number(args, "customer"), number(args, "flight"));
+				field(fields, "rnum", booking.getRnum());
+				fields.append(",\"status\":\"").append(booking.getStatus()).append('"');
+				if (booking.getSeat() > 0){
+					field(fields, "seat", booking.getSeat());
+				}
+				break;
+			}
+			case "seats":{
+				Integer seats = this._esql.getSeatsAvailable(number(args, "flight"));
+				fields.append(",\"seats_available\":").append(seats == null ? "null" : seats.toString());
+				break;
+			}
+			case "passengers":{
+				String status = text(args, "status");
+				if (status.length() != 1){
+					throw new IllegalArgumentException("status must be W, C or R");
+				}
+				field(fields, "count", this._esql.countPassengers(number(args, "flight"), status.charAt(0)));
+				break;
+			}
+			case "repairs-per-plane":
+			case "repairs-per-year":
+			case "status-histogram":
+			case "schedule-conflicts":
+			case "routes":{
+				StringWriter rows = new StringWriter();
+				ResultPrinter printer = new ResultPrinter(rows, ResultPrinter.Format.JSON, false);
+				if (op.equals("repairs-per-plane")){
+					this._esql.getRepairStats().printPerPlane(printer);
+				}else if (op.equals("repairs-per-year")){
+					this._esql.getRepairStats().printPerYear(printer);
+				}else if (op.equals("status-histogram")){
+					this._esql.getReservationSnapshot().printHistogram(printer);
+				}else if (op.equals("schedule-conflicts")){
+					ScheduleConflicts.print(printer, this._esql.getSchedule().sweep());
+				}else{
+					RouteSearch.print(printer, this._esql.getRouteSearch().search(text(args, "from"), text(args, "to"),
+						dateTime(args, "after"), dateTime(args, "before"),
+						args.containsKey("connect") ? number(args, "connect") : 60,
+						args.containsKey("legs") ? number(args, "legs") : RouteSearch.DEFAULT_MAX_LEGS));
+				}
+				printer.finish();
+				// the JSON lines of the printer become the elements of one array
+				String lines = rows.toString().trim();
+				fields.append(",\"rows\":[").append(lines.replace("\n", ",")).append(']');
+				break;
+			}
+			case "bulk-book":{
+				BulkBooking.Result r = new BulkBooking(this._esql, BulkBooking.DEFAULT_CHUNK_SIZE, System.err).run(text(args, "file"));
+				field(fields, "reserved", r.reserved);
+				field(fields, "waitlisted", r.waitlisted);
+				field(fields, "rejected", r.rejected);
+				break;
+			}
+			case "cancel":{
+				Waitlist.Cancellation c = this._esql.getWaitlist().cancel(number(args, "reservation"));
+				field(fields, "fnum", c.cancelled.getFlightNum());
+				fields.append(",\"status\":\"").append(c.cancelled.getStatus()).append('"');
+				fields.append(",\"promoted\":[");
+				for (int i = 0; i < c.promoted.size(); ++i){
+					fields.append(i > 0 ? "," : "").append(c.promoted.get(i).getRnum());
+				}
+				fields.append(']');
+				break;
+			}
+			case "promote":{
+				if (args.containsKey("flight")){
+					field(fields, "promoted", this._esql.getWaitlist().promote(number(args, "flight")).size());
+				}else{
+					int batch = args.containsKey("batch") ? number(args, "batch") : Waitlist.DEFAULT_BATCH_SIZE;
+					Waitlist.Sweep sweep = this._esql.getWaitlist().promoteAll(batch);
+					field(fields, "promoted", sweep.promoted);
+					field(fields, "flights", sweep.flights);
+				}
+				break;
+			}
+			case "archive":{
+				ReservationArchive.Result r = this._esql.getArchive().archive(
+					args.containsKey("days") ? number(args, "days") : ReservationArchive.RETENTION_DAYS,
+					args.containsKey("batch") ? number(args, "batch") : ReservationArchive.DEFAULT_BATCH_FLIGHTS);
+				field(fields, "archived", r.archived);
+				field(fields, "flights", r.flights);
+				field(fields, "partitions_created", r.partitionsCreated);
+				field(fields, "partitions_dropped", r.partitionsDropped);
+				break;
+			}
+			case "archived":{
+				if (args.containsKey("reservation")){
+					Booking b = this._esql.getArchive().find(number(args, "reservation"));
+					if (b == null){
+						throw new IllegalArgumentException("reservation " + args.get("reservation") + " is not archived");
+					}
+					field(fields, "cid", b.getCustomerId());
+					field(fields, "fnum", b.getFlightNum());
+					fields.append(",\"status\":\"").append(b.getStatus()).append('"');
+				}else{
+					String status = text(args, "status");
+					if (status.length() != 1){
+						throw new IllegalArgumentException("status must be W, C or R");
+					}
+					field(fields, "count", this._esql.getArchive().count(number(args, "flight"), status.charAt(0)));
+				}
+				break;
+			}
+			default:
+				throw new IllegalArgumentException("unknown operation " + op);
+		}
+	}
+
+	private static void field(StringBuilder fields, String name, long value){
+		fields.append(",\"").append(name).append("\":").append(value);
+	}
+
+	private static String text(Map<String, String> args, String name){
+		String value = args.get(name);
+		if (value == null){
+			throw new IllegalArgumentException("missing argument " + name);
+		}
+		return value;
+	}
+
+	private static int number(Map<String, String> args, String name){
+		String value = text(args, name);
+		try{
+			return Integer.parseInt(value.trim());
+		}catch (NumberFormatException e){
+			throw new IllegalArgumentException(name + " is not a number: " + value);
+		}
+	}
+
+	private static LocalDateTime dateTime(Map<String, String> args, String name){
+		String value = text(args, name);
+		try{
+			return LocalDateTime.parse(value.trim(), DATE_TIME);
+		}catch (DateTimeParseException e){
+			throw new IllegalArgumentException(name + " is not a yyyy-MM-dd HH:mm date: " + value);
+		}
+	}
+
+	/**
+	 * Method to turn key=value arguments into a map.
+	 */
+	static Map<String, String> parseArgs(List<String> tokens){
+		Map<String, String> args = new LinkedHashMap<String, String>();
+		for (String token : tokens){
+			int eq = token.indexOf('=');
+			if (eq <= 0){
+				throw new IllegalArgumentException("expected key=value, got " + token);
+			}
+			args.put(token.substring(0, eq), token.substring(eq + 1));
+		}
+		return args;
+	}
+
+	/**
+	 * Method to split a line at blanks; double quotes group blanks into a
+	 * token and \" is a literal quote.
+	 */
+	static List<String> tokenize(String line){
+		List<String> tokens = new ArrayList<String>();
+		StringBuilder token = null;
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); ++i){
+			char c = line.charAt(i);
+			if (c == '\\' && i + 1 < line.length() && line.charAt(i + 1) == '"'){
+				token = token == null ? new StringBuilder() : token;
+				token.append('"');
+				++i;
+			}else if (c == '"'){
+				token = token == null ? new StringBuilder() : token;
+				quoted = !quoted;
+			}else if (Character.isWhitespace(c) && !quoted){
+				if (token != null){
+					tokens.add(token.toString());
+					token = null;
+				}
+			}else{
+				token = token == null ? new StringBuilder() : token;
+				token.append(c);
+			}
+		}
+		if (quoted){
+			throw new IllegalArgumentException("unterminated quote");
+		}
+		if (token != null){
+			tokens.add(token.toString());
+		}
+		return tokens;
+	}
+
+	/**
+	 * Method to read a flat JSON object of strings, numbers, booleans and
+	 * nulls into a map of their text (nulls are left out).
+	 */
+	static Map<String, String> parseJson(String line){
+		Map<String, String> args = new LinkedHashMap<String, String>();
+		int[] pos = {skipBlanks(line, 0)};
+		expect(line, pos, '{');
+		if (peek(line, pos) == '}'){
+			++pos[0];
+			return args;
+		}
+		while (true){
+			String key = readJsonString(line, pos);
+			expect(line, pos, ':');
+			char c = peek(line, pos);
+			String value;
+			if (c == '"'){
+				value = readJsonString(line, pos);
+			}else{
+				int start = pos[0];
+				while (pos[0] < line.length() && ",} \t".indexOf(line.charAt(pos[0])) < 0){
+					++pos[0];
+				}
+				value = line.substring(start, pos[0]);
+				if (value.isEmpty() || value.startsWith("{") || value.startsWith("[")){
+					throw new IllegalArgumentException("unsupported value for " + key);
+				}
+				if (value.equals("null")){
+					value = null;
+				}
+			}
+			if (value != null){
+				args.put(key, value);
+			}
+			c = peek(line, pos);
+			++pos[0];
+			if (c == '}'){
+				break;
+			}
+			if (c != ','){
+				throw new IllegalArgumentException("expected , or } at " + (pos[0] - 1));
+			}
+		}
+		if (skipBlanks(line, pos[0]) != line.length()){
+			throw new IllegalArgumentException("trailing text after the object");
+		}
+		return args;
+	}
+
+	private static String readJsonString(String line, int[] pos){
+		expect(line, pos, '"');
+		StringBuilder sb = new StringBuilder();
+		while (pos[0] < line.length()){
+			char c = line.charAt(pos[0]++);
+			if (c == '"'){
+				return sb.toString();
+			}
+			if (c != '\\'){
+				sb.append(c);
+				continue;
+			}
+			if (pos[0] >= line.length()){
+				break;
+			}
+			char e = line.charAt(pos[0]++);
+			switch (e){
+				case 'n': sb.append('\n'); break;
+				case 'r': sb.append('\r'); break;
+				case 't': sb.append('\t'); break;
+				case 'b': sb.append('\b'); break;
+				case 'f': sb.append('\f'); break;
+				case 'u':
+					if (pos[0] + 4 > line.length()){
+						throw new IllegalArgumentException("bad \\u escape");
+					}
+					sb.append((char) Integer.parseInt(line.substring(pos[0], pos[0] + 4), 16));
+					pos[0] += 4;
+					break;
+				default: sb.append(e);
+			}
+		}
+		throw new IllegalArgumentException("unterminated string");
+	}
+
+	private static void expect(String line, int[] pos, char c){
+		if (peek(line, pos) != c){
+			throw new IllegalArgumentException("expected " + c + " at " + pos[0]);
+		}
+		++pos[0];
+	}
+
+	private static char peek(String line, int[] pos){
+		pos[0] = skipBlanks(line, pos[0]);
+		if (pos[0] >= line.length()){
+			throw new IllegalArgumentException("unexpected end of line");
+		}
+		return line.charAt(pos[0]);
+	}
+
+	private static int skipBlanks(String line, int i){
+		while (i < line.length() && Character.isWhitespace(line.charAt(i))){
+			++i;
+		}
+		return i;
+	}
+}
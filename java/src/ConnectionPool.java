@@ -0,0 +1,478 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class defines a bounded pool of physical PostgreSQL connections.
+ * Connections are validated when they are borrowed after sitting idle,
+ * idle connections above the minimum size are closed after a timeout, and
+ * connections held longer than the leak threshold are reported, together
+ * with the stack trace of the code that borrowed them when
+ * -Ddbproject.pool.leakTrace=true (capturing it on every borrow is not
+ * free).
+ *
+ */
+public class ConnectionPool{
+	static final boolean LEAK_TRACE = Boolean.getBoolean("dbproject.pool.leakTrace");
+
+	/**
+	 * A physical connection handed out by the pool, together with the
+	 * prepared statements cached on it.
+	 */
+	public static class PooledConnection{
+		private final ConnectionPool _pool;
+		private final Connection _connection;
+		private final StatementCache _statements;
+		private long _lastUsedAt;
+		private long _borrowedAt;
+		private Throwable _borrowSite;
+		private boolean _leakReported;
+
+		private PooledConnection(ConnectionPool pool, Connection connection, int statementCacheSize){
+			this._pool = pool;
+			this._connection = connection;
+			this._statements = new StatementCache(connection, statementCacheSize);
+			this._lastUsedAt = System.currentTimeMillis();
+		}
+
+		public Connection getConnection(){
+			return this._connection;
+		}
+
+		public StatementCache getStatements(){
+			return this._statements;
+		}
+
+		/**
+		 * @return the pool the connection must be released to
+		 */
+		public ConnectionPool getPool(){
+			return this._pool;
+		}
+
+		private void closeQuietly(){
+			this._statements.close();
+			try{
+				this._connection.close();
+			}catch (SQLException e){
+				// ignored.
+			}
+		}
+	}
+
+	private final String _url;
+	private final Properties _props;
+	private final int _minSize;
+	private final int _maxSize;
+	private final long _acquireTimeoutMillis;
+	private final long _idleTimeoutMillis;
+	private final long _leakThresholdMillis;
+	private final long _validateAfterIdleMillis;
+	private final int _statementCacheSize;
+
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final Condition _available = this._lock.newCondition();
+	//most recently returned connection first, so the hot ones stay warm
+	private final ArrayDeque<PooledConnection> _idle = new ArrayDeque<PooledConnection>();
+	private final Set<PooledConnection> _borrowed = Collections.newSetFromMap(new IdentityHashMap<PooledConnection, Boolean>());
+	//open connections plus connections being opened
+	private int _total = 0;
+	private boolean _closed = false;
+	private final ScheduledExecutorService _maintenance;
+
+	//borrow metrics
+	private long _borrowCount = 0;
+	private long _waitNanosTotal = 0;
+	private long _waitNanosMax = 0;
+	private long _timeouts = 0;
+	private long _leaks = 0;
+	private long _validationFailures = 0;
+
+	public ConnectionPool(String url, Properties props, int minSize, int maxSize, long acquireTimeoutMillis,
+			long idleTimeoutMillis, long leakThresholdMillis, long validateAfterIdleMillis, int statementCacheSize) throws SQLException {
+		if (minSize < 0 || maxSize <= 0 || minSize > maxSize){
+			throw new IllegalArgumentException("invalid pool size: min " + minSize + ", max " + maxSize);
+		}
+		this._url = url;
+		this._props = props;
+		this._minSize = minSize;
+		this._maxSize = maxSize;
+		this._acquireTimeoutMillis = acquireTimeoutMillis;
+		this._idleTimeoutMillis = idleTimeoutMillis;
+		this._leakThresholdMillis = leakThresholdMillis;
+		this._validateAfterIdleMillis = validateAfterIdleMillis;
+		this._statementCacheSize = statementCacheSize;
+
+		// open the minimum number of connections up front so a bad URL fails right away
+		try{
+			for (int i = 0; i < minSize; ++i){
+				this._idle.push(open());
+				++this._total;
+			}
+		}catch (SQLException e){
+			for (PooledConnection pc : this._idle){
+				pc.closeQuietly();
+			}
+			throw e;
+		}
+
+		this._maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "connection-pool-maintenance");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1000, Math.min(idleTimeoutMillis, leakThresholdMillis) / 2);
+		this._maintenance.scheduleWithFixedDelay(this::maintain, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to create a pool from the dbproject.pool.* system properties.
+	 *
+	 * @param url the JDBC connection URL
+	 * @param props the connection properties (user, password, driver options)
+	 * @return the new pool
+	 * @throws java.sql.SQLException when the initial connections cannot be opened
+	 */
+	public static ConnectionPool fromSystemProperties(String url, Properties props) throws SQLException {
+		return new ConnectionPool(url, props,
+			Integer.getInteger("dbproject.pool.minSize", 1),
+			Integer.getInteger("dbproject.pool.maxSize", 8),
+			Long.getLong("dbproject.pool.acquireTimeoutMs", 30000L),
+			Long.getLong("dbproject.pool.idleTimeoutMs", 600000L),
+			Long.getLong("dbproject.pool.leakThresholdMs", 60000L),
+			Long.getLong("dbproject.pool.validateAfterIdleMs", 1000L),
+			Integer.getInteger("dbproject.statementCacheSize", 64));
+	}
+
+	/**
+	 * Method to borrow a connection, waiting up to the acquire timeout for
+	 * one to be returned when the pool is at its maximum size.
+	 *
+	 * @return a connection that must be handed back with release()
+	 * @throws java.sql.SQLException when no connection became available in time
+	 */
+	public PooledConnection borrow() throws SQLException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(this._acquireTimeoutMillis);
+		while (true){
+			PooledConnection pc = null;
+			boolean create = false;
+			this._lock.lock();
+			try{
+				while (!this._closed && this._idle.isEmpty() && this._total >= this._maxSize){
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0){
+						++this._timeouts;
+						throw new SQLException("Timed out after " + this._acquireTimeoutMillis + " ms waiting for a database connection ("
+							+ this._borrowed.size() + " in use, max " + this._maxSize + ")", "08001");
+					}
+					try{
+						this._available.awaitNanos(remaining);
+					}catch (InterruptedException e){
+						Thread.currentThread().interrupt();
+						throw new SQLException("Interrupted while waiting for a database connection", "08001", e);
+					}
+				}
+				if (this._closed){
+					throw new SQLException("Connection pool is closed", "08003");
+				}
+				if (!this._idle.isEmpty()){
+					pc = this._idle.pop();
+				}else{
+					// reserve the slot now, open the connection outside the lock
+					++this._total;
+					create = true;
+				}
+			}finally{
+				this._lock.unlock();
+			}
+
+			if (create){
+				try{
+					pc = open();
+				}catch (SQLException e){
+					discard(null);
+					throw e;
+				}
+			}else if (!validate(pc)){
+				discard(pc);
+				continue;
+			}
+			checkOut(pc, start);
+			return pc;
+		}
+	}
+
+	/**
+	 * Method to hand a borrowed connection back to the pool.  Connections
+	 * left in a transaction are rolled back; broken ones are closed.  A
+	 * connection that is not borrowed, e.g. one released twice, is left
+	 * alone, as it may already be in another borrower's transaction.
+	 *
+	 * @param pc the connection returned by borrow()
+	 */
+	public void release(PooledConnection pc){
+		if (pc == null){
+			return;
+		}
+		this._lock.lock();
+		try{
+			if (!this._borrowed.remove(pc)){
+				return;
+			}
+			pc._borrowSite = null;
+		}finally{
+			this._lock.unlock();
+		}
+
+		boolean healthy = true;
+		try{
+			if (pc._connection.isClosed()){
+				healthy = false;
+			}else if (!pc._connection.getAutoCommit()){
+				pc._connection.rollback();
+				pc._connection.setAutoCommit(true);
+			}
+		}catch (SQLException e){
+			healthy = false;
+		}
+
+		this._lock.lock();
+		try{
+			pc._lastUsedAt = System.currentTimeMillis();
+			if (healthy && !this._closed){
+				this._idle.push(pc);
+				this._available.signal();
+				return;
+			}
+		}finally{
+			this._lock.unlock();
+		}
+		discard(pc);
+	}
+
+	/**
+	 * Method to close every idle connection and stop handing out new ones.
+	 * Connections still borrowed are closed when they are released.
+	 */
+	public void close(){
+		List<PooledConnection> toClose;
+		this._lock.lock();
+		try{
+			this._closed = true;
+			toClose = new ArrayList<PooledConnection>(this._idle);
+			this._total -= this._idle.size();
+			this._idle.clear();
+			this._available.signalAll();
+		}finally{
+			this._lock.unlock();
+		}
+		this._maintenance.shutdownNow();
+		for (PooledConnection pc : toClose){
+			pc.closeQuietly();
+		}
+	}
+
+	private PooledConnection open() throws SQLException {
+		return new PooledConnection(this, DriverManager.getConnection(this._url, this._props), this._statementCacheSize);
+	}
+
+	private boolean validate(PooledConnection pc){
+		if (System.currentTimeMillis() - pc._lastUsedAt < this._validateAfterIdleMillis){
+			return true;
+		}
+		try{
+			if (pc._connection.isValid(5)){
+				return true;
+			}
+		}catch (SQLException e){
+			// treated as invalid below
+		}
+		this._lock.lock();
+		try{
+			++this._validationFailures;
+		}finally{
+			this._lock.unlock();
+		}
+		return false;
+	}
+
+	private void checkOut(PooledConnection pc, long start){
+		long waited = System.nanoTime() - start;
+		this._lock.lock();
+		try{
+			this._borrowed.add(pc);
+			pc._borrowedAt = System.currentTimeMillis();
+			pc._borrowSite = LEAK_TRACE ? new Throwable("Connection borrowed here") : null;
+			pc._leakReported = false;
+			++this._borrowCount;
+			this._waitNanosTotal += waited;
+			if (waited > this._waitNanosMax){
+				this._waitNanosMax = waited;
+			}
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	private void discard(PooledConnection pc){
+		if (pc != null){
+			pc.closeQuietly();
+		}
+		this._lock.lock();
+		try{
+			--this._total;
+			this._available.signal();
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	/**
+	 * Method run periodically to evict idle connections and report leaks.
+	 */
+	private void maintain(){
+		long now = System.currentTimeMillis();
+		List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+		List<PooledConnection> leaked = new ArrayList<PooledConnection>();
+		this._lock.lock();
+		try{
+			// the least recently used connections sit at the tail
+			while (this._total > this._minSize && !this._idle.isEmpty()
+					&& now - this._idle.peekLast()._lastUsedAt > this._idleTimeoutMillis){
+				evicted.add(this._idle.pollLast());
+				--this._total;
+			}
+			for (PooledConnection pc : this._borrowed){
+				if (!pc._leakReported && now - pc._borrowedAt > this._leakThresholdMillis){
+					pc._leakReported = true;
+					++this._leaks;
+					leaked.add(pc);
+				}
+			}
+		}finally{
+			this._lock.unlock();
+		}
+		for (PooledConnection pc : evicted){
+			pc.closeQuietly();
+		}
+		for (PooledConnection pc : leaked){
+			Throwable site = pc._borrowSite;
+			System.err.println("Warning - database connection held for more than " + this._leakThresholdMillis + " ms, possible leak");
+			if (site != null){
+				site.printStackTrace();
+			}else{
+				System.err.println("Run with -Ddbproject.pool.leakTrace=true to see where it was borrowed");
+			}
+		}
+	}
+
+	public int getMaxSize(){
+		return this._maxSize;
+	}
+
+	public int getActiveCount(){
+		this._lock.lock();
+		try{
+			return this._borrowed.size();
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	public int getIdleCount(){
+		this._lock.lock();
+		try{
+			return this._idle.size();
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	public long getBorrowCount(){
+		this._lock.lock();
+		try{
+			return this._borrowCount;
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	/**
+	 * @return total time callers spent in borrow(), in nanoseconds
+	 */
+	public long getWaitNanosTotal(){
+		this._lock.lock();
+		try{
+			return this._waitNanosTotal;
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the longest single wait in borrow(), in nanoseconds
+	 */
+	public long getWaitNanosMax(){
+		this._lock.lock();
+		try{
+			return this._waitNanosMax;
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	public long getTimeouts(){
+		this._lock.lock();
+		try{
+			return this._timeouts;
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	public long getLeaks(){
+		this._lock.lock();
+		try{
+			return this._leaks;
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	public long getValidationFailures(){
+		this._lock.lock();
+		try{
+			return this._validationFailures;
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to summarize the pool state and wait time on one line.
+	 */
+	public String getStats(){
+		this._lock.lock();
+		try{
+			double avgMs = this._borrowCount == 0 ? 0.0 : this._waitNanosTotal / 1e6 / this._borrowCount;
+			return String.format("pool: %d active, %d idle, max %d; %d borrows, wait avg %.3f ms, max %.3f ms; %d timeouts, %d leaks",
+				this._borrowed.size(), this._idle.size(), this._maxSize, this._borrowCount, avgMs,
+				this._waitNanosMax / 1e6, this._timeouts, this._leaks);
+		}finally{
+			this._lock.unlock();
+		}
+	}
+}
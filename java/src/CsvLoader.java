@@ -0,0 +1,366 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.postgresql.copy.CopyManager;
+import org.postgresql.core.BaseConnection;
+
+/**
+ * This class loads the data/*.csv files into the flight database by
+ * streaming them from the client through COPY ... FROM STDIN, so the files
+ * do not have to be on the database host.  Tables without foreign keys are
+ * loaded in parallel on separate connections first, then the tables that
+ * reference them, again in parallel.  Optionally the foreign keys and
+ * secondary indexes are dropped before the load and rebuilt afterwards.
+ *
+ */
+public class CsvLoader{
+
+	/**
+	 * One table to load: its name, its CSV file and the column order of the file.
+	 */
+	static class TableSpec{
+		final String table;
+		final String file;
+		final String columns;
+
+		TableSpec(String table, String file, String columns){
+			this.table = table;
+			this.file = file;
+			this.columns = columns;
+		}
+	}
+
+	//tables with no foreign keys
+	static final TableSpec[] INDEPENDENT = {
+		new TableSpec("Customer", "customer.csv", "id, fname, lname, gtype, dob, address, phone, zipcode"),
+		new TableSpec("Pilot", "pilots.csv", "id, fullname, nationality"),
+		new TableSpec("Plane", "planes.csv", "id, make, model, age, seats"),
+		new TableSpec("Technician", "technician.csv", "id, full_name"),
+		new TableSpec("Flight", "flights.csv", "fnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport"),
+	};
+
+	//tables that reference only the independent ones, so they can load side by side
+	static final TableSpec[] DEPENDENT = {
+		new TableSpec("Reservation", "reservation.csv", "rnum, cid, fid, status"),
+		new TableSpec("FlightInfo", "flightinfo.csv", "fiid, flight_id, pilot_id, plane_id"),
+		new TableSpec("Repairs", "repairs.csv", "rid, repair_date, repair_code, pilot_id, plane_id, technician_id"),
+		new TableSpec("Schedule", "schedule.csv", "id, flightNum, departure_time, arrival_time"),
+	};
+
+	/**
+	 * Rows, bytes and time of one table load.
+	 */
+	static class LoadStats{
+		final String table;
+		final long rows;
+		final long bytes;
+		final long millis;
+
+		LoadStats(String table, long rows, long bytes, long millis){
+			this.table = table;
+			this.rows = rows;
+			this.bytes = bytes;
+			this.millis = millis;
+		}
+
+		@Override
+		public String toString(){
+			double secs = Math.max(this.millis, 1) / 1000.0;
+			return String.format("%-12s %10d rows %9.2f MB %8d ms %12.0f rows/s %8.2f MB/s",
+				this.table, this.rows, this.bytes / 1e6, this.millis, this.rows / secs, this.bytes / 1e6 / secs);
+		}
+	}
+
+	private final ConnectionPool _pool;
+	private final File _dataDir;
+	private final ExecutorService _workers;
+
+	public CsvLoader(ConnectionPool pool, File dataDir, int threads){
+		this._pool = pool;
+		this._dataDir = dataDir;
+		this._workers = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Method to load every table, in foreign key order.
+	 *
+	 * @param truncate empty the tables first
+	 * @param deferConstraints drop foreign keys and secondary indexes during the load
+	 * @return the statistics of each table
+	 * @throws java.lang.Exception when a table fails to load
+	 */
+	public List<LoadStats> load(boolean truncate, boolean deferConstraints) throws Exception {
+		List<LoadStats> stats = new ArrayList<LoadStats>();
+		List<String> indexes = new ArrayList<String>();
+		List<String> foreignKeys = new ArrayList<String>();
+
+		if (truncate){
+			execute("TRUNCATE Customer, Pilot, Plane, Technician, Flight, Reservation, FlightInfo, Repairs, Schedule CASCADE");
+		}
+		if (deferConstraints){
+			dropSecondaryIndexes(indexes);
+			dropForeignKeys(foreignKeys);
+		}
+
+		try{
+			stats.addAll(loadInParallel(INDEPENDENT));
+			stats.addAll(loadInParallel(DEPENDENT));
+		}catch (Exception e){
+			if (deferConstraints){
+				// the dropped DDL only lives in memory, so leave a way to put it back
+				System.err.println("-- load failed; run these statements to restore the dropped indexes and foreign keys:");
+				for (String ddl : indexes){
+					System.err.println(ddl + ";");
+				}
+				for (String ddl : foreignKeys){
+					System.err.println(ddl + ";");
+				}
+			}
+			throw e;
+		}
+
+		if (deferConstraints){
+			long start = System.currentTimeMillis();
+			// indexes of different tables build in parallel
+			List<Future<Void>> builds = new ArrayList<Future<Void>>();
+			for (final String ddl : indexes){
+				builds.add(this._workers.submit(() -> { execute(ddl); return null; }));
+			}
+			waitFor(builds);
+			// adding a foreign key locks the referenced table too, so these go one at a time
+			for (String ddl : foreignKeys){
+				execute(ddl);
+			}
+			System.out.println(String.format("rebuilt %d indexes and %d foreign keys in %d ms",
+				indexes.size(), foreignKeys.size(), System.currentTimeMillis() - start));
+		}
+		reseedSequences();
+		execute("ANALYZE");
+		return stats;
+	}
+
+	public void shutdown(){
+		this._workers.shutdown();
+	}
+
+	private List<LoadStats> loadInParallel(TableSpec[] specs) throws Exception {
+		List<Future<LoadStats>> loads = new ArrayList<Future<LoadStats>>();
+		for (final TableSpec spec : specs){
+			loads.add(this._workers.submit(() -> loadTable(spec)));
+		}
+		return waitFor(loads);
+	}
+
+	/**
+	 * Method to stream one CSV file into its table.
+	 */
+	LoadStats loadTable(TableSpec spec) throws SQLException, IOException {
+		File file = new File(this._dataDir, spec.file);
+		long start = System.currentTimeMillis();
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+			try{
+				CopyManager copy = new CopyManager(pc.getConnection().unwrap(BaseConnection.class));
+				long rows = copy.copyIn("COPY " + spec.table + " (" + spec.columns + ") FROM STDIN WITH DELIMITER ','", reader, 1 << 16);
+				return new LoadStats(spec.table, rows, file.length(), System.currentTimeMillis() - start);
+			}finally{
+				reader.close();
+			}
+		}finally{
+			this._pool.release(pc);
+		}
+	}
+
+	/**
+	 * Method to drop the foreign keys of the loaded tables, remembering the
+	 * DDL that recreates them.
+	 */
+	private void dropForeignKeys(List<String> recreate) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			Statement stmt = pc.getConnection().createStatement();
+			ResultSet rs = stmt.executeQuery(
+				"SELECT conrelid::regclass, conname, pg_get_constraintdef(oid) FROM pg_constraint " +
+				"WHERE contype = 'f' AND connamespace = current_schema()::regnamespace " +
+				"AND conrelid::regclass::text IN ('customer', 'pilot', 'plane', 'technician', 'flight', 'reservation', 'flightinfo', 'repairs', 'schedule')");
+			List<String> drops = new ArrayList<String>();
+			while (rs.next()){
+				recreate.add("ALTER TABLE " + rs.getString(1) + " ADD CONSTRAINT " + rs.getString(2) + " " + rs.getString(3));
+				drops.add("ALTER TABLE " + rs.getString(1) + " DROP CONSTRAINT " + rs.getString(2));
+			}
+			rs.close();
+			for (String ddl : drops){
+				stmt.execute(ddl);
+			}
+			stmt.close();
+		}finally{
+			this._pool.release(pc);
+		}
+	}
+
+	/**
+	 * Method to drop the indexes of the loaded tables that do not back a
+	 * constraint, remembering the DDL that recreates them.  Reservation is
+	 * partitioned since V004: dropping one of its indexes drops the index of
+	 * every partition too, so it is recreated without ONLY, which builds them
+	 * all again instead of leaving an invalid index on the parent alone.
+	 */
+	private void dropSecondaryIndexes(List<String> recreate) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			Statement stmt = pc.getConnection().createStatement();
+			ResultSet rs = stmt.executeQuery(
+				"SELECT i.indexrelid::regclass, pg_get_indexdef(i.indexrelid), ic.relkind = 'I' FROM pg_index i " +
+				"JOIN pg_class c ON c.oid = i.indrelid JOIN pg_class ic ON ic.oid = i.indexrelid " +
+				"WHERE c.relnamespace = current_schema()::regnamespace " +
+				"AND c.relname IN ('customer', 'pilot', 'plane', 'technician', 'flight', 'reservation', 'flightinfo', 'repairs', 'schedule') " +
+				"AND NOT EXISTS (SELECT 1 FROM pg_constraint k WHERE k.conindid = i.indexrelid)");
+			List<String> drops = new ArrayList<String>();
+			while (rs.next()){
+				String ddl = rs.getString(2);
+				recreate.add(rs.getBoolean(3) ? ddl.replaceFirst(" ON ONLY ", " ON ") : ddl);
+				drops.add("DROP INDEX " + rs.getString(1));
+			}
+			rs.close();
+			for (String ddl : drops){
+				stmt.execute(ddl);
+			}
+			stmt.close();
+		}finally{
+			this._pool.release(pc);
+		}
+	}
+
+	/**
+	 * Method to move the id sequences past the loaded rows, so clients do
+	 * not hand out ids that are already taken.
+	 */
+	private void reseedSequences() throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			Connection conn = pc.getConnection();
+			Statement stmt = conn.createStatement();
+			for (String[] seq : IdAllocator.SEQUENCES){
+				ResultSet rs = stmt.executeQuery("SELECT to_regclass('" + seq[0] + "') IS NOT NULL");
+				rs.next();
+				boolean exists = rs.getBoolean(1);
+				rs.close();
+				if (exists){
+					conn.setAutoCommit(false);
+					stmt.execute("SELECT pg_advisory_xact_lock(hashtext('dbproject.sequence." + seq[0] + "'))");
+					IdAllocator.seed(stmt, seq[0], seq[1], seq[2]);
+					conn.commit();
+					conn.setAutoCommit(true);
+				}
+			}
+			stmt.close();
+		}finally{
+			this._pool.release(pc);
+		}
+	}
+
+	private void execute(String sql) throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			Statement stmt = pc.getConnection().createStatement();
+			stmt.execute(sql);
+			stmt.close();
+		}finally{
+			this._pool.release(pc);
+		}
+	}
+
+	private static <T> List<T> waitFor(List<Future<T>> futures) throws Exception {
+		List<T> results = new ArrayList<T>();
+		try{
+			for (Future<T> f : futures){
+				results.add(f.get());
+			}
+		}catch (ExecutionException e){
+			for (Future<T> f : futures){
+				f.cancel(true);
+			}
+			Throwable cause = e.getCause();
+			throw cause instanceof Exception ? (Exception) cause : e;
+		}
+		return results;
+	}
+
+	/**
+	 * The main execution method
+	 *
+	 * @param args <dbname> <port> <user> [--data dir] [--threads n] [--truncate] [--defer-constraints]
+	 */
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + CsvLoader.class.getName() +
+				" <dbname> <port> <user> [--data <dir>] [--threads <n>] [--truncate] [--defer-constraints]");
+			System.exit(2);
+		}
+		File dataDir = new File("../data");
+		int threads = 4;
+		boolean truncate = false;
+		boolean defer = false;
+		for (int i = 3; i < args.length; ++i){
+			if (args[i].equals("--data") && i + 1 < args.length){
+				dataDir = new File(args[++i]);
+			}else if (args[i].equals("--threads") && i + 1 < args.length){
+				threads = Integer.parseInt(args[++i]);
+			}else if (args[i].equals("--truncate")){
+				truncate = true;
+			}else if (args[i].equals("--defer-constraints")){
+				defer = true;
+			}else{
+				System.err.println("Unknown option: " + args[i]);
+				System.exit(2);
+			}
+		}
+
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		Properties props = new Properties();
+		props.setProperty("user", args[2]);
+		props.setProperty("password", "");
+		ConnectionPool pool = null;
+		CsvLoader loader = null;
+		int status = 0;
+		try{
+			pool = new ConnectionPool(url, props, 1, threads, 60000L, 60000L, 3600000L, 1000L, 16);
+			loader = new CsvLoader(pool, dataDir, threads);
+			long start = System.currentTimeMillis();
+			long rows = 0;
+			long bytes = 0;
+			for (LoadStats s : loader.load(truncate, defer)){
+				System.out.println(s);
+				rows += s.rows;
+				bytes += s.bytes;
+			}
+			System.out.println(new LoadStats("TOTAL", rows, bytes, System.currentTimeMillis() - start));
+		}catch (Exception e){
+			System.err.println("Load failed: " + e.getMessage());
+			status = 1;
+		}finally{
+			if (loader != null){
+				loader.shutdown();
+			}
+			if (pool != null){
+				pool.close();
+			}
+		}
+		System.exit(status);
+	}
+}
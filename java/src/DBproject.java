@@ -13,6 +13,7 @@ import java.text.DateFormat;
 import java.sql.DriverManager;
 import java.sql.Connection;
 import java.sql.Statement;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -20,10 +21,22 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.FileInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Scanner;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.sql.Timestamp;
+import java.util.Properties;
 import java.time.format.DateTimeFormatter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
@@ -34,179 +47,1218 @@ import java.util.Date;
  */
 
 public class DBproject{
-	//reference to physical database connection
-	private Connection _connection = null;
+	//pool of physical database connections
+	private ConnectionPool _pool = null;
+	//connection a thread keeps between pinConnection() and unpinConnection()
+	private final ThreadLocal<ConnectionPool.PooledConnection> _pinned = new ThreadLocal<ConnectionPool.PooledConnection>();
+	private final ThreadLocal<Integer> _pinDepth = new ThreadLocal<Integer>();
+	//read-only replica for the reports, null unless -Ddbproject.replica is set
+	private ReplicaRouter _replica = null;
+	//TRUE on a thread while it runs a read-only operation, see readOnly(); FALSE inside onPrimary()
+	private final ThreadLocal<Boolean> _readOnly = new ThreadLocal<Boolean>();
+	//primary key allocators, one per table with generated ids
+	private IdAllocator _planeIds = null;
+	private IdAllocator _pilotIds = null;
+	private IdAllocator _flightNums = null;
+	private IdAllocator _technicianIds = null;
+	private IdAllocator _reservationNums = null;
+	private IdAllocator _flightInfoIds = null;
+	//available seats per flight, kept current by this process' bookings
+	private final SeatCache _seatCache = new SeatCache(4096);
+	//repair reports, served from the trigger maintained summary tables
+	private final RepairStats _repairStats = new RepairStats(this);
+	//cancellations and promotion of waitlisted reservations
+	private final Waitlist _waitlist = new Waitlist(this);
+	//Reservation in column arrays, for passenger counts without the database
+	private final ReservationSnapshot _reservations = new ReservationSnapshot(this);
+	//seat assignment with in-memory bitmaps per flight (-Ddbproject.seatmap=true)
+	private final SeatMap _seatMap = new SeatMap(this);
+	//flights per pilot and per plane in interval trees, for scheduling conflicts
+	private final ScheduleConflicts _schedule = new ScheduleConflicts(this);
+	//airports to flights in departure order, for itinerary search
+	private final RouteSearch _routes = new RouteSearch(this);
+	//reservations of long departed flights, moved to compressed files
+	private final ReservationArchive _archive = new ReservationArchive(this);
+	//latency, round trips, rows and errors per operation and per SQL shape
+	private final QueryMetrics _metrics = new QueryMetrics();
+	//statements slower than -Ddbproject.slowlog.ms, with sampled plans (null when off)
+	private SlowQueryLog _slowLog = null;
 	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+
+	static final Object[] NO_PARAMS = new Object[0];
+
+	//rows per round trip for streamed queries
+	static final int DEFAULT_FETCH_SIZE = Integer.getInteger("dbproject.fetchSize", 1000);
+
+	//how executeQueryAndPrintResult renders results, and where to (null is standard out)
+	private ResultPrinter.Format _outputFormat = ResultPrinter.Format.parse (System.getProperty ("dbproject.output.format", "tsv"));
+	private String _outputPath = System.getProperty ("dbproject.output.file");
+
+	//parameterized SQL of the menu operations
+	static final String SQL_INSERT_PLANE = "INSERT INTO Plane (id, make, model, age, seats) VALUES (?, ?, ?, ?, ?)";
+	static final String SQL_INSERT_PILOT = "INSERT INTO Pilot (id, fullname, nationality) VALUES (?, ?, ?)";
+	static final String SQL_INSERT_FLIGHT = "INSERT INTO Flight (fnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+	static final String SQL_INSERT_FLIGHT_INFO = "INSERT INTO FlightInfo (fiid, flight_id, pilot_id, plane_id) VALUES (?, ?, ?, ?)";
+	static final String SQL_INSERT_TECHNICIAN = "INSERT INTO Technician (id, full_name) VALUES (?, ?)";
+	static final String SQL_FLIGHT_COST = "SELECT cost FROM Flight WHERE fnum = ?";
+	static final String SQL_FLIGHT_EXISTS = "SELECT fnum FROM Flight WHERE fnum = ?";
+	static final String SQL_CUSTOMER_GENDER = "SELECT gtype FROM Customer WHERE id = ?";
+	static final String SQL_SEATS_AVAILABLE = "SELECT SUM(pl.seats - z.num_sold) AS seats_available FROM (SELECT * FROM Flight f, FlightInfo fl WHERE f.fnum = fl.flight_id AND f.fnum = ?) AS z, Plane pl WHERE z.plane_id = pl.id";
+	/*
+	 * Books a seat in one statement: the seat is taken with a conditional
+	 * increment of num_sold that only succeeds while the plane has room, and
+	 * the reservation is inserted as 'R' if it succeeded, 'W' otherwise.  The
+	 * Flight row lock taken by the UPDATE makes concurrent bookings queue up
+	 * and re-check the seat count, so the last seat cannot be sold twice.
+	 */
+	static final String SQL_BOOK_FLIGHT =
+		"WITH capacity AS (" +
+		"SELECT SUM(pl.seats) AS seats FROM FlightInfo fi, Plane pl WHERE fi.flight_id = ? AND fi.plane_id = pl.id), " +
+		"sold AS (" +
+		"UPDATE Flight f SET num_sold = f.num_sold + 1 FROM capacity c WHERE f.fnum = ? AND f.num_sold < c.seats RETURNING f.fnum), " +
+		"booked AS (" +
+		"INSERT INTO Reservation (rnum, cid, fid, status) " +
+		"SELECT ?, ?, ?, CASE WHEN EXISTS (SELECT 1 FROM sold) THEN 'R' ELSE 'W' END RETURNING rnum, status) " +
+		"SELECT rnum, status FROM booked";
+	static final String SQL_REPAIRS_PER_PLANE = "SELECT P.id, COUNT(R.rid) FROM Plane P, Repairs R WHERE P.id = R.plane_id GROUP BY P.id ORDER BY COUNT(R.rid) DESC";
+	static final String SQL_REPAIRS_PER_YEAR = "SELECT EXTRACT(YEAR FROM repair_date), COUNT(*) FROM Repairs GROUP BY EXTRACT(YEAR FROM repair_date) ORDER BY COUNT(*) ASC";
+	static final String SQL_PASSENGERS_WITH_STATUS = "SELECT COUNT(*) FROM Reservation R WHERE R.status = ? AND R.fid = ?";
 	
 	public DBproject(String dbname, String dbport, String user, String passwd) throws SQLException {
+		this (dbname, dbport, user, passwd, true);
+	}
+
+	/**
+	 * Method to connect for callers that handle a failure themselves: the
+	 * constructor ends the process when it cannot connect, this throws.
+	 *
+	 * @param dbname the name of the database
+	 * @param dbport the port PostgreSQL listens on
+	 * @param user the user name
+	 * @param passwd the password
+	 * @return the connected instance
+	 * @throws java.sql.SQLException when the database cannot be connected to
+	 *         or brought up to date
+	 */
+	public static DBproject connect (String dbname, String dbport, String user, String passwd) throws SQLException {
+		return new DBproject (dbname, dbport, user, passwd, false);
+	}
+
+	private DBproject(String dbname, String dbport, String user, String passwd, boolean exitOnFailure) throws SQLException {
 		System.out.print("Connecting to database...");
 		try{
 			// constructs the connection URL
 			String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
 			System.out.println ("Connection URL: " + url + "\n");
 			
-			// obtain a physical connection
-	        this._connection = DriverManager.getConnection(url, user, passwd);
+			// open the connection pool; statements we cache are reused, so let the
+			// driver switch them to server side prepared statements right away
+			Properties props = new Properties();
+			props.setProperty("user", user);
+			props.setProperty("password", passwd);
+			props.setProperty("prepareThreshold", "1");
+	        this._pool = ConnectionPool.fromSystemProperties(url, props);
+			this._slowLog = SlowQueryLog.fromSystemProperties(this._pool);
+			this._replica = ReplicaRouter.fromSystemProperties(this._pool, dbname, props);
+
+			// bring the schema up to date first when asked to
+			String migrations = System.getProperty("dbproject.migrations");
+			if (migrations != null){
+				new MigrationRunner(this._pool, new File(migrations), System.out).migrate();
+			}
+
+			// make sure the id sequences exist and are ahead of the existing rows
+			this._planeIds = new IdAllocator(this, "plane_id_seq", "Plane", "id");
+			this._pilotIds = new IdAllocator(this, "pilot_id_seq", "Pilot", "id");
+			this._flightNums = new IdAllocator(this, "flight_fnum_seq", "Flight", "fnum");
+			this._technicianIds = new IdAllocator(this, "technician_id_seq", "Technician", "id");
+			this._reservationNums = new IdAllocator(this, "reservation_rnum_seq", "Reservation", "rnum");
+			this._flightInfoIds = new IdAllocator(this, "flightinfo_fiid_seq", "FlightInfo", "fiid");
+			this._planeIds.ensureSequence();
+			this._pilotIds.ensureSequence();
+			this._flightNums.ensureSequence();
+			this._technicianIds.ensureSequence();
+			this._reservationNums.ensureSequence();
+			this._flightInfoIds.ensureSequence();
+
+			if (Boolean.getBoolean("dbproject.seatCache.preload")){
+				this._seatCache.preload(this);
+			}
 	        System.out.println("Done");
 		}catch(Exception e){
+			if (!exitOnFailure){
+				cleanup ();
+				throw new SQLException("Unable to connect to database: " + e.getMessage(), e);
+			}
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
 	        System.out.println("Make sure you started postgres on this machine");
 	        System.exit(-1);
 		}
 	}
-	
+	
+	/**
+	 * Method to execute an update SQL statement.  Update SQL instructions
+	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+	 * 
+	 * @param sql the input SQL string
+	 * @throws java.sql.SQLException when update failed
+	 * */
+	public void executeUpdate (String sql) throws SQLException { 
+		ConnectionPool.PooledConnection pc = acquire ();
+		long started = this._metrics.start ();
+		long rows = -1;
+		try{
+			// creates a statement object
+			Statement stmt = pc.getConnection ().createStatement ();
+			try{
+				// issues the update instruction
+				rows = stmt.executeUpdate (sql);
+			}finally{
+				// close the instruction
+				stmt.close ();
+			}
+		}finally{
+			release (pc);
+			recordCall (sql, NO_PARAMS, started, 1, rows);
+		}
+	}//end executeUpdate
+
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and outputs the results to
+	 * standard out.
+	 * 
+	 * @param query the input query string
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String query) throws SQLException {
+		ConnectionPool.PooledConnection pc = acquire ();
+		long started = this._metrics.start ();
+		long rows = -1;
+		try{
+			//creates a statement object
+			Statement stmt = pc.getConnection ().createStatement ();
+			try{
+				//issues the query instruction
+				ResultSet rs = stmt.executeQuery (query);
+
+				//iterates through the result set and output them
+				ResultPrinter printer = openPrinter ();
+				while (rs.next()){
+					printer.row (rs);
+				}//end while
+				rows = finishPrinter (printer);
+				return (int) rows;
+			}finally{
+				stmt.close ();
+			}
+		}finally{
+			release (pc);
+			recordCall (query, NO_PARAMS, started, 1, rows);
+		}
+	}
+	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the results as
+	 * a list of records. Each record in turn is a list of attribute values
+	 * 
+	 * @param query the input query string
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
+		ConnectionPool.PooledConnection pc = acquire ();
+		long started = this._metrics.start ();
+		long rows = -1;
+		try{
+			//creates a statement object 
+			Statement stmt = pc.getConnection ().createStatement (); 
+			try{
+				//issues the query instruction 
+				ResultSet rs = stmt.executeQuery (query); 
+
+				List<List<String>> result = readResult (rs);
+				rows = result.size ();
+				return result; 
+			}finally{
+				stmt.close (); 
+			}
+		}finally{
+			release (pc);
+			recordCall (query, NO_PARAMS, started, 1, rows);
+		}
+	}//end executeQueryAndReturnResult
+	
+	/**
+	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
+	 * method issues the query to the DBMS and returns the number of results
+	 * 
+	 * @param query the input query string
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query) throws SQLException {
+		ConnectionPool.PooledConnection pc = acquire ();
+		long started = this._metrics.start ();
+		long rows = -1;
+		try{
+			//creates a statement object
+			Statement stmt = pc.getConnection ().createStatement ();
+			try{
+				//issues the query instruction
+				ResultSet rs = stmt.executeQuery (query);
+
+				int rowCount = 0;
+
+				//iterates through the result set and count nuber of results.
+				if(rs.next()){
+					rowCount++;
+				}//end while
+				rows = rowCount;
+				return rowCount;
+			}finally{
+				stmt.close ();
+			}
+		}finally{
+			release (pc);
+			recordCall (query, NO_PARAMS, started, 1, rows);
+		}
+	}
+	
+	/**
+	 * Method to fetch the last value from sequence. This
+	 * method issues the query to the DBMS and returns the current 
+	 * value of sequence used for autogenerated keys.  currval() is per
+	 * session, so the caller must have pinned the connection that called
+	 * nextval() with pinConnection().
+	 * 
+	 * @param sequence name of the DB sequence
+	 * @return current value of a sequence
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	
+	public int getCurrSeqVal(String sequence) throws SQLException {
+		String sql = String.format("Select currval('%s')", sequence);
+		ConnectionPool.PooledConnection pc = acquire ();
+		long started = this._metrics.start ();
+		long rows = -1;
+		try{
+			Statement stmt = pc.getConnection ().createStatement ();
+			try{
+				ResultSet rs = stmt.executeQuery (sql);
+				int value = rs.next() ? rs.getInt(1) : -1;
+				rows = value < 0 ? 0 : 1;
+				return value;
+			}finally{
+				stmt.close ();
+			}
+		}finally{
+			release (pc);
+			recordCall (sql, NO_PARAMS, started, 1, rows);
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized update SQL statement (INSERT, UPDATE,
+	 * DELETE).  The statement is prepared once per connection and reused from
+	 * the statement cache on later calls with the same SQL text.
+	 *
+	 * @param sql the SQL string with '?' placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows affected
+	 * @throws java.sql.SQLException when update failed
+	 */
+	public int executeUpdate (String sql, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection pc = acquire ();
+		long started = this._metrics.start ();
+		int rows = -1;
+		try{
+			PreparedStatement stmt = prepare (pc, sql, params);
+			try{
+				rows = stmt.executeUpdate ();
+				return rows;
+			}catch (SQLException e){
+				pc.getStatements ().invalidate (sql);
+				throw e;
+			}
+		}finally{
+			release (pc);
+			recordCall (sql, params, started, 1, rows);
+		}
+	}//end executeUpdate
+
+	/**
+	 * Method to execute a parameterized query and output the results to
+	 * standard out.
+	 *
+	 * @param query the query string with '?' placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+		ResultPrinter printer = openPrinter ();
+		streamQuery (query, printer, params);
+		return (int) finishPrinter (printer);
+	}
+
+	/**
+	 * Method to choose how executeQueryAndPrintResult renders results.
+	 *
+	 * @param format table, tsv, csv or json lines
+	 * @param path file to append to, or null for standard out
+	 */
+	public void setOutput (ResultPrinter.Format format, String path){
+		this._outputFormat = format;
+		this._outputPath = path;
+	}
+
+	public ResultPrinter.Format getOutputFormat (){
+		return this._outputFormat;
+	}
+
+	public String getOutputPath (){
+		return this._outputPath;
+	}
+
+	private ResultPrinter openPrinter () throws SQLException {
+		try{
+			return ResultPrinter.open (this._outputFormat, this._outputPath);
+		}catch (IOException e){
+			throw new SQLException ("Could not open " + this._outputPath + ": " + e.getMessage (), e);
+		}
+	}
+
+	private static long finishPrinter (ResultPrinter printer) throws SQLException {
+		try{
+			return printer.finish ();
+		}catch (IOException e){
+			throw new SQLException ("Could not write the result: " + e.getMessage (), e);
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query and hand the rows to a
+	 * callback as they arrive, without keeping the result in memory.  The
+	 * query runs inside a transaction with the default fetch size
+	 * (-Ddbproject.fetchSize, 1000 rows) so the driver reads it through a
+	 * server side cursor.
+	 *
+	 * @param query the query string with '?' placeholders
+	 * @param handler called once per row
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long streamQuery (String query, RowHandler handler, Object... params) throws SQLException {
+		return streamQuery (query, DEFAULT_FETCH_SIZE, handler, params);
+	}
+
+	/**
+	 * Method to execute a parameterized query and hand the rows to a
+	 * callback, fetching fetchSize rows per round trip through a server
+	 * side cursor.  If the connection is in autocommit mode a
+	 * transaction is opened for the cursor and committed at the end, or
+	 * rolled back when the query or the handler fails; on a pinned
+	 * connection already in a transaction that transaction is used.
+	 *
+	 * @param query the query string with '?' placeholders
+	 * @param fetchSize rows per round trip
+	 * @param handler called once per row
+	 * @param params the values bound to the placeholders, in order
+	 * @return the number of rows returned
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long streamQuery (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection pc = acquire ();
+		Connection conn = pc.getConnection ();
+		boolean ownTransaction = conn.getAutoCommit ();
+		PreparedStatement stmt = null;
+		ResultSet rs = null;
+		long started = this._metrics.start ();
+		long rowCount = 0;
+		boolean failed = true;
+		try{
+			if (ownTransaction){
+				// the driver only uses a cursor outside autocommit
+				conn.setAutoCommit (false);
+			}
+			stmt = prepare (pc, query, params);
+			stmt.setFetchSize (fetchSize);
+			rs = stmt.executeQuery ();
+			while (rs.next ()){
+				handler.row (rs);
+				++rowCount;
+			}
+			rs.close ();
+			rs = null;
+			if (ownTransaction){
+				conn.commit ();
+			}
+			failed = false;
+			return rowCount;
+		}catch (Throwable e){
+			// also for a handler's runtime exception: the finally would commit by turning autocommit back on
+			pc.getStatements ().invalidate (query);
+			if (ownTransaction){
+				try{
+					conn.rollback ();
+				}catch (SQLException rollbackFailure){
+					e.addSuppressed (rollbackFailure);
+				}
+			}
+			throw e;
+		}finally{
+			closeQuietly (rs);
+			if (stmt != null && !stmt.isClosed ()){
+				stmt.setFetchSize (0);
+			}
+			if (ownTransaction){
+				conn.setAutoCommit (true);
+			}
+			release (pc);
+			// one fetch per fetchSize rows, plus the commit of our own transaction
+			recordCall (query, params, started, 1 + rowCount / Math.max (fetchSize, 1) + (ownTransaction ? 1 : 0), failed ? -1 : rowCount);
+		}
+	}
+
+	/**
+	 * Method to execute a parameterized query and return the results as a
+	 * list of records.  Each record in turn is a list of attribute values.
+	 *
+	 * @param query the query string with '?' placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the query result as a list of records
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection pc = acquire ();
+		ResultSet rs = null;
+		long started = this._metrics.start ();
+		long rows = -1;
+		try{
+			rs = prepare (pc, query, params).executeQuery ();
+			List<List<String>> result = readResult (rs);
+			rows = result.size ();
+			return result;
+		}catch (SQLException e){
+			pc.getStatements ().invalidate (query);
+			throw e;
+		}finally{
+			closeQuietly (rs);
+			release (pc);
+			recordCall (query, params, started, 1, rows);
+		}
+	}//end executeQueryAndReturnResult
+
+	/**
+	 * Method to execute a parameterized query and return whether it
+	 * produced at least one row (0 or 1, like executeQuery(String)).
+	 *
+	 * @param query the query string with '?' placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return 1 if the query returned a row, 0 otherwise
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int executeQuery (String query, Object... params) throws SQLException {
+		ConnectionPool.PooledConnection pc = acquire ();
+		ResultSet rs = null;
+		long started = this._metrics.start ();
+		long rows = -1;
+		try{
+			rs = prepare (pc, query, params).executeQuery ();
+			rows = rs.next() ? 1 : 0;
+			return (int) rows;
+		}catch (SQLException e){
+			pc.getStatements ().invalidate (query);
+			throw e;
+		}finally{
+			closeQuietly (rs);
+			release (pc);
+			recordCall (query, params, started, 1, rows);
+		}
+	}
+
+	/**
+	 * Method to read a single int, the first column of the first row, e.g.
+	 * a COUNT(*) or an id lookup.
+	 *
+	 * @param query the query string with '?' placeholders
+	 * @param defaultValue returned when there is no row or the value is NULL
+	 * @param params the values bound to the placeholders, in order
+	 * @return the value read
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public int queryForInt (String query, int defaultValue, Object... params) throws SQLException {
+		Integer value = queryForInteger (query, params);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Method to read a single long, the first column of the first row.
+	 *
+	 * @param query the query string with '?' placeholders
+	 * @param defaultValue returned when there is no row or the value is NULL
+	 * @param params the values bound to the placeholders, in order
+	 * @return the value read
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public long queryForLong (String query, long defaultValue, Object... params) throws SQLException {
+		Long value = queryForObject (query, rs -> {
+			long v = rs.getLong (1);
+			return rs.wasNull () ? null : Long.valueOf (v);
+		}, params);
+		return value == null ? defaultValue : value;
+	}
+
+	/**
+	 * Method to read a single nullable int, the first column of the first row.
+	 *
+	 * @param query the query string with '?' placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the value read, or null when there is no row or the value is NULL
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public Integer queryForInteger (String query, Object... params) throws SQLException {
+		return queryForObject (query, rs -> {
+			int v = rs.getInt (1);
+			return rs.wasNull () ? null : Integer.valueOf (v);
+		}, params);
+	}
+
+	/**
+	 * Method to read a single string, the first column of the first row.
+	 *
+	 * @param query the query string with '?' placeholders
+	 * @param params the values bound to the placeholders, in order
+	 * @return the value read, or null when there is no row or the value is NULL
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public String queryForString (String query, Object... params) throws SQLException {
+		return queryForObject (query, rs -> rs.getString (1), params);
+	}
+
+	/**
+	 * Method to map the first row of a query to an object.
+	 *
+	 * @param query the query string with '?' placeholders
+	 * @param mapper reads the row with typed getters
+	 * @param params the values bound to the placeholders, in order
+	 * @return the mapped row, or null when the query returned no row
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public <T> T queryForObject (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+		List<T> result = new ArrayList<T>(1);
+		mapRows (query, mapper, result, true, params);
+		return result.isEmpty () ? null : result.get (0);
+	}
+
+	/**
+	 * Method to map every row of a query to an object.
+	 *
+	 * @param query the query string with '?' placeholders
+	 * @param mapper reads one row with typed getters
+	 * @param params the values bound to the placeholders, in order
+	 * @return the mapped rows, in result order
+	 * @throws java.sql.SQLException when failed to execute the query
+	 */
+	public <T> List<T> queryForList (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+		List<T> result = new ArrayList<T>();
+		mapRows (query, mapper, result, false, params);
+		return result;
+	}
+
+	/**
+	 * Method to run a query on a cached statement and map its rows, or only
+	 * the first one, into a list.  The queryFor methods all read through
+	 * here, so the statement cache and the query metrics are handled in one
+	 * place.
+	 */
+	private <T> void mapRows (String query, RowMapper<T> mapper, List<T> out, boolean firstOnly, Object[] params) throws SQLException {
+		ConnectionPool.PooledConnection pc = acquire ();
+		ResultSet rs = null;
+		long started = this._metrics.start ();
+		long rows = -1;
+		try{
+			rs = prepare (pc, query, params).executeQuery ();
+			long count = 0;
+			while ((!firstOnly || count == 0) && rs.next ()){
+				out.add (mapper.map (rs));
+				++count;
+			}
+			rows = count;
+		}catch (SQLException e){
+			pc.getStatements ().invalidate (query);
+			throw e;
+		}finally{
+			closeQuietly (rs);
+			release (pc);
+			recordCall (query, params, started, 1, rows);
+		}
+	}
+
+	/**
+	 * Method to keep using one pooled connection on the calling thread until
+	 * unpinConnection() is called, e.g. to run a transaction or to read
+	 * currval() after nextval().  Calls may be nested.
+	 *
+	 * @return the pinned connection
+	 * @throws java.sql.SQLException when no connection could be borrowed
+	 */
+	public Connection pinConnection () throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pinned.get ();
+		if (pc == null){
+			pc = this._pool.borrow ();
+			this._pinned.set (pc);
+			this._pinDepth.set (1);
+		}else{
+			this._pinDepth.set (this._pinDepth.get () + 1);
+		}
+		return pc.getConnection ();
+	}
+
+	/**
+	 * Method to give the connection pinned by pinConnection() back to the
+	 * pool once the outermost pin is released.
+	 */
+	public void unpinConnection (){
+		ConnectionPool.PooledConnection pc = this._pinned.get ();
+		if (pc == null){
+			return;
+		}
+		int depth = this._pinDepth.get () - 1;
+		if (depth > 0){
+			this._pinDepth.set (depth);
+			return;
+		}
+		this._pinned.remove ();
+		this._pinDepth.remove ();
+		this._pool.release (pc);
+	}
+
+	/**
+	 * Method to add a plane with the next free id.
+	 *
+	 * @param make the make, 1 to 31 characters
+	 * @param model the model, 1 to 63 characters
+	 * @param age the age in years, greater than 0
+	 * @param seats the number of seats, 1 to 500
+	 * @return the id of the new plane
+	 * @throws java.sql.SQLException when the insert fails
+	 */
+	public int addPlane (String make, String model, int age, int seats) throws SQLException {
+		check (make != null && make.length () > 0 && make.length () < 32, "make must be 1 to 31 characters");
+		check (model != null && model.length () > 0 && model.length () < 64, "model must be 1 to 63 characters");
+		check (age > 0, "age must be greater than 0");
+		check (seats > 0 && seats <= 500, "seats must be between 1 and 500");
+		long started = this._metrics.beginOperation ();
+		long rows = -1;
+		try{
+			int id = this._planeIds.next ();
+			rows = executeUpdate (SQL_INSERT_PLANE, id, make, model, age, seats);
+			return id;
+		}finally{
+			this._metrics.endOperation ("add-plane", started, rows);
+		}
+	}
+
+	/**
+	 * Method to add a pilot with the next free id.
+	 *
+	 * @param name the full name, 1 to 127 characters
+	 * @param nationality the nationality, 1 to 24 characters
+	 * @return the id of the new pilot
+	 * @throws java.sql.SQLException when the insert fails
+	 */
+	public int addPilot (String name, String nationality) throws SQLException {
+		check (name != null && name.length () > 0 && name.length () < 128, "name must be 1 to 127 characters");
+		check (nationality != null && nationality.length () > 0 && nationality.length () <= 24, "nationality must be 1 to 24 characters");
+		long started = this._metrics.beginOperation ();
+		long rows = -1;
+		try{
+			int id = this._pilotIds.next ();
+			rows = executeUpdate (SQL_INSERT_PILOT, id, name, nationality);
+			return id;
+		}finally{
+			this._metrics.endOperation ("add-pilot", started, rows);
+		}
+	}
+
+	/**
+	 * Method to add a flight with the next free flight number.
+	 *
+	 * @param cost the cost, not negative
+	 * @param sold the seats already sold, not negative
+	 * @param stops the number of stops, not negative
+	 * @param departure the actual departure
+	 * @param arrival the actual arrival
+	 * @param arrivalAirport the arrival airport code, 5 characters
+	 * @param departureAirport the departure airport code, 5 characters
+	 * @return the number of the new flight
+	 * @throws java.sql.SQLException when the insert fails
+	 */
+	public int addFlight (int cost, int sold, int stops, LocalDateTime departure, LocalDateTime arrival,
+			String arrivalAirport, String departureAirport) throws SQLException {
+		checkFlight (cost, sold, stops, departure, arrival, arrivalAirport, departureAirport);
+		long started = this._metrics.beginOperation ();
+		long rows = -1;
+		try{
+			int fnum = this._flightNums.next ();
+			rows = executeUpdate (SQL_INSERT_FLIGHT, fnum, cost, sold, stops, Timestamp.valueOf (departure), Timestamp.valueOf (arrival),
+				arrivalAirport, departureAirport);
+			this._routes.invalidate ();
+			return fnum;
+		}finally{
+			this._metrics.endOperation ("add-flight", started, rows);
+		}
+	}
+
+	/**
+	 * Method to add a flight flown by a pilot and a plane, unless either of
+	 * them is already flying at that time.  The Flight and FlightInfo rows
+	 * are inserted in one transaction; the overlap is checked against the
+	 * interval trees of ScheduleConflicts with the dates as stored.
+	 *
+	 * @param cost the cost, not negative
+	 * @param sold the seats already sold, not negative
+	 * @param stops the number of stops, not negative
+	 * @param departure the actual departure
+	 * @param arrival the actual arrival
+	 * @param arrivalAirport the arrival airport code, 5 characters
+	 * @param departureAirport the departure airport code, 5 characters
+	 * @param pilotId the Pilot.id
+	 * @param planeId the Plane.id
+	 * @return the number of the new flight
+	 * @throws java.sql.SQLException when an insert fails, e.g. the pilot or plane does not exist, or with
+	 *         SQLSTATE 23P01 when the pilot or plane is already flying then
+	 * @throws IllegalArgumentException when an argument is out of range
+	 */
+	public int addFlight (int cost, int sold, int stops, LocalDateTime departure, LocalDateTime arrival,
+			String arrivalAirport, String departureAirport, int pilotId, int planeId) throws SQLException {
+		checkFlight (cost, sold, stops, departure, arrival, arrivalAirport, departureAirport);
+		Connection conn = pinConnection ();
+		long started = this._metrics.beginOperation ();
+		long rows = -1;
+		try{
+			conn.setAutoCommit (false);
+			try{
+				int fnum = this._flightNums.next ();
+				int[] stored = queryForObject (SQL_INSERT_FLIGHT + " RETURNING actual_departure_date, actual_arrival_date",
+					rs -> new int[]{RouteSearch.toMinutes (rs.getTimestamp (1).toLocalDateTime ()), RouteSearch.toMinutes (rs.getTimestamp (2).toLocalDateTime ())},
+					fnum, cost, sold, stops, Timestamp.valueOf (departure), Timestamp.valueOf (arrival), arrivalAirport, departureAirport);
+				this._schedule.assign (fnum, pilotId, planeId, stored[0], stored[1], () -> {
+					executeUpdate (SQL_INSERT_FLIGHT_INFO, this._flightInfoIds.next (), fnum, pilotId, planeId);
+					conn.commit ();
+				});
+				this._routes.invalidate ();
+				rows = 2;
+				return fnum;
+			}catch (SQLException | RuntimeException e){
+				conn.rollback ();
+				throw e;
+			}finally{
+				conn.setAutoCommit (true);
+			}
+		}finally{
+			unpinConnection ();
+			this._metrics.endOperation ("add-flight", started, rows);
+		}
+	}
+
+	private static void checkFlight (int cost, int sold, int stops, LocalDateTime departure, LocalDateTime arrival,
+			String arrivalAirport, String departureAirport){
+		check (cost >= 0, "cost must not be negative");
+		check (sold >= 0, "seats sold must not be negative");
+		check (stops >= 0, "stops must not be negative");
+		check (departure != null && arrival != null, "departure and arrival are required");
+		check (arrivalAirport != null && arrivalAirport.length () == 5, "arrival airport must be exactly 5 characters");
+		check (departureAirport != null && departureAirport.length () == 5, "departure airport must be exactly 5 characters");
+	}
+
+	/**
+	 * Method to add a technician with the next free id.
+	 *
+	 * @param name the full name, 1 to 128 characters
+	 * @return the id of the new technician
+	 * @throws java.sql.SQLException when the insert fails
+	 */
+	public int addTechnician (String name) throws SQLException {
+		check (name != null && name.length () > 0 && name.length () <= 128, "name must be 1 to 128 characters");
+		long started = this._metrics.beginOperation ();
+		long rows = -1;
+		try{
+			int id = this._technicianIds.next ();
+			rows = executeUpdate (SQL_INSERT_TECHNICIAN, id, name);
+			return id;
+		}finally{
+			this._metrics.endOperation ("add-technician", started, rows);
+		}
+	}
+
+	/**
+	 * Method to count the reservations of a flight with a given status,
+	 * from the reservation snapshot unless -Ddbproject.snapshot=false.
+	 *
+	 * @param flightNum the Flight.fnum
+	 * @param status W, C or R, either case
+	 * @return the number of reservations
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public int countPassengers (int flightNum, char status) throws SQLException {
+		char s = Character.toUpperCase (status);
+		check (s == 'W' || s == 'C' || s == 'R', "status must be W, C or R");
+		long started = this._metrics.beginOperation ();
+		long rows = -1;
+		try{
+			int count = readOnly (() -> ReservationSnapshot.ENABLED ? this._reservations.count (flightNum, s)
+				: queryForInt (SQL_PASSENGERS_WITH_STATUS, 0, String.valueOf (s), flightNum));
+			rows = 1;
+			return count;
+		}finally{
+			this._metrics.endOperation ("passengers", started, rows);
+		}
+	}
+
+	private static void check (boolean valid, String message){
+		if (!valid){
+			throw new IllegalArgumentException (message);
+		}
+	}
+
+	/**
+	 * Method to book a flight for a customer in a single round trip.  The
+	 * database decides atomically whether a seat is left: if so num_sold is
+	 * incremented and the reservation is 'R', otherwise it is waitlisted 'W'.
+	 *
+	 * @param customerId the Customer.id
+	 * @param flightNum the Flight.fnum
+	 * @return the reservation that was created
+	 * @throws java.sql.SQLException when the customer or flight does not exist
+	 */
+	public Booking bookFlight (int customerId, int flightNum) throws SQLException {
+		if (SeatMap.ENABLED){
+			return this._seatMap.book (customerId, flightNum, 0);
+		}
+		long started = this._metrics.beginOperation ();
+		long rows = -1;
+		try{
+			final int rnum = this._reservationNums.next ();
+			Booking booking = queryForObject (SQL_BOOK_FLIGHT, rs -> new Booking (rnum, customerId, flightNum, rs.getString (2).charAt (0)),
+				flightNum, flightNum, rnum, customerId, flightNum);
+			this._reservations.update (rnum, customerId, flightNum, booking.getStatus ());
+			if (booking.isReserved ()){
+				this._seatCache.adjust (flightNum, -1);
+			}else{
+				this._seatCache.markFull (flightNum);
+			}
+			rows = 1;
+			return booking;
+		}finally{
+			this._metrics.endOperation ("book", started, rows);
+		}
+	}
+
+	/**
+	 * Method to get the number of available seats on a flight (plane
+	 * capacity minus seats sold), served from the seat cache when possible.
+	 *
+	 * @param flightNum the Flight.fnum
+	 * @return the available seats, or null if no plane is assigned to the flight
+	 * @throws java.sql.SQLException when the lookup fails
+	 */
+	public Integer getSeatsAvailable (int flightNum) throws SQLException {
+		long started = this._metrics.beginOperation ();
+		long rows = -1;
+		try{
+			Integer seats = this._seatCache.getOrLoad (this, flightNum);
+			rows = 1;
+			return seats;
+		}finally{
+			this._metrics.endOperation ("seats", started, rows);
+		}
+	}
+
+	/**
+	 * @return the precomputed repair reports
+	 */
+	public RepairStats getRepairStats (){
+		return this._repairStats;
+	}
+
+	/**
+	 * @return cancellation and waitlist promotion
+	 */
+	public Waitlist getWaitlist (){
+		return this._waitlist;
+	}
+
+	/**
+	 * @return the in-memory copy of Reservation
+	 */
+	public ReservationSnapshot getReservationSnapshot (){
+		return this._reservations;
+	}
+
+	/**
+	 * @return the seat assignment of the flights
+	 */
+	public SeatMap getSeatMap (){
+		return this._seatMap;
+	}
+
+	/**
+	 * @return the scheduling conflict checks of pilots and planes
+	 */
+	public ScheduleConflicts getSchedule (){
+		return this._schedule;
+	}
+
+	/**
+	 * @return the itinerary search over the flights
+	 */
+	public RouteSearch getRouteSearch (){
+		return this._routes;
+	}
+
+	/**
+	 * @return the archive of reservations of departed flights
+	 */
+	public ReservationArchive getArchive (){
+		return this._archive;
+	}
+
+	/**
+	 * @return the cache of available seats per flight
+	 */
+	public SeatCache getSeatCache (){
+		return this._seatCache;
+	}
+
+	/**
+	 * @return the allocator for Reservation.rnum
+	 */
+	public IdAllocator getReservationNums (){
+		return this._reservationNums;
+	}
+
+	/**
+	 * @return the latency and round trip counters of the database calls
+	 */
+	public QueryMetrics getMetrics (){
+		return this._metrics;
+	}
+
+	/**
+	 * @return the read-only replica, null unless -Ddbproject.replica is set
+	 */
+	public ReplicaRouter getReplica (){
+		return this._replica;
+	}
+
+	/**
+	 * @return the slow query log, null unless -Ddbproject.slowlog.ms is set
+	 */
+	public SlowQueryLog getSlowLog (){
+		return this._slowLog;
+	}
+
+	/**
+	 * @return the connection pool, e.g. to read its wait time metrics
+	 */
+	public ConnectionPool getPool (){
+		return this._pool;
+	}
+
+	/**
+	 * Method to get the connection for the next statement: a replica
+	 * connection inside readOnly() while the replica is usable and the
+	 * thread is not in a transaction, else the pinned one if the thread has
+	 * pinned a connection, a freshly borrowed one otherwise.
+	 */
+	private ConnectionPool.PooledConnection acquire () throws SQLException {
+		ConnectionPool.PooledConnection pc = this._pinned.get ();
+		if (this._replica != null && Boolean.TRUE.equals (this._readOnly.get ()) && (pc == null || pc.getConnection ().getAutoCommit ())){
+			ConnectionPool.PooledConnection replica = this._replica.borrow ();
+			if (replica != null){
+				return replica;
+			}
+		}
+		return pc != null ? pc : this._pool.borrow ();
+	}
+
+	/**
+	 * Method to return a connection obtained from acquire() to its pool
+	 * unless it is pinned to the thread.
+	 */
+	private void release (ConnectionPool.PooledConnection pc){
+		if (pc != this._pinned.get ()){
+			pc.getPool ().release (pc);
+		}
+	}
+
+	/**
+	 * An operation that only reads, see readOnly().
+	 */
+	public interface ReadOperation<T>{
+		T run () throws SQLException;
+	}
+
+	/**
+	 * Method to run an operation that only reads on the replica when one
+	 * is configured and current.  If the replica fails under it, the
+	 * replica is taken out of use and the operation runs again on the
+	 * primary.  Without a replica the operation simply runs.  Since it
+	 * may run twice, the operation must only read: rows meant for a
+	 * printer are collected first and printed once this returns.
+	 *
+	 * @param operation the reads to run
+	 * @return what the operation returned
+	 * @throws java.sql.SQLException when the operation fails on the primary
+	 */
+	public <T> T readOnly (ReadOperation<T> operation) throws SQLException {
+		if (this._replica == null || this._readOnly.get () != null){
+			return operation.run ();
+		}
+		boolean onReplica = this._replica.isUsable ();
+		this._readOnly.set (Boolean.TRUE);
+		try{
+			return operation.run ();
+		}catch (SQLException e){
+			if (!onReplica || !isConnectionFailure (e)){
+				throw e;
+			}
+			this._replica.markDown (e);
+		}finally{
+			this._readOnly.remove ();
+		}
+		return operation.run ();
+	}
+
 	/**
-	 * Method to execute an update SQL statement.  Update SQL instructions
-	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
-	 * 
-	 * @param sql the input SQL string
-	 * @throws java.sql.SQLException when update failed
-	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
+	 * Method to run reads on the primary even inside readOnly(), e.g. the
+	 * loads of the caches this process also changes as it books, which a
+	 * lagging replica would fill with data older than those changes.
+	 *
+	 * @param operation the reads to run
+	 * @return what the operation returned
+	 * @throws java.sql.SQLException when the operation fails
+	 */
+	public <T> T onPrimary (ReadOperation<T> operation) throws SQLException {
+		Boolean previous = this._readOnly.get ();
+		this._readOnly.set (Boolean.FALSE);
+		try{
+			return operation.run ();
+		}finally{
+			if (previous == null){
+				this._readOnly.remove ();
+			}else{
+				this._readOnly.set (previous);
+			}
+		}
+	}
 
-		// issues the update instruction
-		stmt.executeUpdate (sql);
+	/**
+	 * Method to tell errors of the server or the connection (lost
+	 * connection, shutdown, query cancelled by recovery on a replica) from
+	 * errors of the statement.
+	 */
+	static boolean isConnectionFailure (SQLException e){
+		String state = e.getSQLState ();
+		return state == null || state.startsWith ("08") || state.startsWith ("57P") || state.equals ("40001");
+	}
 
-		// close the instruction
-	    stmt.close ();
-	}//end executeUpdate
+	/**
+	 * Method to look up the cached prepared statement for the SQL text and
+	 * bind the parameters to it.
+	 */
+	private static PreparedStatement prepare (ConnectionPool.PooledConnection pc, String sql, Object[] params) throws SQLException {
+		PreparedStatement stmt = pc.getStatements ().prepare (sql);
+		stmt.clearParameters ();
+		for (int i = 0; i < params.length; ++i){
+			stmt.setObject (i + 1, params[i]);
+		}
+		return stmt;
+	}
 
 	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
-	 * 
-	 * @param query the input query string
-	 * @return the number of rows returned
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * Method to read a whole result set into a list of records.
 	 */
-	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
+	private static List<List<String>> readResult (ResultSet rs) throws SQLException {
+		int numCol = rs.getMetaData ().getColumnCount ();
+		List<List<String>> result = new ArrayList<List<String>>();
 		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
+			List<String> record = new ArrayList<String>(numCol);
 			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
+				record.add(rs.getString (i));
+			result.add(record);
 		}//end while
-		stmt.close ();
-		return rowCount;
+		return result;
 	}
-	
-	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the results as
-	 * a list of records. Each record in turn is a list of attribute values
-	 * 
-	 * @param query the input query string
-	 * @return the query result as a list of records
-	 * @throws java.sql.SQLException when failed to execute the query
-	 */
-	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
-	}//end executeQueryAndReturnResult
-	
+
 	/**
-	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
-	 * method issues the query to the DBMS and returns the number of results
-	 * 
-	 * @param query the input query string
-	 * @return the number of rows returned
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * Method to count a finished database call, and log it if it was slow.
+	 *
+	 * @param sql the statement text
+	 * @param params the values bound to its placeholders
+	 * @param started the value QueryMetrics.start() returned
+	 * @param roundTrips the round trips the call made
+	 * @param rows the rows returned or changed, negative if the call failed
 	 */
-	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
-
-		int rowCount = 0;
+	private void recordCall (String sql, Object[] params, long started, long roundTrips, long rows){
+		this._metrics.record (sql, started, roundTrips, rows);
+		if (this._slowLog != null){
+			this._slowLog.check (sql, params, System.nanoTime () - started, rows);
+		}
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	private static void closeQuietly (ResultSet rs){
+		if (rs == null){
+			return;
+		}
+		try{
+			rs.close ();
+		}catch (SQLException e){
+			// ignored.
+		}
 	}
-	
+
 	/**
-	 * Method to fetch the last value from sequence. This
-	 * method issues the query to the DBMS and returns the current 
-	 * value of sequence used for autogenerated keys
-	 * 
-	 * @param sequence name of the DB sequence
-	 * @return current value of a sequence
-	 * @throws java.sql.SQLException when failed to execute the query
+	 * Method to write the query statistics in the Prometheus text format to
+	 * the file named by -Ddbproject.metrics.file, if it is set.
 	 */
-	
-	public int getCurrSeqVal(String sequence) throws SQLException {
-		Statement stmt = this._connection.createStatement ();
-		
-		ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-		if (rs.next()) return rs.getInt(1);
-		return -1;
+	public void dumpMetrics (){
+		String path = System.getProperty ("dbproject.metrics.file");
+		if (path == null){
+			return;
+		}
+		try{
+			Writer out = new BufferedWriter (new OutputStreamWriter (new java.io.FileOutputStream (path), StandardCharsets.UTF_8));
+			try{
+				this._metrics.writePrometheus (out, this._pool);
+			}finally{
+				out.close ();
+			}
+		}catch (IOException e){
+			System.err.println ("Could not write the query statistics to " + path + ": " + e.getMessage ());
+		}
 	}
 
 	/**
-	 * Method to close the physical connection if it is open.
+	 * Method to close the connection pool if it is open.
 	 */
 	public void cleanup(){
-		try{
-			if (this._connection != null){
-				this._connection.close ();
-			}//end if
-		}catch (SQLException e){
-	         // ignored.
-		}//end try
+		this._seatMap.close ();
+		if (this._slowLog != null){
+			this._slowLog.close ();
+		}
+		if (this._replica != null){
+			this._replica.close ();
+		}
+		if (this._pool != null){
+			this._pool.close ();
+		}//end if
 	}//end cleanup
 
 	/**
@@ -215,11 +1267,14 @@ public class DBproject{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length < 3) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + DBproject.class.getName () +
-		            " <dbname> <port> <user>");
-			return;
+		            " <dbname> <port> <user> [<operation> [<key>=<value> ...] | --script <file>|- [--stop-on-error]]");
+			System.exit (2);
+		}//end if
+		if (args.length > 3) {
+			System.exit (runHeadless (args));
 		}//end if
 		
 		DBproject esql = null;
@@ -256,7 +1311,16 @@ public class DBproject{
 				System.out.println("7. List total number of repairs per plane in descending order");
 				System.out.println("8. List total number of repairs per year in ascending order");
 				System.out.println("9. Find total number of passengers with a given status");
-				System.out.println("10. < EXIT");
+				System.out.println("10. Bulk import reservations from a file");
+				System.out.println("11. Set report output format and destination");
+				System.out.println("12. Show query statistics");
+				System.out.println("13. Cancel a reservation");
+				System.out.println("14. Promote waitlisted passengers on all flights");
+				System.out.println("15. List passengers per status for every flight");
+				System.out.println("16. Search flights between two airports");
+				System.out.println("17. Archive reservations of departed flights");
+				System.out.println("18. List pilots and planes booked on overlapping flights");
+				System.out.println("19. < EXIT");
 				
 				switch (readChoice()){
 					case 1: AddPlane(esql); break;
@@ -268,7 +1332,16 @@ public class DBproject{
 					case 7: ListsTotalNumberOfRepairsPerPlane(esql); break;
 					case 8: ListTotalNumberOfRepairsPerYear(esql); break;
 					case 9: FindPassengersCountWithStatus(esql); break;
-					case 10: keepon = false; break;
+					case 10: BulkImportReservations(esql); break;
+					case 11: SetReportOutput(esql); break;
+					case 12: ShowQueryStatistics(esql); break;
+					case 13: CancelReservation(esql); break;
+					case 14: PromoteWaitlist(esql); break;
+					case 15: ListPassengerStatusPerFlight(esql); break;
+					case 16: SearchRoutes(esql); break;
+					case 17: ArchiveReservations(esql); break;
+					case 18: ListScheduleConflicts(esql); break;
+					case 19: keepon = false; break;
 				}
 			}
 		}catch(Exception e){
@@ -276,6 +1349,8 @@ public class DBproject{
 		}finally{
 			try{
 				if(esql != null) {
+					System.out.println(esql.getPool ().getStats ());
+					esql.dumpMetrics ();
 					System.out.print("Disconnecting from database...");
 					esql.cleanup ();
 					System.out.println("Done\n\nBye !");
@@ -286,6 +1361,80 @@ public class DBproject{
 		}
 	}
 
+	/**
+	 * Method to run the operations given on the command line or in a script
+	 * without the menu (see CommandRunner).  Standard out carries only the
+	 * JSON result lines; everything else is written to standard error.
+	 *
+	 * @param args <dbname> <port> <user> followed by an operation or --script
+	 * @return the exit code: 0 all operations succeeded, 1 some failed,
+	 *         2 bad arguments, 3 the script or the results could not be read or written
+	 */
+	static int runHeadless (String[] args) {
+		PrintStream results = System.out;
+		System.setOut (System.err);
+		try {
+			Class.forName ("org.postgresql.Driver");
+		}catch (ClassNotFoundException e){
+			System.err.println ("Where is your PostgreSQL JDBC Driver? " + "Include in your library path!");
+			return 2;
+		}
+
+		DBproject esql = null;
+		try{
+			esql = DBproject.connect (args[0], args[1], args[2], "");
+			Writer out = new BufferedWriter (new OutputStreamWriter (results, StandardCharsets.UTF_8), 1 << 16);
+			CommandRunner runner = new CommandRunner (esql, out);
+			long start = System.currentTimeMillis ();
+			// one session for the whole run
+			esql.pinConnection ();
+			try{
+				if (args[3].equals ("--script")){
+					if (args.length < 5){
+						System.err.println ("--script needs a file, or - for standard input");
+						return 2;
+					}
+					boolean stopOnError = args.length > 5 && args[5].equals ("--stop-on-error");
+					BufferedReader script = args[4].equals ("-") ? in
+						: new BufferedReader (new InputStreamReader (new FileInputStream (args[4]), StandardCharsets.UTF_8), 1 << 16);
+					try{
+						runner.runScript (script, stopOnError);
+					}finally{
+						if (script != in){
+							script.close ();
+						}
+					}
+				}else{
+					Map<String, String> params;
+					try{
+						params = CommandRunner.parseArgs (Arrays.asList (args).subList (4, args.length));
+					}catch (IllegalArgumentException e){
+						System.err.println (e.getMessage ());
+						return 2;
+					}
+					runner.run (args[3], params);
+					out.flush ();
+				}
+			}finally{
+				esql.unpinConnection ();
+			}
+			System.err.println (String.format ("%d operations, %d failed, %d ms", runner.getCount (), runner.getFailures (),
+				System.currentTimeMillis () - start));
+			esql.dumpMetrics ();
+			return runner.getFailures () == 0 ? 0 : 1;
+		}catch (IOException e){
+			System.err.println (e.getMessage ());
+			return 3;
+		}catch (SQLException e){
+			System.err.println (e.getMessage ());
+			return 1;
+		}finally{
+			if (esql != null){
+				esql.cleanup ();
+			}
+		}
+	}
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -305,21 +1454,6 @@ public class DBproject{
 	public static void AddPlane(DBproject esql) {//1
             Scanner read = new Scanner(System.in);
 	    try{ 
-                int max = 0;
-                String query = "INSERT INTO Plane (id, make, model, age, seats) VALUES (";
-                String findmax = "(SELECT Max(Plane.id)  FROM Plane)";
-                List<List<String>> maxResult = null;
-                try{
-                    maxResult = esql.executeQueryAndReturnResult(findmax);
-                }catch(SQLException e){
-                System.err.println(e.getMessage());
-                }
-                for(List<String> it : maxResult){
-                    for(String st : it){
-                        max = Integer.parseInt(st);
-                    }
-                }
-                max++;
                 System.out.print("\tEnter make: $");
                 String make2;
 		do{    
@@ -382,9 +1516,8 @@ public class DBproject{
 		    }
 		}while (true);
 
-                query += max + ", \'" + make2 + "\', \'" + model2 + "\' , " + age2 + ", " + userSeats + ")";
                 try{
-                    int num = esql.executeQuery(query);
+                    esql.addPlane(make2, model2, Integer.parseInt(age2), Integer.parseInt(userSeats));
                  }catch(SQLException e){
                  System.err.println(e.getMessage());
                  }
@@ -395,16 +1528,6 @@ public class DBproject{
 
 	public static void AddPilot(DBproject esql) {//2
 	    try{
-		int max = 0;
-		String query = "INSERT INTO Pilot (id, fullname, nationality) VALUES (";
-		String findmax = "(SELECT Max(Pilot.id) FROM Pilot)";
-                List<List<String>> maxResult = esql.executeQueryAndReturnResult(findmax);
-                for(List<String> it : maxResult){
-                    for(String st : it){
-                        max = Integer.parseInt(st);
-                    }
-                }
-                max++;
 
 		System.out.print("\tEnter pilot name: $");
 		String name;
@@ -437,9 +1560,7 @@ public class DBproject{
 		}while (true);
 	
 
-		query += max + ", \'" + name + "\', \'" + nationality + "\' )";
-
-		int num = esql.executeQuery(query);
+		esql.addPilot(name, nationality);
 	    }catch(Exception e){
 	   System.err.println (e.getMessage());
 	   }
@@ -449,21 +1570,6 @@ public class DBproject{
 		// Given a pilot, plane and flight, adds a flight in the DB
 	Scanner read = new Scanner(System.in);
 	try{ 
-                String query = "INSERT INTO Flight (fnum, cost, num_sold, num_stops, actual_departure_date, actual_arrival_date, arrival_airport, departure_airport) VALUES (";
-                int max = 0;
-                String findmax = "(SELECT Max(Flight.fnum)  FROM Flight)";
-                List<List<String>> maxResult = null;
-                try{
-                    maxResult = esql.executeQueryAndReturnResult(findmax);
-                }catch(SQLException e){
-                System.err.println(e.getMessage());
-                }
-                for(List<String> it : maxResult){
-                    for(String st : it){
-                        max = Integer.parseInt(st);
-                    }
-                }
-                max++;
                 
 		System.out.print("\tEnter Flight cost: $");
                 String userCost;
@@ -518,13 +1624,12 @@ public class DBproject{
                 System.out.print("\tEnter actual departure date in the following format yyyy-MM-dd HH:MM: $");
                 DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
 		String departDate;
-                String result;
+                LocalDateTime result;
 		
                 do{
                     try{
                         departDate = read.nextLine();
-                        LocalDateTime dateTime = LocalDateTime.parse(departDate, formatter);
-			result = dateTime.format(formatter);
+                        result = LocalDateTime.parse(departDate, formatter);
 
                         break;
                     }catch (Exception e) {
@@ -536,12 +1641,11 @@ public class DBproject{
 
                 System.out.print("\tEnter actual arrival date in the following format yyyy-MM-dd HH:MM: $");
                 String arriveDate;
-		String arrivalResult;
+		LocalDateTime arrivalResult;
                 do{
                     try{
                         arriveDate = read.nextLine();
-                        LocalDateTime dateTime = LocalDateTime.parse(arriveDate, formatter);
-			arrivalResult = dateTime.format(formatter);
+                        arrivalResult = LocalDateTime.parse(arriveDate, formatter);
 			
                         break;
                     }catch (Exception e) {
@@ -582,9 +1686,31 @@ public class DBproject{
                     }
                 }while (true);
 
-                query += max + ", " + userCost + ", " + userSold + ", " + userStops + ", \'" + result + "\', \'" + arrivalResult + "\', " + "\'" + arriveAirport + "\'" + ", " + "\'" + departAirport + "\')";
-                //System.out.print(query);
-                int num = esql.executeQuery(query);
+                System.out.print("\tEnter the pilot id and plane id, separated by a space, or leave empty to assign them later: $");
+                int[] crew = null;
+
+                do{
+                    try{
+                        String line = read.nextLine().trim();
+                        if(!line.isEmpty()) {
+                            String[] ids = line.split("\\s+");
+                            crew = new int[]{Integer.parseInt(ids[0]), Integer.parseInt(ids[1])};
+                        }
+                        break;
+                    }catch (Exception e) {
+                            System.out.println("Your input is invalid! Try Again");
+                            continue;
+                    }
+                }while (true);
+
+                if(crew == null) {
+                    esql.addFlight(Integer.parseInt(userCost), Integer.parseInt(userSold), Integer.parseInt(userStops),
+                        result, arrivalResult, arriveAirport, departAirport);
+                }else{
+                    int fnum = esql.addFlight(Integer.parseInt(userCost), Integer.parseInt(userSold), Integer.parseInt(userStops),
+                        result, arrivalResult, arriveAirport, departAirport, crew[0], crew[1]);
+                    System.out.println("\tAdded flight " + fnum);
+                }
             }catch(Exception e){
            System.err.println (e.getMessage());
            }
@@ -592,16 +1718,6 @@ public class DBproject{
 
 	public static void AddTechnician(DBproject esql) {//4
 	    try{
-		int max = 0;
-		String query = "INSERT INTO Technician (id, full_name) VALUES (";
-		String findmax = "(SELECT Max(Technician.id) FROM Technician)";
-                List<List<String>> maxResult = esql.executeQueryAndReturnResult(findmax);
-                for(List<String> it : maxResult){
-                    for(String st : it){
-                        max = Integer.parseInt(st);
-                    }
-                }
-                max++;
 
 		System.out.print("\tEnter Technician full name: $");
 		String name;
@@ -619,9 +1735,7 @@ public class DBproject{
 		}while (true);
 
 
-		query += max + ", \'" + name + "\' )";
-
-		int num = esql.executeQuery(query);
+		esql.addTechnician(name);
 	    }catch(Exception e){
 	   System.err.println (e.getMessage());
 	   }
@@ -631,28 +1745,17 @@ public class DBproject{
 		// Given a customer and a flight that he/she wants to book, add a reservation to the 
 	try{
                System.out.print("\tEnter Flight Number: $");
-               String fl_id = "";
-               String cus_id = "";
+               int fl_id = 0;
+               int cus_id = 0;
                int bol = 0;
                do{
                     try{
-                        List<List<String>> flightQuery = null;
-                        String findFlight = "SELECT cost FROM Flight WHERE fnum = ";
-                        fl_id = in.readLine();
-                        findFlight += fl_id + ";";
+                        fl_id = Integer.parseInt(in.readLine());
                         try{
-                            flightQuery = esql.executeQueryAndReturnResult(findFlight);
+                            bol = esql.queryForInt(SQL_FLIGHT_COST, 0, fl_id);
                         }catch(SQLException e){
                         System.err.println(e.getMessage());
                         }
-                        for(List<String> it : flightQuery){
-                            for(String st : it){
-                                bol = Integer.parseInt(st);
-                                //System.out.print("this is bol!!");
-                                //System.out.print(bol);
-                  
-                            }
-                         }
                         if(bol == 0){
                             throw new RuntimeException();
                         }
@@ -666,22 +1769,13 @@ public class DBproject{
                char c = ' ';
                do{
                     try{
-                        List<List<String>> cusQuery = null;
-                        String findCus = "SELECT gtype FROM Customer WHERE id = ";
-                        cus_id = in.readLine();
-                        findCus += cus_id + ";";
+                        cus_id = Integer.parseInt(in.readLine());
                         try{
-                            cusQuery = esql.executeQueryAndReturnResult(findCus);
+                            String gender = esql.queryForString(SQL_CUSTOMER_GENDER, cus_id);
+                            c = gender == null ? ' ' : gender.charAt(0);
                         }catch(SQLException e){
                         System.err.println(e.getMessage());
                         }
-                        for(List<String> it : cusQuery){
-                            for(String st : it){
-                                c = st.charAt(0);
-                                //System.out.println("this is gender!");
-                                //System.out.println(c);
-                            }
-                         }
                         int flag = 0;
                         if(c == 'M' || c == 'F'){
                             flag = 1;
@@ -696,60 +1790,8 @@ public class DBproject{
                     }
                 }while(true);
                
-               String query = "SELECT SUM(pl.seats - z.num_sold) AS seats_available FROM (SELECT * FROM Flight f, FlightInfo fl WHERE f.fnum = fl.flight_id AND f.fnum = " + fl_id + ")AS z, Plane pl WHERE z.plane_id = pl.id;";
-               List<List<String>> query_out = esql.executeQueryAndReturnResult(query);
-               int seats_avail = 0;
-               for(List<String> it : query_out){
-                   for(String st : it){
-                       seats_avail = Integer.parseInt(st);
-                   }
-               }
-               //System.out.print("this is seats_avail");
-               //System.out.print(seats_avail);
-               String findmax = "(SELECT Max(Reservation.rnum)  FROM Reservation)";
-               List<List<String>> maxResult = esql.executeQueryAndReturnResult(findmax);
-               int max = 0;
-               for(List<String> it : maxResult){
-                   for(String st : it){
-                       max = Integer.parseInt(st);
-                   }
-               }
-               max++;
-
-               if(seats_avail > 0){
-                   String sold_q = "SELECT num_sold FROM Flight WHERE Flight.fnum = " + fl_id + ";";
-                   List<List<String>> new_sold = esql.executeQueryAndReturnResult(sold_q);
-                   int seats_act = 0;
-                   for(List<String> it : new_sold ){
-                       for(String st : it){
-                           seats_act = Integer.parseInt(st);
-                       }
-                   }
-                   seats_act++;
-                   //System.out.print(seats_act);
-                   String updateQ = "UPDATE Flight SET num_sold = num_sold + 1 WHERE fnum = " + fl_id + ";";
-                   String makeres = "INSERT INTO Reservation(rnum, cid, fid, status) VALUES(" + max + ", " + cus_id + ", " + fl_id + ", \'R\');";
-                   try{
-                       int wr = esql.executeQuery(updateQ);
-                   }catch(SQLException e){
-                    System.err.println(e.getMessage());
-                    }
-                   try{
-                       int mr = esql.executeQuery(makeres);
-                   }catch(SQLException e){
-                    System.err.println(e.getMessage());
-                    }
-                   //String updateQ = "UPDATE Flight SET num_sold = 1 WHERE fnum = 12";
-                   //wr = esql.executeQuery(makeres);
-               }
-               //if(seats_avail > 0){
-                   //String makeres = "INSERT INTO Reservation(rnum, cid, fid, status) VALUES(" + max + ", " + cus_id + ", " + fl_id + ", \'R\');";
-                   //int mr = esql.executeQuery(makeres);
-               //}
-               else{
-                   String makeres = "INSERT INTO Reservation(rnum, cid, fid, status) VALUES(" + max + ", " + cus_id + ", " + fl_id + ", \'W\'";
-                   int rows4wait = esql.executeQuery(makeres);
-               }
+               Booking booking = esql.bookFlight(cus_id, fl_id);
+               System.out.println("\t" + booking);
 
            }catch(Exception e){
            System.err.println(e.getMessage());
@@ -759,30 +1801,19 @@ public class DBproject{
 	public static void ListNumberOfAvailableSeats(DBproject esql) {//6
 		// For flight number and date, find the number of availalbe seats (i.e. total plane capacity minus booked seats )
 		Scanner read = new Scanner(System.in);
-                String fl_id = "";
+                int fl_id = 0;
                int bol = 0;
             try{
                 System.out.print("\tEnter a flight number: $");
 
                 do{
                     try{
-                        List<List<String>> flightQuery = null;
-                        String findFlight = "SELECT cost FROM Flight WHERE fnum = ";
-                        fl_id = in.readLine();
-                        findFlight += fl_id + ";";
+                        fl_id = Integer.parseInt(in.readLine());
                         try{
-                            flightQuery = esql.executeQueryAndReturnResult(findFlight);
+                            bol = esql.queryForInt(SQL_FLIGHT_COST, 0, fl_id);
                         }catch(SQLException e){
                         System.err.println(e.getMessage());
                         }
-                        for(List<String> it : flightQuery){
-                            for(String st : it){
-                                bol = Integer.parseInt(st);
-                                //System.out.print("this is bol!!");
-                                //System.out.print(bol);
-
-                            }
-                         }
                         if(bol == 0){
                             throw new RuntimeException();
                         }
@@ -797,8 +1828,11 @@ public class DBproject{
 		System.out.print("\tEnter a date following the format YYYY-MM-DD: $");
 		String userDate = in.readLine();
 
-		String query = "SELECT SUM(pl.seats - z.num_sold) AS seats_available FROM (SELECT * FROM Flight f, FlightInfo fl WHERE f.fnum = fl.flight_id AND f.fnum = \'" + fl_id + "\')" + "AS z, Plane pl WHERE z.plane_id = pl.id;";
-		int num = esql.executeQueryAndPrintResult(query);
+		Integer seats = esql.getSeatsAvailable(fl_id);
+		ResultPrinter printer = esql.openPrinter();
+		printer.begin(new String[]{"seats_available"}, new boolean[]{true});
+		printer.row(new String[]{seats == null ? null : seats.toString()});
+		finishPrinter(printer);
 
 		
 	    }catch(Exception e){
@@ -809,8 +1843,9 @@ public class DBproject{
 	public static void ListsTotalNumberOfRepairsPerPlane(DBproject esql) {//7
 		// Count number of repairs per planes and list them in descending order
 	    try{
-		String query = "(SELECT P.id, COUNT(R.rid) FROM Plane P, Repairs R Where P.id = R.plane_id GROUP BY P.id) ORDER BY COUNT(R.rid) DESC";
-		int num = esql.executeQueryAndPrintResult(query); 
+		ResultPrinter printer = esql.openPrinter();
+		esql.getRepairStats().printPerPlane(printer);
+		finishPrinter(printer);
 	    }catch(Exception e){
 	   System.err.println(e.getMessage());
 	   }
@@ -819,8 +1854,9 @@ public class DBproject{
 	public static void ListTotalNumberOfRepairsPerYear(DBproject esql) {//8
 		// Count repairs per year and list them in ascending order
 	    try{
-		String query = "SELECT EXTRACT(YEAR FROM repair_date), COUNT(*) FROM REPAIRS GROUP BY (EXTRACT(YEAR FROM repair_date)) ORDER BY COUNT(*) ASC";
-		int num = esql.executeQueryAndPrintResult(query); 
+		ResultPrinter printer = esql.openPrinter();
+		esql.getRepairStats().printPerYear(printer);
+		finishPrinter(printer);
 	    }catch(Exception e){
 	   System.err.println(e.getMessage());
 	   }
@@ -832,16 +1868,14 @@ public class DBproject{
 	    Scanner read = new Scanner(System.in);
 	    try{
 		System.out.print("\tEnter a flight number: $");
-		String flightNum;
+		int flightNum;
 
 		do{
 		    try{
 			int flightQuery = 0;
-			String findFlight = "SELECT fnum FROM Flight WHERE fnum = \'";
-			flightNum = in.readLine();
-			findFlight += flightNum + "\'";
+			flightNum = Integer.parseInt(in.readLine());
                         try{
-			    flightQuery = esql.executeQuery(findFlight);
+			    flightQuery = esql.executeQuery(SQL_FLIGHT_EXISTS, flightNum);
                         }catch(SQLException e){
                         System.err.println(e.getMessage());
                         }
@@ -884,8 +1918,11 @@ public class DBproject{
 		}while (true);
                 
                 try{
-		    String query = "SELECT COUNT(*) FROM Reservation R WHERE R.status = 'C' AND R.fid = "+ flightNum;
-		    int num = esql.executeQueryAndPrintResult(query); 
+		    int num = esql.countPassengers(flightNum, stat);
+		    ResultPrinter printer = esql.openPrinter();
+		    printer.begin(new String[]{"count"}, new boolean[]{true});
+		    printer.row(new String[]{Integer.toString(num)});
+		    finishPrinter(printer);
                 }catch(SQLException e){
                 System.err.println(e.getMessage());
                 }
@@ -894,4 +1931,216 @@ public class DBproject{
 	   }
 	
 	}
+
+	public static void BulkImportReservations(DBproject esql) {//10
+		// Book every customer,flight pair listed in a file, in bounded transactions
+	    try{
+		System.out.print("\tEnter the path of the customer_id,flight_num file: $");
+		String path;
+		do{
+		    try{
+			path = in.readLine();
+			if(!new File(path).isFile()){
+			    throw new RuntimeException();
+			}
+			break;
+		    }catch (Exception e) {
+			    System.out.println("Your input is invalid! Try again");
+			    continue;
+		    }
+		}while (true);
+
+		BulkBooking bulk = new BulkBooking(esql, BulkBooking.DEFAULT_CHUNK_SIZE, System.out);
+		System.out.println("\t" + bulk.run(path));
+	    }catch(Exception e){
+	   System.err.println(e.getMessage());
+	   }
+	}
+
+	public static void SetReportOutput(DBproject esql) {//11
+		// Choose the format of printed results and whether they go to the screen or a file
+	    try{
+		System.out.print("\tEnter a format: table, tsv, csv or json: $");
+		ResultPrinter.Format format;
+		do{
+		    try{
+			format = ResultPrinter.Format.parse(in.readLine());
+			break;
+		    }catch (Exception e) {
+			    System.out.println("Your input is invalid! Try again");
+			    continue;
+		    }
+		}while (true);
+
+		System.out.print("\tEnter a file to append results to, or leave empty for the screen: $");
+		String path = in.readLine().trim();
+		esql.setOutput(format, path.isEmpty() ? null : path);
+	    }catch(Exception e){
+	   System.err.println(e.getMessage());
+	   }
+	}
+
+	public static void ShowQueryStatistics(DBproject esql) {//12
+		// Latency, round trips, rows and errors per operation and per SQL statement since the start
+	    esql.getMetrics().print(System.out);
+	    System.out.println(esql.getPool().getStats());
+	    if (esql.getReplica() != null){
+	    	System.out.println(esql.getReplica().getStats());
+	    }
+	    if (esql.getSlowLog() != null){
+	    	System.out.println(esql.getSlowLog().getStats());
+	    }
+	    System.out.println(esql.getReservationSnapshot().getStats());
+	    System.out.println(esql.getRouteSearch().getStats());
+	    System.out.println(esql.getArchive().getStats());
+	    System.out.println(esql.getSchedule().getStats());
+	    if (SeatMap.ENABLED){
+	    	System.out.println(esql.getSeatMap().getStats());
+	    }
+	}
+
+	public static void CancelReservation(DBproject esql) {//13
+		// Cancel a reservation; a freed seat goes to the oldest waitlisted passengers of the flight
+	    try{
+		System.out.print("\tEnter a reservation number: $");
+		int rnum;
+		do{
+		    try{
+			rnum = Integer.parseInt(in.readLine());
+			break;
+		    }catch (Exception e) {
+			    System.out.println("Your input is invalid! Try again");
+			    continue;
+		    }
+		}while (true);
+
+		System.out.println("\t" + esql.getWaitlist().cancel(rnum).toString().replace("\n", "\n\t"));
+	    }catch(Exception e){
+	   System.err.println(e.getMessage());
+	   }
+	}
+
+	public static void PromoteWaitlist(DBproject esql) {//14
+		// Give the free seats of every flight to its waitlisted passengers, oldest first
+	    try{
+		System.out.println("\t" + esql.getWaitlist().promoteAll(Waitlist.DEFAULT_BATCH_SIZE));
+	    }catch(Exception e){
+	   System.err.println(e.getMessage());
+	   }
+	}
+
+	public static void ListPassengerStatusPerFlight(DBproject esql) {//15
+		// Waitlisted, cancelled and reserved passengers of every flight, counted in memory
+	    try{
+		ResultPrinter printer = esql.openPrinter();
+		esql.getReservationSnapshot().printHistogram(printer);
+		finishPrinter(printer);
+	    }catch(Exception e){
+	   System.err.println(e.getMessage());
+	   }
+	}
+
+	public static void SearchRoutes(DBproject esql) {//16
+		// Direct flights and connections between two airports, earliest arrival first per number of legs
+	    try{
+		String[] airports = new String[2];
+		String[] prompts = {"\tEnter the departure airport code: $", "\tEnter the arrival airport code: $"};
+		for (int i = 0; i < 2; ++i){
+		    System.out.print(prompts[i]);
+		    do{
+			try{
+			    airports[i] = in.readLine().trim();
+			    if(airports[i].length() != 5){
+				throw new RuntimeException();
+			    }
+			    break;
+			}catch (Exception e) {
+				System.out.println("Your input is invalid! Try again");
+				continue;
+			}
+		    }while (true);
+		}
+
+		LocalDate[] dates = new LocalDate[2];
+		String[] datePrompts = {"\tEnter the first departure date (YYYY-MM-DD): $", "\tEnter the last departure date (YYYY-MM-DD): $"};
+		for (int i = 0; i < 2; ++i){
+		    System.out.print(datePrompts[i]);
+		    do{
+			try{
+			    dates[i] = LocalDate.parse(in.readLine().trim());
+			    break;
+			}catch (Exception e) {
+				System.out.println("Your input is invalid! Try again");
+				continue;
+			}
+		    }while (true);
+		}
+
+		System.out.print("\tEnter the minimum connection time in minutes (empty for 60): $");
+		int connect;
+		do{
+		    try{
+			String line = in.readLine().trim();
+			connect = line.isEmpty() ? 60 : Integer.parseInt(line);
+			if(connect < 0){
+			    throw new RuntimeException();
+			}
+			break;
+		    }catch (Exception e) {
+			    System.out.println("Your input is invalid! Try again");
+			    continue;
+		    }
+		}while (true);
+
+		List<RouteSearch.Itinerary> itineraries = esql.getRouteSearch().search(airports[0], airports[1],
+			dates[0].atStartOfDay(), dates[1].atTime(23, 59), connect, RouteSearch.DEFAULT_MAX_LEGS);
+		if (itineraries.isEmpty()){
+		    System.out.println("\tNo flights found");
+		    return;
+		}
+		ResultPrinter printer = esql.openPrinter();
+		RouteSearch.print(printer, itineraries);
+		finishPrinter(printer);
+	    }catch(Exception e){
+	   System.err.println(e.getMessage());
+	   }
+	}
+
+	public static void ArchiveReservations(DBproject esql) {//17
+		// Move reservations of flights departed long ago to compressed archive files, then drop emptied partitions
+	    try{
+		System.out.print("\tArchive flights that departed more than how many days ago? (" + ReservationArchive.RETENTION_DAYS + "): $");
+		int days;
+		do{
+		    try{
+			String line = in.readLine().trim();
+			days = line.isEmpty() ? ReservationArchive.RETENTION_DAYS : Integer.parseInt(line);
+			break;
+		    }catch (Exception e) {
+			    System.out.println("Your input is invalid! Try again");
+			    continue;
+		    }
+		}while (true);
+
+		System.out.println("\t" + esql.getArchive().archive(days, ReservationArchive.DEFAULT_BATCH_FLIGHTS));
+	    }catch(Exception e){
+	   System.err.println(e.getMessage());
+	   }
+	}
+
+	public static void ListScheduleConflicts(DBproject esql) {//18
+		// Pairs of flights flown by the same pilot or plane at overlapping times
+	    try{
+		List<ScheduleConflicts.Conflict> conflicts = esql.getSchedule().sweep();
+		if (conflicts.isEmpty()){
+		    System.out.println("\tNo pilot or plane is on two flights at once");
+		    return;
+		}
+		ResultPrinter printer = esql.openPrinter();
+		ScheduleConflicts.print(printer, conflicts);
+		finishPrinter(printer);
+	    }catch(Exception e){
+	   System.err.println(e.getMessage());
+	   }
+	}
 }
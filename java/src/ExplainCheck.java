@@ -0,0 +1,182 @@
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class captures the EXPLAIN plan of every menu query, bound to a
+ * real flight and customer, so plans taken before and after a migration
+ * can be compared.  The report lists the scans of each plan and flags the
+ * queries that picked up an index they did not use before.
+ *
+ */
+public class ExplainCheck{
+	static final String SQL_SAMPLE_FLIGHT = "SELECT fnum FROM Flight ORDER BY fnum LIMIT 1";
+	static final String SQL_SAMPLE_CUSTOMER = "SELECT id FROM Customer ORDER BY id LIMIT 1";
+	static final String SQL_SEAT_TABLE = "SELECT COUNT(*) FROM pg_tables WHERE schemaname = current_schema() AND tablename = 'seat'";
+	static final String SQL_SCHEDULE_OF_FLIGHT = "SELECT departure_time, arrival_time FROM Schedule WHERE flightNum = ?";
+
+	/*
+	 * Query name, SQL and its parameters: f a flight number, c a customer id,
+	 * r a reservation number, s a reservation status, n a batch size, d
+	 * today; F, C and R the one element int arrays of f, c and r.
+	 */
+	static final String[][] QUERIES = {
+		{"flight cost (5)", DBproject.SQL_FLIGHT_COST, "f"},
+		{"flight exists (5, 6, 9)", DBproject.SQL_FLIGHT_EXISTS, "f"},
+		{"customer gender (5)", DBproject.SQL_CUSTOMER_GENDER, "c"},
+		{"book flight (5)", DBproject.SQL_BOOK_FLIGHT, "ffrcf"},
+		{"seats available (6)", DBproject.SQL_SEATS_AVAILABLE, "f"},
+		{"seats available, all flights (6, preload)", SeatCache.SQL_ALL_SEATS_AVAILABLE, ""},
+		{"repairs per plane (7, no summary)", DBproject.SQL_REPAIRS_PER_PLANE, ""},
+		{"repairs per year (8, no summary)", DBproject.SQL_REPAIRS_PER_YEAR, ""},
+		{"passengers with status (9)", DBproject.SQL_PASSENGERS_WITH_STATUS, "sf"},
+		{"schedule of a flight", SQL_SCHEDULE_OF_FLIGHT, "f"},
+		{"cancel reservation (13)", Waitlist.SQL_CANCEL, "r"},
+		{"promote waitlist, one flight (13)", Waitlist.SQL_PROMOTE_FLIGHT, "ffff"},
+		{"promote waitlist, batch of flights (14)", Waitlist.SQL_PROMOTE_BATCH, "fn"},
+		{"status histogram (15, snapshot off)", ReservationSnapshot.SQL_HISTOGRAM, ""},
+		{"archive departed flights (17)", ReservationArchive.SQL_ARCHIVE, "ffd"},
+		{"seat map, seat unseated reservations (5, seat map)", SeatMap.SQL_SEAT_UNSEATED, "fff"},
+		{"seat map, persist claims (5, seat map)", SeatMap.SQL_PERSIST, "RCFR"},
+	};
+
+	/**
+	 * Method to EXPLAIN every query.  EXPLAIN without ANALYZE does not run
+	 * the statement, so the booking, cancellation or archival is not made.
+	 * The seat map statements are skipped while the Seat table does not
+	 * exist (migration V005).
+	 *
+	 * @param pool the database to explain on
+	 * @return the plan text by query name, in QUERIES order
+	 * @throws java.sql.SQLException when a query cannot be explained
+	 */
+	public static Map<String, String> capture(ConnectionPool pool) throws SQLException {
+		Map<String, String> plans = new LinkedHashMap<String, String>();
+		ConnectionPool.PooledConnection pc = pool.borrow();
+		try{
+			Connection conn = pc.getConnection();
+			int flight = sample(conn, SQL_SAMPLE_FLIGHT);
+			int customer = sample(conn, SQL_SAMPLE_CUSTOMER);
+			boolean seats = sample(conn, SQL_SEAT_TABLE) == 1;
+			for (String[] q : QUERIES){
+				if (!seats && q[0].startsWith("seat map")){
+					continue;
+				}
+				PreparedStatement ps = conn.prepareStatement("EXPLAIN " + q[1]);
+				try{
+					String kinds = q[2];
+					for (int i = 0; i < kinds.length(); ++i){
+						switch (kinds.charAt(i)){
+							case 'f': ps.setInt(i + 1, flight); break;
+							case 'c': ps.setInt(i + 1, customer); break;
+							case 'r': ps.setInt(i + 1, 0); break;
+							case 's': ps.setString(i + 1, "R"); break;
+							case 'n': ps.setInt(i + 1, Waitlist.DEFAULT_BATCH_SIZE); break;
+							case 'd': ps.setDate(i + 1, Date.valueOf(LocalDate.now())); break;
+							case 'F': ps.setArray(i + 1, conn.createArrayOf("int4", new Integer[]{flight})); break;
+							case 'C': ps.setArray(i + 1, conn.createArrayOf("int4", new Integer[]{customer})); break;
+							case 'R': ps.setArray(i + 1, conn.createArrayOf("int4", new Integer[]{0})); break;
+						}
+					}
+					StringBuilder plan = new StringBuilder();
+					ResultSet rs = ps.executeQuery();
+					while (rs.next()){
+						plan.append(rs.getString(1)).append('\n');
+					}
+					rs.close();
+					plans.put(q[0], plan.toString());
+				}finally{
+					ps.close();
+				}
+			}
+		}finally{
+			pool.release(pc);
+		}
+		return plans;
+	}
+
+	/**
+	 * Method to write the scans of every plan before and after, followed by
+	 * the full plans.
+	 *
+	 * @param before plans captured before the change
+	 * @param after plans captured after the change
+	 * @param out where the report goes
+	 * @return the number of queries that use an index they did not use before
+	 */
+	public static int report(Map<String, String> before, Map<String, String> after, PrintStream out){
+		int improved = 0;
+		for (Map.Entry<String, String> e : after.entrySet()){
+			List<String> was = scans(before.get(e.getKey()));
+			List<String> now = scans(e.getValue());
+			boolean newIndex = false;
+			for (String scan : now){
+				if (scan.contains("Index") && !was.contains(scan)){
+					newIndex = true;
+				}
+			}
+			if (newIndex){
+				++improved;
+			}
+			out.println("== " + e.getKey() + (newIndex ? "  [uses new index]" : ""));
+			out.println("   before: " + String.join("; ", was));
+			out.println("   after:  " + String.join("; ", now));
+		}
+		out.println();
+		out.println(improved + " of " + after.size() + " queries use an index they did not use before");
+		for (Map.Entry<String, String> e : after.entrySet()){
+			out.println();
+			out.println("== " + e.getKey() + ", before");
+			out.print(before.getOrDefault(e.getKey(), "(not captured)\n"));
+			out.println("== " + e.getKey() + ", after");
+			out.print(e.getValue());
+		}
+		return improved;
+	}
+
+	/**
+	 * Method to pick the scan nodes out of a text plan, e.g.
+	 * "Seq Scan on reservation r" or "Index Scan using flight_pkey on flight f".
+	 */
+	static List<String> scans(String plan){
+		List<String> scans = new ArrayList<String>();
+		if (plan == null){
+			return scans;
+		}
+		for (String line : plan.split("\n")){
+			String node = line.trim();
+			if (node.startsWith("->")){
+				node = node.substring(2).trim();
+			}
+			int cost = node.indexOf("  (cost=");
+			if (cost >= 0){
+				node = node.substring(0, cost);
+			}
+			if (node.contains(" Scan ") && !node.startsWith("CTE Scan") && !node.startsWith("Subquery Scan")){
+				scans.add(node);
+			}
+		}
+		return scans;
+	}
+
+	private static int sample(Connection conn, String query) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery(query);
+			int value = rs.next() ? rs.getInt(1) : 0;
+			rs.close();
+			return value;
+		}finally{
+			stmt.close();
+		}
+	}
+}
@@ -0,0 +1,185 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class hands out primary keys for one table from a PostgreSQL
+ * sequence, hi/lo style.  The sequence is created with INCREMENT BY equal
+ * to the block size, so every nextval() reserves a whole block of ids for
+ * this process; the ids inside the block are then handed out locally
+ * without a round trip.  Blocks never overlap, so several processes can
+ * insert into the same table at once.
+ *
+ */
+public class IdAllocator{
+	public static final int DEFAULT_BLOCK_SIZE = Integer.getInteger("dbproject.idBlockSize", 50);
+
+	//sequence, table and id column of every table with generated ids
+	static final String[][] SEQUENCES = {
+		{"plane_id_seq", "Plane", "id"},
+		{"pilot_id_seq", "Pilot", "id"},
+		{"flight_fnum_seq", "Flight", "fnum"},
+		{"technician_id_seq", "Technician", "id"},
+		{"reservation_rnum_seq", "Reservation", "rnum"},
+		{"flightinfo_fiid_seq", "FlightInfo", "fiid"},
+	};
+
+	private final DBproject _esql;
+	private final String _sequence;
+	private final String _table;
+	private final String _column;
+	private final String _nextvalSql;
+	private final String _nextvalsSql;
+
+	//guards the fields below; a lock rather than synchronized so a virtual
+	//thread fetching a block does not pin its carrier thread
+	private final ReentrantLock _lock = new ReentrantLock();
+	//block size as declared on the sequence, read by ensureSequence()
+	private int _blockSize;
+	//next id to hand out and the first id past the current block
+	private int _next = 0;
+	private int _limit = 0;
+
+	public IdAllocator(DBproject esql, String sequence, String table, String column){
+		this._esql = esql;
+		this._sequence = sequence;
+		this._table = table;
+		this._column = column;
+		this._nextvalSql = "SELECT nextval('" + sequence + "')";
+		this._nextvalsSql = "SELECT nextval('" + sequence + "') FROM generate_series(1, ?)";
+		this._blockSize = DEFAULT_BLOCK_SIZE;
+	}
+
+	/**
+	 * Method to create the sequence if it does not exist and move it past
+	 * the largest id already in the table, e.g. rows loaded by COPY or
+	 * inserted by an older client.  Runs under an advisory lock so
+	 * processes starting at the same time do not race each other.
+	 *
+	 * @throws java.sql.SQLException when the sequence cannot be set up
+	 */
+	public void ensureSequence() throws SQLException {
+		Connection conn = this._esql.pinConnection();
+		try{
+			conn.setAutoCommit(false);
+			Statement stmt = conn.createStatement();
+			try{
+				stmt.execute("SELECT pg_advisory_xact_lock(hashtext('dbproject.sequence." + this._sequence + "'))");
+				stmt.execute("CREATE SEQUENCE IF NOT EXISTS " + this._sequence + " INCREMENT BY " + DEFAULT_BLOCK_SIZE + " MINVALUE 0 START WITH 0");
+
+				int increment = seed(stmt, this._sequence, this._table, this._column);
+				conn.commit();
+
+				this._lock.lock();
+				try{
+					this._blockSize = increment;
+				}finally{
+					this._lock.unlock();
+				}
+			}catch (SQLException e){
+				conn.rollback();
+				throw e;
+			}finally{
+				stmt.close();
+				conn.setAutoCommit(true);
+			}
+		}finally{
+			this._esql.unpinConnection();
+		}
+	}
+
+	/**
+	 * Method to move a sequence past the largest id in its table, unless it
+	 * already is.  The caller is responsible for serializing calls.
+	 *
+	 * @param stmt a statement on the connection to use
+	 * @param sequence the sequence name
+	 * @param table the table the ids are for
+	 * @param column the id column
+	 * @return the INCREMENT BY (block size) of the sequence
+	 * @throws java.sql.SQLException when the sequence cannot be read or set
+	 */
+	static int seed(Statement stmt, String sequence, String table, String column) throws SQLException {
+		ResultSet rs = stmt.executeQuery("SELECT increment_by FROM pg_sequences WHERE schemaname = current_schema() AND sequencename = '" + sequence + "'");
+		rs.next();
+		int increment = (int) rs.getLong(1);
+		rs.close();
+
+		rs = stmt.executeQuery("SELECT last_value, is_called FROM " + sequence);
+		rs.next();
+		long nextBlock = rs.getBoolean(2) ? rs.getLong(1) + increment : rs.getLong(1);
+		rs.close();
+
+		rs = stmt.executeQuery("SELECT COALESCE(MAX(" + column + "), -1) + 1 FROM " + table);
+		rs.next();
+		long firstFree = rs.getLong(1);
+		rs.close();
+
+		if (nextBlock < firstFree){
+			stmt.execute("SELECT setval('" + sequence + "', " + firstFree + ", false)");
+		}
+		return increment;
+	}
+
+	/**
+	 * Method to return the next unused id, fetching a new block from the
+	 * sequence only when the current one is used up.
+	 *
+	 * @return an id no other caller or process will receive
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public int next() throws SQLException {
+		this._lock.lock();
+		try{
+			if (this._next >= this._limit){
+				int hi = nextBlock();
+				this._next = hi;
+				this._limit = hi + this._blockSize;
+			}
+			return this._next++;
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to reserve a fresh block straight from the sequence, for
+	 * callers that assign many ids themselves (bulk loads).  The block is
+	 * not shared with next().
+	 *
+	 * @return the first id of a block of getBlockSize() ids
+	 * @throws java.sql.SQLException when the sequence cannot be read
+	 */
+	public int nextBlock() throws SQLException {
+		return this._esql.queryForInt(this._nextvalSql, -1);
+	}
+
+	/**
+	 * Method to reserve several fresh blocks in one round trip.
+	 *
+	 * @param count the number of blocks
+	 * @return the first id of each block, each followed by getBlockSize() - 1 more ids
+	 * @throws java.sql.SQLException when the sequence cannot be read
+	 */
+	public int[] nextBlocks(int count) throws SQLException {
+		final int[] starts = new int[count];
+		final int[] n = {0};
+		this._esql.streamQuery(this._nextvalsSql, count, rs -> starts[n[0]++] = rs.getInt(1), count);
+		return starts;
+	}
+
+	public int getBlockSize(){
+		this._lock.lock();
+		try{
+			return this._blockSize;
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	public String getSequence(){
+		return this._sequence;
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * This class counts latencies in log-linear buckets: every power of two
+ * is split into 32 sub-buckets, so a recorded value is off by at most about
+ * 3% and the whole range up to Long.MAX_VALUE nanoseconds fits in under
+ * 2000 counters.  Recording is a few shifts and an increment with no
+ * allocation; it is not thread safe, so each thread records into its own
+ * histogram and the histograms are merged for the report.
+ *
+ */
+public class LatencyHistogram{
+	static final int SUB_BITS = 5;
+	static final int SUB_COUNT = 1 << SUB_BITS;
+	static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+	private final long[] _counts = new long[BUCKETS];
+	private long _total = 0;
+	private long _sum = 0;
+	private long _min = Long.MAX_VALUE;
+	private long _max = 0;
+
+	/**
+	 * Method to count one value.
+	 *
+	 * @param nanos the latency, negative values count as 0
+	 */
+	public void record(long nanos){
+		long v = Math.max(nanos, 0);
+		++this._counts[index(v)];
+		++this._total;
+		this._sum += v;
+		this._min = Math.min(this._min, v);
+		this._max = Math.max(this._max, v);
+	}
+
+	/**
+	 * Method to add the counts of another histogram to this one.
+	 */
+	public void add(LatencyHistogram other){
+		for (int i = 0; i < BUCKETS; ++i){
+			this._counts[i] += other._counts[i];
+		}
+		this._total += other._total;
+		this._sum += other._sum;
+		this._min = Math.min(this._min, other._min);
+		this._max = Math.max(this._max, other._max);
+	}
+
+	public long getCount(){
+		return this._total;
+	}
+
+	public long getMin(){
+		return this._total == 0 ? 0 : this._min;
+	}
+
+	public long getMax(){
+		return this._max;
+	}
+
+	public double getMean(){
+		return this._total == 0 ? 0 : (double) this._sum / this._total;
+	}
+
+	/**
+	 * Method to find the value below which a fraction of the values fall.
+	 *
+	 * @param fraction between 0 and 1, e.g. 0.999
+	 * @return the upper end of the bucket holding that value, at most the maximum
+	 */
+	public long getPercentile(double fraction){
+		if (this._total == 0){
+			return 0;
+		}
+		long rank = (long) Math.ceil(fraction * this._total);
+		rank = Math.max(1, Math.min(rank, this._total));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; ++i){
+			seen += this._counts[i];
+			if (seen >= rank){
+				return Math.min(upperBound(i), this._max);
+			}
+		}
+		return this._max;
+	}
+
+	static int index(long v){
+		if (v < SUB_COUNT){
+			return (int) v;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(v);
+		int shift = magnitude - SUB_BITS;
+		// the top bit is implied by the magnitude; the next SUB_BITS bits pick the sub-bucket
+		return (shift + 1) * SUB_COUNT + (int) ((v >>> shift) & (SUB_COUNT - 1));
+	}
+
+	static long upperBound(int index){
+		if (index < SUB_COUNT){
+			return index;
+		}
+		int shift = index / SUB_COUNT - 1;
+		long low = ((long) (SUB_COUNT + index % SUB_COUNT)) << shift;
+		return low + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,413 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class puts booking load on the flight database from many
+ * concurrent workers, the way many booking agents would, and reports the
+ * throughput and latency percentiles of every operation together with the
+ * errors that concurrency bugs show up as: duplicate keys, and flights that
+ * sold more seats than their planes have.
+ *
+ * Customers and flights are read from data/customer.csv and
+ * data/flights.csv.  Flights are picked with a Zipf distribution, so a few
+ * hot flights get most of the traffic and fill up (--skew 0 is uniform).
+ *
+ * Operations, mixed by weight with --mix (default book=20,seats=80):
+ *   book      DBproject.bookFlight()
+ *   seats     DBproject.getSeatsAvailable(), served by the seat cache
+ *   seats-db  the seat availability query, bypassing the cache
+ *
+ */
+public class LoadGenerator{
+	static final String[] OPERATIONS = {"book", "seats", "seats-db"};
+	static final int BOOK = 0;
+	static final int SEATS = 1;
+	static final int SEATS_DB = 2;
+
+	static final String SQL_NEXT_RNUM = "SELECT COALESCE(MAX(rnum), -1) + 1 FROM Reservation";
+	static final String SQL_SEATS_SOLD =
+		"SELECT f.fnum, f.num_sold, COALESCE(cap.seats, 0) FROM Flight f LEFT JOIN (" +
+		"SELECT fi.flight_id, SUM(pl.seats) AS seats FROM FlightInfo fi JOIN Plane pl ON pl.id = fi.plane_id GROUP BY fi.flight_id) cap " +
+		"ON cap.flight_id = f.fnum";
+	static final String SQL_RESERVED_SINCE =
+		"SELECT fid, COUNT(*) FROM Reservation WHERE rnum >= ? AND status = 'R' GROUP BY fid";
+
+	/**
+	 * Counts and latencies one worker collected; merged after the run.
+	 */
+	static class WorkerStats{
+		final LatencyHistogram[] latency = new LatencyHistogram[OPERATIONS.length];
+		final long[] errors = new long[OPERATIONS.length];
+		final Map<String, Long> errorsByState = new HashMap<String, Long>();
+		long reserved = 0;
+		long waitlisted = 0;
+
+		WorkerStats(){
+			for (int i = 0; i < OPERATIONS.length; ++i){
+				this.latency[i] = new LatencyHistogram();
+			}
+		}
+
+		void add(WorkerStats other){
+			for (int i = 0; i < OPERATIONS.length; ++i){
+				this.latency[i].add(other.latency[i]);
+				this.errors[i] += other.errors[i];
+			}
+			for (Map.Entry<String, Long> e : other.errorsByState.entrySet()){
+				this.errorsByState.merge(e.getKey(), e.getValue(), Long::sum);
+			}
+			this.reserved += other.reserved;
+			this.waitlisted += other.waitlisted;
+		}
+	}
+
+	private final DBproject _esql;
+	private final int[] _customers;
+	private final int[] _flights;
+	//cumulative Zipf weights over _flights, and cumulative operation weights
+	private final double[] _flightCdf;
+	private final int[] _mix;
+
+	public LoadGenerator(DBproject esql, int[] customers, int[] flights, double skew, int[] mix){
+		this._esql = esql;
+		this._customers = customers;
+		this._flights = flights;
+		this._flightCdf = new double[flights.length];
+		double total = 0;
+		for (int i = 0; i < flights.length; ++i){
+			total += 1.0 / Math.pow(i + 1, skew);
+			this._flightCdf[i] = total;
+		}
+		for (int i = 0; i < flights.length; ++i){
+			this._flightCdf[i] /= total;
+		}
+		this._mix = new int[mix.length];
+		int sum = 0;
+		for (int i = 0; i < mix.length; ++i){
+			sum += mix[i];
+			this._mix[i] = sum;
+		}
+		if (sum <= 0){
+			throw new IllegalArgumentException("the operation mix has no weight");
+		}
+	}
+
+	/**
+	 * Method to run the workers until the time is up or the operations are
+	 * done.  Operations of the warmup are run but not counted.
+	 *
+	 * @param workers the executor to run the workers on
+	 * @param threads the number of workers
+	 * @param warmupMillis how long to run before counting
+	 * @param millis how long to count for
+	 * @param operations stop after this many operations in total, 0 for no limit
+	 * @return the merged counts and latencies
+	 * @throws Exception when a worker fails outside of an operation
+	 */
+	public WorkerStats run(ExecutorService workers, int threads, long warmupMillis, long millis, long operations) throws Exception {
+		final long countFrom = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+		final long stopAt = countFrom + TimeUnit.MILLISECONDS.toNanos(millis);
+		final long perWorker = operations <= 0 ? Long.MAX_VALUE : (operations + threads - 1) / threads;
+		List<Future<WorkerStats>> futures = new ArrayList<Future<WorkerStats>>();
+		for (int t = 0; t < threads; ++t){
+			final long seed = 0x5DEECE66DL * (t + 1);
+			futures.add(workers.submit(() -> work(new SplittableRandom(seed), countFrom, stopAt, perWorker)));
+		}
+		WorkerStats total = new WorkerStats();
+		for (Future<WorkerStats> f : futures){
+			total.add(f.get());
+		}
+		return total;
+	}
+
+	private WorkerStats work(SplittableRandom random, long countFrom, long stopAt, long operations){
+		WorkerStats stats = new WorkerStats();
+		long done = 0;
+		while (done < operations){
+			int op = pickOperation(random);
+			int flight = pickFlight(random);
+			long start = System.nanoTime();
+			if (start >= stopAt){
+				break;
+			}
+			boolean counted = start >= countFrom;
+			try{
+				switch (op){
+					case BOOK:{
+						int customer = this._customers[random.nextInt(this._customers.length)];
+						if (this._esql.bookFlight(customer, flight).isReserved()){
+							stats.reserved += counted ? 1 : 0;
+						}else{
+							stats.waitlisted += counted ? 1 : 0;
+						}
+						break;
+					}
+					case SEATS:
+						this._esql.getSeatsAvailable(flight);
+						break;
+					case SEATS_DB:
+						this._esql.queryForInteger(DBproject.SQL_SEATS_AVAILABLE, flight);
+						break;
+				}
+			}catch (SQLException e){
+				if (counted){
+					++stats.errors[op];
+					stats.errorsByState.merge(e.getSQLState() == null ? "unknown" : e.getSQLState(), 1L, Long::sum);
+				}
+			}
+			if (counted){
+				stats.latency[op].record(System.nanoTime() - start);
+				++done;
+			}
+		}
+		return stats;
+	}
+
+	private int pickOperation(SplittableRandom random){
+		int r = random.nextInt(this._mix[this._mix.length - 1]);
+		for (int i = 0; i < this._mix.length; ++i){
+			if (r < this._mix[i]){
+				return i;
+			}
+		}
+		return this._mix.length - 1;
+	}
+
+	private int pickFlight(SplittableRandom random){
+		double r = random.nextDouble();
+		int lo = 0;
+		int hi = this._flightCdf.length - 1;
+		while (lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if (this._flightCdf[mid] < r){
+				lo = mid + 1;
+			}else{
+				hi = mid;
+			}
+		}
+		return this._flights[lo];
+	}
+
+	/**
+	 * Method to read the seats sold and the capacity of every flight.
+	 *
+	 * @return fnum to {num_sold, seats}
+	 */
+	static Map<Integer, int[]> seatsSold(DBproject esql) throws SQLException {
+		final Map<Integer, int[]> sold = new HashMap<Integer, int[]>();
+		esql.streamQuery(SQL_SEATS_SOLD, rs -> sold.put(rs.getInt(1), new int[]{rs.getInt(2), rs.getInt(3)}));
+		return sold;
+	}
+
+	/**
+	 * Method to read the first column of a CSV file as integer ids.
+	 */
+	static int[] readIds(File csv) throws IOException {
+		List<Integer> ids = new ArrayList<Integer>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(csv), StandardCharsets.UTF_8), 1 << 16);
+		try{
+			String line;
+			while ((line = reader.readLine()) != null){
+				int comma = line.indexOf(',');
+				try{
+					ids.add(Integer.parseInt((comma < 0 ? line : line.substring(0, comma)).trim()));
+				}catch (NumberFormatException e){
+					// header or blank line
+				}
+			}
+		}finally{
+			reader.close();
+		}
+		int[] array = new int[ids.size()];
+		for (int i = 0; i < array.length; ++i){
+			array[i] = ids.get(i);
+		}
+		return array;
+	}
+
+	/**
+	 * Method to parse an operation mix like "book=20,seats=80".
+	 */
+	static int[] parseMix(String mix){
+		int[] weights = new int[OPERATIONS.length];
+		for (String part : mix.split(",")){
+			String[] kv = part.trim().split("=");
+			int op = -1;
+			for (int i = 0; i < OPERATIONS.length; ++i){
+				if (OPERATIONS[i].equals(kv[0].trim())){
+					op = i;
+				}
+			}
+			if (op < 0 || kv.length != 2){
+				throw new IllegalArgumentException("bad operation mix entry: " + part);
+			}
+			weights[op] = Integer.parseInt(kv[1].trim());
+		}
+		return weights;
+	}
+
+	/**
+	 * Method to make an executor of virtual threads, which need Java 21.
+	 */
+	static ExecutorService newVirtualThreadExecutor(){
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch (ReflectiveOperationException e){
+			throw new UnsupportedOperationException("virtual threads need Java 21 or later");
+		}
+	}
+
+	static String millis(long nanos){
+		return String.format("%.3f", nanos / 1e6);
+	}
+
+	/**
+	 * The main execution method
+	 *
+	 * @param args <dbname> <port> <user> [options], see the usage message
+	 */
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + LoadGenerator.class.getName() +
+				" <dbname> <port> <user> [--threads <n>] [--virtual] [--duration <s>] [--warmup <s>] [--operations <n>]" +
+				" [--mix book=20,seats=80,seats-db=0] [--skew <zipf exponent>] [--data <dir>]");
+			System.exit(2);
+		}
+		int threads = 16;
+		boolean virtual = false;
+		long duration = 30;
+		long warmup = 5;
+		long operations = 0;
+		String mix = "book=20,seats=80";
+		double skew = 1.0;
+		File dataDir = new File("../data");
+		try{
+			for (int i = 3; i < args.length; ++i){
+				if (args[i].equals("--threads") && i + 1 < args.length){
+					threads = Integer.parseInt(args[++i]);
+				}else if (args[i].equals("--virtual")){
+					virtual = true;
+				}else if (args[i].equals("--duration") && i + 1 < args.length){
+					duration = Long.parseLong(args[++i]);
+				}else if (args[i].equals("--warmup") && i + 1 < args.length){
+					warmup = Long.parseLong(args[++i]);
+				}else if (args[i].equals("--operations") && i + 1 < args.length){
+					operations = Long.parseLong(args[++i]);
+				}else if (args[i].equals("--mix") && i + 1 < args.length){
+					mix = args[++i];
+				}else if (args[i].equals("--skew") && i + 1 < args.length){
+					skew = Double.parseDouble(args[++i]);
+				}else if (args[i].equals("--data") && i + 1 < args.length){
+					dataDir = new File(args[++i]);
+				}else{
+					throw new IllegalArgumentException("Unknown option: " + args[i]);
+				}
+			}
+		}catch (IllegalArgumentException e){
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+		// platform workers each hold a connection; virtual ones queue for the pool
+		if (System.getProperty("dbproject.pool.maxSize") == null){
+			System.setProperty("dbproject.pool.maxSize", Integer.toString(virtual ? 64 : threads));
+		}
+
+		DBproject esql = null;
+		ExecutorService workers = null;
+		int status = 0;
+		try{
+			Class.forName("org.postgresql.Driver");
+			int[] customers = readIds(new File(dataDir, "customer.csv"));
+			int[] flights = readIds(new File(dataDir, "flights.csv"));
+			int[] weights = parseMix(mix);
+			workers = virtual ? newVirtualThreadExecutor() : Executors.newFixedThreadPool(threads);
+
+			esql = DBproject.connect(args[0], args[1], args[2], "");
+			LoadGenerator generator = new LoadGenerator(esql, customers, flights, skew, weights);
+			Map<Integer, int[]> before = seatsSold(esql);
+			int firstRnum = esql.queryForInt(SQL_NEXT_RNUM, 0);
+
+			System.out.println(String.format("%d %s workers, mix %s, skew %.2f, %d customers, %d flights, warmup %d s, run %d s",
+				threads, virtual ? "virtual" : "platform", mix, skew, customers.length, flights.length, warmup, duration));
+			long start = System.nanoTime();
+			WorkerStats stats = generator.run(workers, threads, warmup * 1000, duration * 1000, operations);
+			long elapsed = System.nanoTime() - start - TimeUnit.SECONDS.toNanos(warmup);
+			double seconds = Math.max(elapsed, 1) / 1e9;
+
+			System.out.println(String.format("%-9s %10s %10s %9s %9s %9s %9s %9s %8s",
+				"operation", "count", "ops/s", "mean ms", "p50 ms", "p99 ms", "p999 ms", "max ms", "errors"));
+			long totalCount = 0;
+			for (int i = 0; i < OPERATIONS.length; ++i){
+				LatencyHistogram h = stats.latency[i];
+				if (h.getCount() == 0){
+					continue;
+				}
+				totalCount += h.getCount();
+				System.out.println(String.format("%-9s %10d %10.0f %9s %9s %9s %9s %9s %8d", OPERATIONS[i], h.getCount(),
+					h.getCount() / seconds, millis((long) h.getMean()), millis(h.getPercentile(0.50)), millis(h.getPercentile(0.99)),
+					millis(h.getPercentile(0.999)), millis(h.getMax()), stats.errors[i]));
+			}
+			System.out.println(String.format("total     %10d %10.0f", totalCount, totalCount / seconds));
+			System.out.println(String.format("bookings: %d reserved, %d waitlisted", stats.reserved, stats.waitlisted));
+			for (Map.Entry<String, Long> e : new TreeMap<String, Long>(stats.errorsByState).entrySet()){
+				System.out.println("errors with SQLSTATE " + e.getKey() + (e.getKey().equals("23505") ? " (duplicate key)" : "") + ": " + e.getValue());
+			}
+
+			// a flight is oversold when the run reserved more seats on it than it had free,
+			// or num_sold moved by a different amount than the seats reserved
+			final Map<Integer, Integer> reservedByFlight = new HashMap<Integer, Integer>();
+			esql.streamQuery(SQL_RESERVED_SINCE, rs -> reservedByFlight.put(rs.getInt(1), rs.getInt(2)), firstRnum);
+			Map<Integer, int[]> after = seatsSold(esql);
+			int oversold = 0;
+			int drifted = 0;
+			for (Map.Entry<Integer, int[]> e : after.entrySet()){
+				int[] was = before.get(e.getKey());
+				if (was == null){
+					continue;
+				}
+				int reserved = reservedByFlight.getOrDefault(e.getKey(), 0);
+				int free = Math.max(was[1] - was[0], 0);
+				if (reserved > free){
+					++oversold;
+					System.out.println(String.format("oversold: flight %d had %d free seats, %d were reserved", e.getKey(), free, reserved));
+				}
+				if (e.getValue()[0] - was[0] != reserved){
+					++drifted;
+					System.out.println(String.format("num_sold drift: flight %d num_sold %d -> %d, %d reserved",
+						e.getKey(), was[0], e.getValue()[0], reserved));
+				}
+			}
+			System.out.println(String.format("%d oversold flights, %d flights with num_sold drift", oversold, drifted));
+			if (oversold > 0 || drifted > 0 || stats.errorsByState.containsKey("23505")){
+				status = 1;
+			}
+			System.out.println(esql.getPool().getStats());
+		}catch (Exception e){
+			System.err.println("Load run failed: " + e.getMessage());
+			status = 1;
+		}finally{
+			if (workers != null){
+				workers.shutdownNow();
+			}
+			if (esql != null){
+				esql.cleanup();
+			}
+		}
+		System.exit(status);
+	}
+}
@@ -0,0 +1,324 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class brings the schema of the flight database up to date by
+ * applying the versioned migration files of sql/migrations in version
+ * order.  A file is named V&lt;version&gt;__&lt;description&gt;.sql and runs in
+ * one transaction; the versions applied so far, with a checksum of the file,
+ * are recorded in the schema_version table.  An advisory lock keeps two
+ * processes from migrating the same database at once.
+ *
+ * Migrations are applied by this class' main (see migrate.sh) or, with
+ * -Ddbproject.migrations=&lt;dir&gt;, by DBproject when it connects.
+ *
+ */
+public class MigrationRunner{
+	static final Pattern FILE_NAME = Pattern.compile("V(\\d+)__(\\w+)\\.sql");
+
+	static final String SQL_CREATE_VERSION_TABLE =
+		"CREATE TABLE IF NOT EXISTS schema_version (version INTEGER NOT NULL, description TEXT NOT NULL, " +
+		"checksum CHAR(64) NOT NULL, applied_at TIMESTAMP NOT NULL DEFAULT now(), execution_ms BIGINT NOT NULL, PRIMARY KEY (version))";
+	static final String SQL_APPLIED = "SELECT version, checksum FROM schema_version ORDER BY version";
+	static final String SQL_RECORD = "INSERT INTO schema_version (version, description, checksum, execution_ms) VALUES (?, ?, ?, ?)";
+	static final String SQL_LOCK = "SELECT pg_advisory_lock(hashtext('dbproject.migrations'))";
+	static final String SQL_UNLOCK = "SELECT pg_advisory_unlock(hashtext('dbproject.migrations'))";
+
+	/**
+	 * One migration file.
+	 */
+	static class Migration{
+		final int version;
+		final String description;
+		final File file;
+		final String sql;
+		final String checksum;
+
+		Migration(int version, String description, File file, String sql){
+			this.version = version;
+			this.description = description;
+			this.file = file;
+			this.sql = sql;
+			this.checksum = sha256(sql);
+		}
+
+		@Override
+		public String toString(){
+			return String.format("V%03d %s", this.version, this.description);
+		}
+	}
+
+	private final ConnectionPool _pool;
+	private final File _dir;
+	private final PrintStream _log;
+
+	public MigrationRunner(ConnectionPool pool, File dir, PrintStream log){
+		this._pool = pool;
+		this._dir = dir;
+		this._log = log;
+	}
+
+	/**
+	 * Method to read the migration files, in version order.
+	 *
+	 * @return the migrations found
+	 * @throws java.io.IOException when the directory or a file cannot be read,
+	 *         or two files share a version
+	 */
+	public List<Migration> scan() throws IOException {
+		File[] files = this._dir.listFiles();
+		if (files == null){
+			throw new IOException("No migration directory " + this._dir);
+		}
+		Map<Integer, Migration> byVersion = new TreeMap<Integer, Migration>();
+		for (File f : files){
+			Matcher m = FILE_NAME.matcher(f.getName());
+			if (!m.matches()){
+				continue;
+			}
+			// checksums must not depend on the line endings of the checkout
+			String sql = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).replace("\r\n", "\n");
+			Migration migration = new Migration(Integer.parseInt(m.group(1)), m.group(2).replace('_', ' '), f, sql);
+			Migration clash = byVersion.put(migration.version, migration);
+			if (clash != null){
+				throw new IOException("Migrations " + clash.file.getName() + " and " + f.getName() + " have the same version");
+			}
+		}
+		return new ArrayList<Migration>(byVersion.values());
+	}
+
+	/**
+	 * Method to apply every migration not applied yet.  Each one commits on
+	 * its own, so a failure leaves the database at the last good version.
+	 *
+	 * @return the migrations applied
+	 * @throws java.io.IOException when the migration files cannot be read
+	 * @throws java.sql.SQLException when a migration fails, or an applied
+	 *         migration file was changed afterwards
+	 */
+	public List<Migration> migrate() throws IOException, SQLException {
+		List<Migration> migrations = scan();
+		List<Migration> applied = new ArrayList<Migration>();
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			Connection conn = pc.getConnection();
+			Statement stmt = conn.createStatement();
+			try{
+				stmt.execute(SQL_LOCK);
+				try{
+					stmt.execute(SQL_CREATE_VERSION_TABLE);
+					Map<Integer, String> done = readApplied(conn);
+					for (Migration m : migrations){
+						String checksum = done.get(m.version);
+						if (checksum != null){
+							if (!checksum.trim().equals(m.checksum)){
+								throw new SQLException("Migration " + m.file.getName() + " was changed after it was applied");
+							}
+							continue;
+						}
+						apply(conn, m);
+						applied.add(m);
+					}
+				}finally{
+					stmt.execute(SQL_UNLOCK);
+				}
+			}finally{
+				stmt.close();
+			}
+		}finally{
+			this._pool.release(pc);
+		}
+		return applied;
+	}
+
+	/**
+	 * Method to print every migration with whether it was applied.
+	 *
+	 * @param out where the listing goes
+	 * @return the number of migrations not applied yet
+	 * @throws java.io.IOException when the migration files cannot be read
+	 * @throws java.sql.SQLException when the applied versions cannot be read
+	 */
+	public int printStatus(PrintStream out) throws IOException, SQLException {
+		List<Migration> migrations = scan();
+		Map<Integer, String> done;
+		ConnectionPool.PooledConnection pc = this._pool.borrow();
+		try{
+			Statement stmt = pc.getConnection().createStatement();
+			try{
+				stmt.execute(SQL_CREATE_VERSION_TABLE);
+			}finally{
+				stmt.close();
+			}
+			done = readApplied(pc.getConnection());
+		}finally{
+			this._pool.release(pc);
+		}
+		int pending = 0;
+		for (Migration m : migrations){
+			String checksum = done.get(m.version);
+			String state;
+			if (checksum == null){
+				state = "pending";
+				++pending;
+			}else{
+				state = checksum.trim().equals(m.checksum) ? "applied" : "applied, file changed since";
+			}
+			out.println(String.format("%-40s %s", m, state));
+		}
+		return pending;
+	}
+
+	private void apply(Connection conn, Migration m) throws SQLException {
+		this._log.print("Applying " + m + "...");
+		long start = System.currentTimeMillis();
+		conn.setAutoCommit(false);
+		try{
+			Statement stmt = conn.createStatement();
+			try{
+				stmt.execute(m.sql);
+			}finally{
+				stmt.close();
+			}
+			long millis = System.currentTimeMillis() - start;
+			PreparedStatement record = conn.prepareStatement(SQL_RECORD);
+			try{
+				record.setInt(1, m.version);
+				record.setString(2, m.description);
+				record.setString(3, m.checksum);
+				record.setLong(4, millis);
+				record.executeUpdate();
+			}finally{
+				record.close();
+			}
+			conn.commit();
+			this._log.println("Done (" + millis + " ms)");
+		}catch (SQLException e){
+			conn.rollback();
+			this._log.println("Failed");
+			throw new SQLException("Migration " + m.file.getName() + " failed: " + e.getMessage(), e.getSQLState(), e);
+		}catch (RuntimeException e){
+			// turning autocommit back on below would commit the migration without its history row
+			conn.rollback();
+			this._log.println("Failed");
+			throw e;
+		}finally{
+			conn.setAutoCommit(true);
+		}
+	}
+
+	private static Map<Integer, String> readApplied(Connection conn) throws SQLException {
+		Map<Integer, String> done = new TreeMap<Integer, String>();
+		Statement stmt = conn.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery(SQL_APPLIED);
+			while (rs.next()){
+				done.put(rs.getInt(1), rs.getString(2));
+			}
+			rs.close();
+		}finally{
+			stmt.close();
+		}
+		return done;
+	}
+
+	static String sha256(String text){
+		try{
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder(64);
+			for (byte b : digest){
+				hex.append(String.format("%02x", b & 0xff));
+			}
+			return hex.toString();
+		}catch (NoSuchAlgorithmException e){
+			// every Java platform is required to provide SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The main execution method
+	 *
+	 * @param args <dbname> <port> <user> [--dir dir] [--status] [--explain report]
+	 */
+	public static void main(String[] args){
+		if (args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + MigrationRunner.class.getName() +
+				" <dbname> <port> <user> [--dir <dir>] [--status] [--explain <report file>|-]");
+			System.exit(2);
+		}
+		File dir = new File("../sql/migrations");
+		boolean statusOnly = false;
+		String explainReport = null;
+		for (int i = 3; i < args.length; ++i){
+			if (args[i].equals("--dir") && i + 1 < args.length){
+				dir = new File(args[++i]);
+			}else if (args[i].equals("--status")){
+				statusOnly = true;
+			}else if (args[i].equals("--explain") && i + 1 < args.length){
+				explainReport = args[++i];
+			}else{
+				System.err.println("Unknown option: " + args[i]);
+				System.exit(2);
+			}
+		}
+
+		String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+		Properties props = new Properties();
+		props.setProperty("user", args[2]);
+		props.setProperty("password", "");
+		ConnectionPool pool = null;
+		int status = 0;
+		try{
+			pool = new ConnectionPool(url, props, 1, 2, 60000L, 60000L, 3600000L, 1000L, 16);
+			MigrationRunner runner = new MigrationRunner(pool, dir, System.out);
+			if (statusOnly){
+				status = runner.printStatus(System.out) > 0 ? 3 : 0;
+			}else{
+				Map<String, String> before = explainReport != null ? ExplainCheck.capture(pool) : null;
+				List<Migration> applied = runner.migrate();
+				System.out.println(applied.isEmpty() ? "Schema is up to date" : "Applied " + applied.size() + " migration(s)");
+				if (explainReport != null){
+					Map<String, String> after = ExplainCheck.capture(pool);
+					if (explainReport.equals("-")){
+						ExplainCheck.report(before, after, System.out);
+					}else{
+						PrintStream out = new PrintStream(new FileOutputStream(explainReport), false, "UTF-8");
+						try{
+							ExplainCheck.report(before, after, out);
+						}finally{
+							out.close();
+						}
+						System.out.println("EXPLAIN report written to " + explainReport);
+					}
+				}
+			}
+		}catch (Exception e){
+			System.err.println("Migration failed: " + e.getMessage());
+			status = 1;
+		}finally{
+			if (pool != null){
+				pool.close();
+			}
+		}
+		System.exit(status);
+	}
+}
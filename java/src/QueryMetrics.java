@@ -0,0 +1,291 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class records what the database calls of DBproject cost: per SQL
+ * shape (the statement text with literals replaced by '?') the number of
+ * calls, round trips, rows and errors and a latency histogram, and the same
+ * per operation (book, seats, add-plane, ...) together with the round trips
+ * the operation made.  The counters can be printed as a table or written in
+ * the Prometheus text exposition format.
+ *
+ * Recording is on by default; -Ddbproject.metrics=false turns it off.
+ *
+ */
+public class QueryMetrics{
+	static final boolean ENABLED = !"false".equals(System.getProperty("dbproject.metrics"));
+	//distinct statement texts whose shape is remembered; string built SQL can have many
+	static final int MAX_CACHED_SHAPES = 10000;
+	static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	/**
+	 * Counters of one SQL shape or operation.
+	 */
+	static class Stats{
+		final String name;
+		final LatencyHistogram latency = new LatencyHistogram();
+		long roundTrips = 0;
+		long rows = 0;
+		long errors = 0;
+
+		Stats(String name){
+			this.name = name;
+		}
+
+		synchronized void record(long nanos, long roundTrips, long rows, boolean error){
+			this.latency.record(nanos);
+			this.roundTrips += roundTrips;
+			this.rows += Math.max(rows, 0);
+			if (error){
+				++this.errors;
+			}
+		}
+
+		synchronized Stats copy(){
+			Stats copy = new Stats(this.name);
+			copy.latency.add(this.latency);
+			copy.roundTrips = this.roundTrips;
+			copy.rows = this.rows;
+			copy.errors = this.errors;
+			return copy;
+		}
+	}
+
+	/**
+	 * Operation in progress on a thread: nesting depth and round trips so far.
+	 */
+	static class Context{
+		int depth = 0;
+		long roundTrips = 0;
+	}
+
+	private final Map<String, Stats> _bySql = new ConcurrentHashMap<String, Stats>();
+	private final Map<String, Stats> _byOperation = new ConcurrentHashMap<String, Stats>();
+	private final Map<String, String> _shapes = new ConcurrentHashMap<String, String>();
+	private final ThreadLocal<Context> _context = ThreadLocal.withInitial(Context::new);
+
+	/**
+	 * Method to start timing a database call.  The clock is read even when
+	 * recording is off, since the slow query log times calls from it too.
+	 *
+	 * @return the start time to pass to record()
+	 */
+	public long start(){
+		return System.nanoTime();
+	}
+
+	/**
+	 * Method to count a finished database call.
+	 *
+	 * @param sql the statement text
+	 * @param started the value start() returned
+	 * @param roundTrips the round trips the call made
+	 * @param rows the rows returned or changed, negative if the call failed
+	 */
+	public void record(String sql, long started, long roundTrips, long rows){
+		if (!ENABLED){
+			return;
+		}
+		long nanos = System.nanoTime() - started;
+		String shape = shapeOf(sql);
+		this._bySql.computeIfAbsent(shape, Stats::new).record(nanos, roundTrips, rows, rows < 0);
+		this._context.get().roundTrips += roundTrips;
+	}
+
+	/**
+	 * Method to start timing an operation.  Operations may nest; only the
+	 * outermost one is counted, with the round trips of everything inside.
+	 *
+	 * @return the start time to pass to endOperation()
+	 */
+	public long beginOperation(){
+		if (!ENABLED){
+			return 0;
+		}
+		Context context = this._context.get();
+		if (context.depth++ == 0){
+			context.roundTrips = 0;
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * Method to count a finished operation.
+	 *
+	 * @param name the operation name
+	 * @param started the value beginOperation() returned
+	 * @param rows the rows the operation returned or changed, negative if it failed
+	 */
+	public void endOperation(String name, long started, long rows){
+		if (!ENABLED){
+			return;
+		}
+		Context context = this._context.get();
+		if (--context.depth > 0){
+			return;
+		}
+		this._byOperation.computeIfAbsent(name, Stats::new).record(System.nanoTime() - started, context.roundTrips, rows, rows < 0);
+	}
+
+	/**
+	 * Method to reduce a statement to its shape: blanks collapsed, string
+	 * and number literals replaced by '?', so statements built by string
+	 * concatenation are counted together.
+	 */
+	String shapeOf(String sql){
+		String shape = this._shapes.get(sql);
+		if (shape != null){
+			return shape;
+		}
+		StringBuilder sb = new StringBuilder(sql.length());
+		int n = sql.length();
+		for (int i = 0; i < n; ++i){
+			char c = sql.charAt(i);
+			if (c == '\''){
+				// skip to the closing quote; '' is an escaped quote inside the literal
+				++i;
+				while (i < n && !(sql.charAt(i) == '\'' && (i + 1 >= n || sql.charAt(i + 1) != '\''))){
+					i += sql.charAt(i) == '\'' ? 2 : 1;
+				}
+				sb.append('?');
+			}else if (Character.isDigit(c) && (sb.length() == 0 || !isWordChar(sb.charAt(sb.length() - 1)))){
+				while (i + 1 < n && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')){
+					++i;
+				}
+				sb.append('?');
+			}else if (Character.isWhitespace(c)){
+				if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' '){
+					sb.append(' ');
+				}
+			}else{
+				sb.append(c);
+			}
+		}
+		shape = sb.toString().trim();
+		if (this._shapes.size() < MAX_CACHED_SHAPES){
+			this._shapes.put(sql, shape);
+		}
+		return shape;
+	}
+
+	private static boolean isWordChar(char c){
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+
+	/**
+	 * Method to print the operations and the SQL shapes, slowest in total first.
+	 */
+	public void print(PrintStream out){
+		out.println(String.format("%-48s %8s %8s %9s %9s %9s %9s %8s %6s",
+			"operation", "count", "trips", "mean ms", "p50 ms", "p99 ms", "max ms", "rows", "errors"));
+		for (Stats s : sorted(this._byOperation)){
+			printRow(out, s.name, s);
+		}
+		out.println();
+		out.println(String.format("%-48s %8s %8s %9s %9s %9s %9s %8s %6s",
+			"sql", "count", "trips", "mean ms", "p50 ms", "p99 ms", "max ms", "rows", "errors"));
+		for (Stats s : sorted(this._bySql)){
+			printRow(out, s.name.length() > 48 ? s.name.substring(0, 45) + "..." : s.name, s);
+		}
+	}
+
+	private static void printRow(PrintStream out, String label, Stats s){
+		LatencyHistogram h = s.latency;
+		out.println(String.format("%-48s %8d %8d %9.3f %9.3f %9.3f %9.3f %8d %6d", label, h.getCount(), s.roundTrips,
+			h.getMean() / 1e6, h.getPercentile(0.5) / 1e6, h.getPercentile(0.99) / 1e6, h.getMax() / 1e6, s.rows, s.errors));
+	}
+
+	/**
+	 * Method to write the counters in the Prometheus text format, as
+	 * summaries with quantiles plus counters of round trips, rows and errors.
+	 *
+	 * @param out where the metrics go
+	 * @param pool the connection pool to add gauges for, may be null
+	 * @throws java.io.IOException when writing fails
+	 */
+	public void writePrometheus(Writer out, ConnectionPool pool) throws IOException {
+		writeFamily(out, "dbproject_operation", "operation", "a DBproject operation", sorted(this._byOperation));
+		writeFamily(out, "dbproject_sql", "sql", "a database call, by SQL shape", sorted(this._bySql));
+		if (pool != null){
+			gauge(out, "dbproject_pool_active_connections", "connections borrowed from the pool", pool.getActiveCount());
+			gauge(out, "dbproject_pool_idle_connections", "idle connections in the pool", pool.getIdleCount());
+			counter(out, "dbproject_pool_borrows_total", "connections borrowed", pool.getBorrowCount());
+			counter(out, "dbproject_pool_timeouts_total", "borrows that timed out", pool.getTimeouts());
+			counter(out, "dbproject_pool_wait_seconds_total", "time spent waiting for a connection", pool.getWaitNanosTotal() / 1e9);
+		}
+	}
+
+	private static void writeFamily(Writer out, String family, String label, String what, List<Stats> stats) throws IOException {
+		if (stats.isEmpty()){
+			return;
+		}
+		StringBuilder sb = new StringBuilder(4096);
+		sb.append("# HELP ").append(family).append("_duration_seconds Latency of ").append(what).append(".\n");
+		sb.append("# TYPE ").append(family).append("_duration_seconds summary\n");
+		for (Stats s : stats){
+			String labels = label + "=\"" + escapeLabel(s.name) + "\"";
+			for (double q : QUANTILES){
+				sb.append(family).append("_duration_seconds{").append(labels).append(",quantile=\"").append(q).append("\"} ")
+					.append(s.latency.getPercentile(q) / 1e9).append('\n');
+			}
+			sb.append(family).append("_duration_seconds_sum{").append(labels).append("} ")
+				.append(s.latency.getMean() * s.latency.getCount() / 1e9).append('\n');
+			sb.append(family).append("_duration_seconds_count{").append(labels).append("} ").append(s.latency.getCount()).append('\n');
+		}
+		String[][] counters = {{"round_trips", "Database round trips of "}, {"rows", "Rows returned or changed by "}, {"errors", "Failures of "}};
+		for (String[] c : counters){
+			sb.append("# HELP ").append(family).append('_').append(c[0]).append("_total ").append(c[1]).append(what).append(".\n");
+			sb.append("# TYPE ").append(family).append('_').append(c[0]).append("_total counter\n");
+			for (Stats s : stats){
+				long value = c[0].equals("round_trips") ? s.roundTrips : c[0].equals("rows") ? s.rows : s.errors;
+				sb.append(family).append('_').append(c[0]).append("_total{").append(label).append("=\"").append(escapeLabel(s.name))
+					.append("\"} ").append(value).append('\n');
+			}
+		}
+		out.append(sb);
+	}
+
+	private static void gauge(Writer out, String name, String help, double value) throws IOException {
+		out.append("# HELP ").append(name).append(' ').append(help).append(".\n# TYPE ").append(name).append(" gauge\n")
+			.append(name).append(' ').append(format(value)).append('\n');
+	}
+
+	private static void counter(Writer out, String name, String help, double value) throws IOException {
+		out.append("# HELP ").append(name).append(' ').append(help).append(".\n# TYPE ").append(name).append(" counter\n")
+			.append(name).append(' ').append(format(value)).append('\n');
+	}
+
+	private static String format(double value){
+		return value == Math.rint(value) ? Long.toString((long) value) : Double.toString(value);
+	}
+
+	static String escapeLabel(String value){
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Method to snapshot the counters, largest total time first.
+	 */
+	private static List<Stats> sorted(Map<String, Stats> stats){
+		List<Stats> copies = new ArrayList<Stats>();
+		for (Stats s : stats.values()){
+			copies.add(s.copy());
+		}
+		Collections.sort(copies, (a, b) -> Double.compare(b.latency.getMean() * b.latency.getCount(), a.latency.getMean() * a.latency.getCount()));
+		return copies;
+	}
+
+	/**
+	 * Method to forget everything recorded so far.
+	 */
+	public void reset(){
+		this._bySql.clear();
+		this._byOperation.clear();
+	}
+}
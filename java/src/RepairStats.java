@@ -0,0 +1,179 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class serves the repair reports (menu options 7 and 8) from the
+ * RepairsPerPlane and RepairsPerYear summary tables, which triggers on
+ * Repairs keep current (see sql/create.sql).  The reports are held in
+ * memory, already sorted, and only re-read when RepairStatsVersion
+ * changed; the version itself is checked at most once per check interval
+ * (-Ddbproject.repairStats.checkMs, 1000 ms), so a dashboard polling the
+ * reports mostly does not touch the database at all.
+ *
+ * Databases created before the summary tables existed fall back to the
+ * GROUP BY queries over Repairs until a migration adds the tables.
+ *
+ */
+public class RepairStats{
+	static final long CHECK_INTERVAL_MILLIS = Long.getLong("dbproject.repairStats.checkMs", 1000L);
+
+	static final String SQL_VERSION = "SELECT version FROM RepairStatsVersion WHERE id = 1";
+	static final String SQL_PER_PLANE = "SELECT plane_id, repair_count FROM RepairsPerPlane WHERE repair_count > 0 ORDER BY repair_count DESC, plane_id";
+	static final String SQL_PER_YEAR = "SELECT repair_year, repair_count FROM RepairsPerYear WHERE repair_count > 0 ORDER BY repair_count ASC, repair_year";
+
+	static final String[] PER_PLANE_COLUMNS = {"id", "count"};
+	static final String[] PER_YEAR_COLUMNS = {"year", "count"};
+	static final boolean[] NUMERIC_COLUMNS = {true, true};
+
+	/**
+	 * One sorted report: keys and counts in report order.
+	 */
+	static class Report{
+		final int[] keys;
+		final int[] counts;
+
+		Report(int[] keys, int[] counts){
+			this.keys = keys;
+			this.counts = counts;
+		}
+	}
+
+	private final DBproject _esql;
+
+	//serializes reloads; a lock rather than synchronized so virtual threads
+	//waiting on the database do not pin their carrier threads
+	private final ReentrantLock _lock = new ReentrantLock();
+	//snapshot served to readers; replaced as a whole on reload
+	private volatile Report _perPlane = null;
+	private volatile Report _perYear = null;
+	private long _version = -1;
+	private long _checkedAt = 0;
+	private boolean _summaryMissing = false;
+
+	public RepairStats(DBproject esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to write the number of repairs per plane, most repaired first.
+	 *
+	 * @param printer where the rows go
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when the statistics cannot be read
+	 */
+	public int printPerPlane(ResultPrinter printer) throws SQLException {
+		long started = this._esql.getMetrics().beginOperation();
+		int rows = -1;
+		try{
+			this._esql.readOnly(() -> {
+				refreshIfStale();
+				return null;
+			});
+			rows = print(printer, PER_PLANE_COLUMNS, this._perPlane);
+			return rows;
+		}finally{
+			this._esql.getMetrics().endOperation("repairs-per-plane", started, rows);
+		}
+	}
+
+	/**
+	 * Method to write the number of repairs per year, fewest first.
+	 *
+	 * @param printer where the rows go
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when the statistics cannot be read
+	 */
+	public int printPerYear(ResultPrinter printer) throws SQLException {
+		long started = this._esql.getMetrics().beginOperation();
+		int rows = -1;
+		try{
+			this._esql.readOnly(() -> {
+				refreshIfStale();
+				return null;
+			});
+			rows = print(printer, PER_YEAR_COLUMNS, this._perYear);
+			return rows;
+		}finally{
+			this._esql.getMetrics().endOperation("repairs-per-year", started, rows);
+		}
+	}
+
+	/**
+	 * Method to drop the cached reports so the next call re-reads them.
+	 */
+	public void invalidate(){
+		this._lock.lock();
+		try{
+			this._version = -1;
+			this._checkedAt = 0;
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	private static int print(ResultPrinter printer, String[] columns, Report report){
+		if (report.keys.length == 0){
+			return 0;
+		}
+		printer.begin(columns, NUMERIC_COLUMNS);
+		String[] cells = new String[2];
+		for (int i = 0; i < report.keys.length; ++i){
+			cells[0] = Integer.toString(report.keys[i]);
+			cells[1] = Integer.toString(report.counts[i]);
+			printer.row(cells);
+		}
+		return report.keys.length;
+	}
+
+	private void refreshIfStale() throws SQLException {
+		this._lock.lock();
+		try{
+			long now = System.currentTimeMillis();
+			if (this._perPlane != null && now - this._checkedAt < CHECK_INTERVAL_MILLIS){
+				return;
+			}
+			// probed on every tick, so summary tables added by a migration are picked up
+			long version;
+			try{
+				version = this._esql.queryForLong(SQL_VERSION, 0L);
+			}catch (SQLException e){
+				if (!"42P01".equals(e.getSQLState())){
+					throw e;
+				}
+				// undefined table: the database predates the summary tables
+				this._summaryMissing = true;
+				this._perPlane = load(DBproject.SQL_REPAIRS_PER_PLANE);
+				this._perYear = load(DBproject.SQL_REPAIRS_PER_YEAR);
+				this._checkedAt = now;
+				return;
+			}
+			if (this._summaryMissing){
+				// the reports in memory came from the fallback queries
+				this._summaryMissing = false;
+				this._version = -1;
+			}
+			if (version != this._version || this._perPlane == null){
+				this._perPlane = load(SQL_PER_PLANE);
+				this._perYear = load(SQL_PER_YEAR);
+				this._version = version;
+			}
+			this._checkedAt = now;
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	private Report load(String query) throws SQLException {
+		final List<int[]> rows = new ArrayList<int[]>();
+		this._esql.streamQuery(query, rs -> rows.add(new int[]{rs.getInt(1), rs.getInt(2)}));
+		int[] keys = new int[rows.size()];
+		int[] counts = new int[rows.size()];
+		for (int i = 0; i < keys.length; ++i){
+			keys[i] = rows.get(i)[0];
+			counts[i] = rows.get(i)[1];
+		}
+		return new Report(keys, counts);
+	}
+}
@@ -0,0 +1,206 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hands out connections to a read-only replica for the
+ * reporting operations, as long as the replica is up and close enough
+ * behind the primary.
+ *
+ * A background thread checks the replica every -Ddbproject.replica.checkMs
+ * (1000 ms).  A replica that has replayed everything the primary has
+ * written is current, even when nothing was written for a while; otherwise
+ * its lag is the time since the last transaction it replayed.  A replica
+ * more than -Ddbproject.replica.maxLagMs (5000 ms) behind, or one that
+ * cannot be reached, is not used until a later check finds it current
+ * again; the reports run on the primary meanwhile.  A server that is not
+ * in recovery at all, e.g. a second local instance loaded with the same
+ * data for testing, counts as current.
+ *
+ * The replica pool is opened on the first successful check, so the
+ * primary can start while the replica is down.
+ *
+ */
+public class ReplicaRouter{
+	static final long CHECK_INTERVAL_MILLIS = Long.getLong("dbproject.replica.checkMs", 1000L);
+	static final long MAX_LAG_MILLIS = Long.getLong("dbproject.replica.maxLagMs", 5000L);
+
+	static final String SQL_PRIMARY_LSN = "SELECT CAST(pg_current_wal_lsn() AS TEXT)";
+	static final String SQL_REPLICA_STATE =
+		"SELECT pg_is_in_recovery(), COALESCE(pg_last_wal_replay_lsn() >= CAST(? AS pg_lsn), FALSE), " +
+		"CAST(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000 AS BIGINT)";
+
+	private final ConnectionPool _primary;
+	private final String _url;
+	private final Properties _props;
+	private final long _maxLagMillis;
+	private final ScheduledExecutorService _checker;
+	private volatile ConnectionPool _pool = null;
+	private volatile boolean _usable = false;
+	//lag found by the last check, -1 when unknown
+	private volatile long _lagMillis = -1;
+	private volatile String _lastProblem = "not checked yet";
+	private final AtomicLong _borrows = new AtomicLong();
+	private final AtomicLong _fallbacks = new AtomicLong();
+
+	/**
+	 * Creates the router and starts checking the replica.
+	 *
+	 * @param primary the pool of the primary, asked for its WAL position
+	 * @param url the JDBC connection URL of the replica
+	 * @param props the connection properties (user, password, driver options)
+	 * @param maxLagMillis lag above which the replica is not used
+	 * @param checkIntervalMillis time between checks
+	 */
+	public ReplicaRouter(ConnectionPool primary, String url, Properties props, long maxLagMillis, long checkIntervalMillis){
+		this._primary = primary;
+		this._url = url;
+		this._props = props;
+		this._maxLagMillis = maxLagMillis;
+		this._checker = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "replica-lag-check");
+			t.setDaemon(true);
+			return t;
+		});
+		check();
+		this._checker.scheduleWithFixedDelay(this::check, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Method to create the router from the dbproject.replica system property.
+	 *
+	 * @param primary the pool of the primary
+	 * @param dbname the database, the same on the replica
+	 * @param props the connection properties of the primary
+	 * @return the router, or null when -Ddbproject.replica=<host>:<port> is not set
+	 */
+	public static ReplicaRouter fromSystemProperties(ConnectionPool primary, String dbname, Properties props){
+		String replica = System.getProperty("dbproject.replica");
+		if (replica == null || replica.isEmpty()){
+			return null;
+		}
+		return new ReplicaRouter(primary, "jdbc:postgresql://" + replica + "/" + dbname, props, MAX_LAG_MILLIS, CHECK_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Method to borrow a replica connection.
+	 *
+	 * @return a connection to release to its pool, or null when the reads
+	 *         should go to the primary because the replica is stale or down
+	 */
+	public ConnectionPool.PooledConnection borrow(){
+		ConnectionPool pool = this._pool;
+		if (!this._usable || pool == null){
+			this._fallbacks.incrementAndGet();
+			return null;
+		}
+		try{
+			ConnectionPool.PooledConnection pc = pool.borrow();
+			this._borrows.incrementAndGet();
+			return pc;
+		}catch (SQLException e){
+			markDown(e);
+			this._fallbacks.incrementAndGet();
+			return null;
+		}
+	}
+
+	/**
+	 * Method to stop using the replica until the next check finds it
+	 * current, e.g. after a statement on it failed.
+	 */
+	public void markDown(SQLException e){
+		this._usable = false;
+		this._lastProblem = e.getMessage();
+	}
+
+	/**
+	 * Method run periodically to measure the lag of the replica.
+	 */
+	private void check(){
+		try{
+			String primaryLsn;
+			ConnectionPool.PooledConnection pc = this._primary.borrow();
+			try{
+				Statement stmt = pc.getConnection().createStatement();
+				try{
+					ResultSet rs = stmt.executeQuery(SQL_PRIMARY_LSN);
+					rs.next();
+					primaryLsn = rs.getString(1);
+				}finally{
+					stmt.close();
+				}
+			}finally{
+				this._primary.release(pc);
+			}
+
+			ConnectionPool pool = this._pool;
+			if (pool == null){
+				pool = ConnectionPool.fromSystemProperties(this._url, this._props);
+				this._pool = pool;
+			}
+			long lag;
+			pc = pool.borrow();
+			try{
+				PreparedStatement stmt = pc.getConnection().prepareStatement(SQL_REPLICA_STATE);
+				try{
+					stmt.setString(1, primaryLsn);
+					ResultSet rs = stmt.executeQuery();
+					rs.next();
+					boolean inRecovery = rs.getBoolean(1);
+					boolean caughtUp = rs.getBoolean(2);
+					long sinceReplay = rs.getLong(3);
+					boolean replayed = !rs.wasNull();
+					lag = !inRecovery || caughtUp ? 0 : replayed ? Math.max(sinceReplay, 0) : -1;
+				}finally{
+					stmt.close();
+				}
+			}finally{
+				pool.release(pc);
+			}
+			this._lagMillis = lag;
+			this._usable = lag >= 0 && lag <= this._maxLagMillis;
+			this._lastProblem = this._usable ? null : lag < 0 ? "replica has not replayed anything yet" : "replica " + lag + " ms behind";
+		}catch (SQLException | RuntimeException e){
+			this._usable = false;
+			this._lagMillis = -1;
+			this._lastProblem = e.getMessage();
+		}
+	}
+
+	public boolean isUsable(){
+		return this._usable;
+	}
+
+	public long getLagMillis(){
+		return this._lagMillis;
+	}
+
+	/**
+	 * Method to describe the replica for the statistics screen.
+	 */
+	public String getStats(){
+		String problem = this._lastProblem;
+		return String.format("replica %s: %s, lag %s, %d reads, %d fell back to the primary%s", this._url,
+			this._usable ? "in use" : "not used", this._lagMillis < 0 ? "unknown" : this._lagMillis + " ms",
+			this._borrows.get(), this._fallbacks.get(), problem == null ? "" : " (" + problem + ")");
+	}
+
+	/**
+	 * Method to stop checking and close the replica connections.
+	 */
+	public void close(){
+		this._checker.shutdownNow();
+		ConnectionPool pool = this._pool;
+		if (pool != null){
+			pool.close();
+		}
+	}
+}
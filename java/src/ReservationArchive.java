@@ -0,0 +1,448 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * This class moves the reservations of flights that departed long ago out
+ * of Reservation into compressed files in a local archive directory, and
+ * answers lookups on them on demand.
+ *
+ * A run archives the flights that departed more than
+ * -Ddbproject.archive.retentionDays (365) days ago, a batch of flights at
+ * a time.  Every batch is one DELETE ... RETURNING whose rows are written
+ * to a gzip file that is synced and renamed into place before the delete
+ * commits, so a failed batch leaves its rows in the database.  If the
+ * process dies between the rename and the commit the next run archives
+ * the same rows again; the lookups count every rnum once.  The files are
+ * in the format of reservation.csv, e.g. to load them back with
+ *
+ *   \copy Reservation FROM PROGRAM 'gzip -dc archive/reservation-....csv.gz' WITH DELIMITER ','
+ *
+ * Reservation is range partitioned on rnum (migration V004).  After
+ * archiving, the run creates the next range ahead of reservation_rnum_seq
+ * and drops the old ranges the archive emptied, so the table holds
+ * little more than the recent partitions bookings go to.
+ *
+ */
+public class ReservationArchive{
+	public static final int RETENTION_DAYS = Integer.getInteger("dbproject.archive.retentionDays", 365);
+	//flights per DELETE, transaction and archive file
+	public static final int DEFAULT_BATCH_FLIGHTS = Integer.getInteger("dbproject.archive.batchFlights", 200);
+	//how long creating or dropping partitions waits for the table lock before trying again next run
+	static final long LOCK_TIMEOUT_MILLIS = 2000;
+
+	static final String SQL_OLD_FLIGHTS =
+		"SELECT fnum FROM Flight WHERE actual_departure_date < ? AND fnum > ? ORDER BY fnum LIMIT ?";
+	static final String SQL_ARCHIVE =
+		"DELETE FROM Reservation r USING Flight f " +
+		"WHERE r.fid = f.fnum AND f.fnum BETWEEN ? AND ? AND f.actual_departure_date < ? " +
+		"RETURNING r.rnum, r.cid, r.fid, r.status";
+	static final String SQL_PARTITIONS =
+		"SELECT c.relname, pg_get_expr(c.relpartbound, c.oid) FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid " +
+		"WHERE i.inhparent = CAST('reservation' AS regclass)";
+	//highest rnum in use or handed out in blocks by IdAllocator
+	static final String SQL_TOP_RNUM =
+		"SELECT GREATEST((SELECT COALESCE(MAX(rnum), 0) FROM Reservation), " +
+		"COALESCE((SELECT last_value FROM pg_sequences WHERE schemaname = current_schema() AND sequencename = 'reservation_rnum_seq'), 0))";
+	//moves the rows of a range about to be created out of the default partition into its new table
+	static final String SQL_MOVE_DEFAULT =
+		"WITH moved AS (DELETE FROM %s WHERE rnum >= ? AND rnum < ? RETURNING rnum, cid, fid, status) " +
+		"INSERT INTO %s (rnum, cid, fid, status) SELECT rnum, cid, fid, status FROM moved";
+	static final Pattern RANGE = Pattern.compile("FOR VALUES FROM \\((-?\\d+)\\) TO \\((-?\\d+)\\)");
+	//reservation-<first fnum>-<last fnum>-<millis>.csv.gz
+	static final Pattern FILE_NAME = Pattern.compile("reservation-(-?\\d+)-(-?\\d+)-\\d+\\.csv\\.gz");
+
+	/**
+	 * Totals of one archival run.
+	 */
+	public static class Result{
+		public long flights = 0;
+		public long archived = 0;
+		public long files = 0;
+		public int partitionsCreated = 0;
+		public int partitionsDropped = 0;
+		public long millis = 0;
+
+		@Override
+		public String toString(){
+			return String.format("%d reservations of %d departed flights archived into %d files, %d partitions created, %d dropped, %d ms",
+				this.archived, this.flights, this.files, this.partitionsCreated, this.partitionsDropped, this.millis);
+		}
+	}
+
+	/*
+	 * One rnum range of the partitioned Reservation, upper bound exclusive.
+	 */
+	private static class Partition{
+		final String name;
+		final long lower;
+		final long upper;
+
+		Partition(String name, long lower, long upper){
+			this.name = name;
+			this.lower = lower;
+			this.upper = upper;
+		}
+	}
+
+	private final DBproject _esql;
+	private final File _dir;
+
+	public ReservationArchive(DBproject esql){
+		this(esql, new File(System.getProperty("dbproject.archive.dir", "archive")));
+	}
+
+	public ReservationArchive(DBproject esql, File dir){
+		this._esql = esql;
+		this._dir = dir;
+	}
+
+	/**
+	 * Method to archive the reservations of every flight that departed more
+	 * than retentionDays ago, then create and drop Reservation partitions.
+	 *
+	 * @param retentionDays days after departure a flight's reservations stay in the database
+	 * @param batchFlights flights per transaction and archive file
+	 * @return the totals of the run
+	 * @throws java.sql.SQLException when a batch fails; the batches before it stay archived
+	 * @throws java.io.IOException when an archive file cannot be written
+	 */
+	public Result archive(int retentionDays, int batchFlights) throws SQLException, IOException {
+		if (retentionDays < 0){
+			throw new IllegalArgumentException("retention must not be negative");
+		}
+		if (batchFlights < 1){
+			throw new IllegalArgumentException("batch size must be at least 1");
+		}
+		long started = this._esql.getMetrics().beginOperation();
+		long begin = System.currentTimeMillis();
+		Result result = new Result();
+		long rows = -1;
+		try{
+			if (!this._dir.isDirectory() && !this._dir.mkdirs()){
+				throw new IOException("cannot create the archive directory " + this._dir);
+			}
+			Date cutoff = Date.valueOf(LocalDate.now().minusDays(retentionDays));
+			int after = Integer.MIN_VALUE;
+			while (true){
+				List<Integer> flights = this._esql.queryForList(SQL_OLD_FLIGHTS, rs -> rs.getInt(1), cutoff, after, batchFlights);
+				if (flights.isEmpty()){
+					break;
+				}
+				int first = flights.get(0);
+				after = flights.get(flights.size() - 1);
+				long archived = archiveBatch(first, after, cutoff);
+				if (archived > 0){
+					result.archived += archived;
+					++result.files;
+				}
+				result.flights += flights.size();
+				if (flights.size() < batchFlights){
+					break;
+				}
+			}
+			if (result.archived > 0){
+				this._esql.getReservationSnapshot().invalidate();
+			}
+			maintainPartitions(result);
+			rows = result.archived;
+			return result;
+		}finally{
+			result.millis = System.currentTimeMillis() - begin;
+			this._esql.getMetrics().endOperation("archive", started, rows);
+		}
+	}
+
+	/**
+	 * Method to move the reservations of the departed flights first..last
+	 * into one archive file, in one transaction.
+	 *
+	 * @return the number of reservations archived
+	 */
+	private long archiveBatch(int first, int last, Date cutoff) throws SQLException, IOException {
+		String name = "reservation-" + first + "-" + last + "-" + System.currentTimeMillis() + ".csv.gz";
+		File file = new File(this._dir, name);
+		File tmp = new File(this._dir, name + ".tmp");
+		Connection conn = this._esql.pinConnection();
+		try{
+			conn.setAutoCommit(false);
+			try{
+				long rows;
+				FileOutputStream fos = new FileOutputStream(tmp);
+				try{
+					GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(fos, 1 << 16));
+					Writer out = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
+					try{
+						rows = this._esql.streamQuery(SQL_ARCHIVE, rs -> {
+							try{
+								out.write(rs.getInt(1) + "," + rs.getInt(2) + "," + rs.getInt(3) + "," + rs.getString(4) + "\n");
+							}catch (IOException e){
+								throw new UncheckedIOException(e);
+							}
+						}, first, last, cutoff);
+					}catch (UncheckedIOException e){
+						throw e.getCause();
+					}
+					out.flush();
+					gzip.finish();
+					gzip.flush();
+					fos.getFD().sync();
+				}finally{
+					fos.close();
+				}
+				if (rows == 0){
+					tmp.delete();
+					conn.commit();
+					return 0;
+				}
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+				// a failed commit may still have committed, so the file stays; rows left behind are archived again
+				conn.commit();
+				return rows;
+			}catch (SQLException | IOException | RuntimeException e){
+				conn.rollback();
+				tmp.delete();
+				throw e;
+			}finally{
+				conn.setAutoCommit(true);
+			}
+		}finally{
+			this._esql.unpinConnection();
+		}
+	}
+
+	/**
+	 * Method to keep one empty rnum range ahead of the highest reservation
+	 * number handed out, and to drop the ranges well behind it that hold
+	 * no rows any more.  Does nothing when Reservation is not partitioned.
+	 */
+	private void maintainPartitions(Result result) throws SQLException {
+		List<String[]> partitions = this._esql.queryForList(SQL_PARTITIONS, rs -> new String[]{rs.getString(1), rs.getString(2)});
+		List<Partition> ranges = new ArrayList<Partition>();
+		String defaultPartition = null;
+		for (String[] p : partitions){
+			Matcher m = RANGE.matcher(p[1]);
+			if (m.matches()){
+				ranges.add(new Partition(p[0], Long.parseLong(m.group(1)), Long.parseLong(m.group(2))));
+			}else if (p[1].equals("DEFAULT")){
+				defaultPartition = p[0];
+			}
+		}
+		if (ranges.isEmpty()){
+			return;
+		}
+		Partition newest = ranges.get(0);
+		for (Partition p : ranges){
+			if (p.upper > newest.upper){
+				newest = p;
+			}
+		}
+		long width = newest.upper - newest.lower;
+		long top = this._esql.queryForLong(SQL_TOP_RNUM, 0);
+
+		long upper = newest.upper;
+		while (upper <= top + width && upper < Integer.MAX_VALUE){
+			long next = Math.min(upper + width, Integer.MAX_VALUE);
+			if (!createPartition("reservation_p" + (upper / width), upper, next, defaultPartition)){
+				break;
+			}
+			++result.partitionsCreated;
+			upper = next;
+		}
+
+		List<Partition> empty = new ArrayList<Partition>();
+		for (Partition p : ranges){
+			if (p.upper <= top - width && isEmpty(p)){
+				empty.add(p);
+			}
+		}
+		if (empty.isEmpty()){
+			return;
+		}
+		// dropping a partition locks all of Reservation; give up for this run rather than queue behind long readers
+		Connection conn = this._esql.pinConnection();
+		try{
+			conn.setAutoCommit(false);
+			try{
+				this._esql.executeUpdate("SET LOCAL lock_timeout = " + LOCK_TIMEOUT_MILLIS);
+				this._esql.executeUpdate("LOCK TABLE Reservation IN ACCESS EXCLUSIVE MODE");
+				int dropped = 0;
+				for (Partition p : empty){
+					if (isEmpty(p)){
+						this._esql.executeUpdate("DROP TABLE \"" + p.name + "\"");
+						++dropped;
+					}
+				}
+				conn.commit();
+				result.partitionsDropped += dropped;
+			}catch (SQLException e){
+				conn.rollback();
+				if (!"55P03".equals(e.getSQLState())){
+					throw e;
+				}
+			}finally{
+				conn.setAutoCommit(true);
+			}
+		}finally{
+			this._esql.unpinConnection();
+		}
+	}
+
+	/**
+	 * Method to create the partition for the rnums lower..upper - 1.  Rows
+	 * of the range already in the default partition, which would make the
+	 * plain CREATE fail, are moved into the new table before it is
+	 * attached.  Both statements scan and lock the default partition, so
+	 * they wait for the lock no longer than the drops do.
+	 *
+	 * @return false when the lock was not granted in time
+	 */
+	private boolean createPartition(String name, long lower, long upper, String defaultPartition) throws SQLException {
+		String bounds = " FOR VALUES FROM (" + lower + ") TO (" + upper + ")";
+		Connection conn = this._esql.pinConnection();
+		try{
+			conn.setAutoCommit(false);
+			try{
+				this._esql.executeUpdate("SET LOCAL lock_timeout = " + LOCK_TIMEOUT_MILLIS);
+				if (defaultPartition != null && this._esql.queryForInt("SELECT COUNT(*) FROM (SELECT 1 FROM \"" + defaultPartition
+						+ "\" WHERE rnum >= ? AND rnum < ? LIMIT 1) AS r", 0, lower, upper) > 0){
+					this._esql.executeUpdate("CREATE TABLE " + name + " (LIKE Reservation INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+					this._esql.executeUpdate(String.format(SQL_MOVE_DEFAULT, "\"" + defaultPartition + "\"", name), lower, upper);
+					this._esql.executeUpdate("ALTER TABLE Reservation ATTACH PARTITION " + name + bounds);
+				}else{
+					this._esql.executeUpdate("CREATE TABLE " + name + " PARTITION OF Reservation" + bounds);
+				}
+				conn.commit();
+				return true;
+			}catch (SQLException e){
+				conn.rollback();
+				if (!"55P03".equals(e.getSQLState())){
+					throw e;
+				}
+				return false;
+			}finally{
+				conn.setAutoCommit(true);
+			}
+		}finally{
+			this._esql.unpinConnection();
+		}
+	}
+
+	private boolean isEmpty(Partition p) throws SQLException {
+		return this._esql.queryForInt("SELECT COUNT(*) FROM (SELECT 1 FROM \"" + p.name + "\" LIMIT 1) AS r", 0) == 0;
+	}
+
+	/**
+	 * Method to look up an archived reservation.
+	 *
+	 * @param rnum the Reservation.rnum
+	 * @return the reservation as it was archived, or null when it is not in the archive
+	 * @throws java.io.IOException when an archive file cannot be read
+	 */
+	public Booking find(int rnum) throws IOException {
+		List<Booking> found = read(null, b -> b.getRnum() == rnum, true);
+		return found.isEmpty() ? null : found.get(0);
+	}
+
+	/**
+	 * Method to count the archived reservations of a flight with a status.
+	 * Only the files holding the flight's batch are read.
+	 *
+	 * @param flightNum the Flight.fnum
+	 * @param status 'R', 'W' or 'C'
+	 * @return the number of such reservations in the archive
+	 * @throws java.io.IOException when an archive file cannot be read
+	 */
+	public long count(int flightNum, char status) throws IOException {
+		return read(flightNum, b -> b.getFlightNum() == flightNum && b.getStatus() == status, false).size();
+	}
+
+	/**
+	 * Method to read the archived reservations a filter accepts, each rnum
+	 * once, from the files whose flight range contains flightNum, or from
+	 * all files when flightNum is null.
+	 */
+	private List<Booking> read(Integer flightNum, Predicate<Booking> filter, boolean firstOnly) throws IOException {
+		List<Booking> found = new ArrayList<Booking>();
+		Set<Integer> seen = new HashSet<Integer>();
+		for (File file : files()){
+			if (flightNum != null){
+				Matcher m = FILE_NAME.matcher(file.getName());
+				m.matches();
+				if (flightNum < Long.parseLong(m.group(1)) || flightNum > Long.parseLong(m.group(2))){
+					continue;
+				}
+			}
+			BufferedReader in = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file), 1 << 16),
+				StandardCharsets.UTF_8));
+			try{
+				String line;
+				while ((line = in.readLine()) != null){
+					String[] f = line.split(",");
+					if (f.length != 4){
+						continue;
+					}
+					Booking b = new Booking(Integer.parseInt(f[0]), Integer.parseInt(f[1]), Integer.parseInt(f[2]), f[3].charAt(0));
+					if (filter.test(b) && seen.add(b.getRnum())){
+						found.add(b);
+						if (firstOnly){
+							return found;
+						}
+					}
+				}
+			}finally{
+				in.close();
+			}
+		}
+		return found;
+	}
+
+	private File[] files(){
+		File[] files = this._dir.listFiles((dir, name) -> FILE_NAME.matcher(name).matches());
+		if (files == null){
+			return new File[0];
+		}
+		Arrays.sort(files);
+		return files;
+	}
+
+	public File getDir(){
+		return this._dir;
+	}
+
+	/**
+	 * Method to describe the archive for the statistics screen.
+	 */
+	public String getStats(){
+		File[] files = files();
+		long bytes = 0;
+		for (File f : files){
+			bytes += f.length();
+		}
+		return String.format("reservation archive %s: %d files, %d KB", this._dir, files.length, bytes / 1024);
+	}
+}
@@ -0,0 +1,497 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IntSummaryStatistics;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.IntStream;
+
+/**
+ * This class keeps a copy of Reservation in memory, one primitive array per
+ * column (rnum, cid, fid as int[], status as byte[]), and answers passenger
+ * counts from it with parallel scans instead of a COUNT(*) against the
+ * database.  About 13 bytes per reservation, so millions of rows fit easily.
+ *
+ * Bookings, cancellations and promotions made by this process are applied
+ * to the copy as they happen.  Changes made by other processes are picked
+ * up by reloading the whole table once the copy is older than
+ * -Ddbproject.snapshot.maxAgeMs (60000 ms); readers keep using the old copy
+ * while one of them reloads.  -Ddbproject.snapshot=false turns the copy off
+ * and counts go to the database again.
+ *
+ * Appends are made under a lock and published with the row count in a new
+ * View after the row is written, so scans never see a half written row.
+ * Rows are found by binary search over the ascending prefix of the copy
+ * and by a hash index over the rows appended out of rnum order after it,
+ * which concurrent bookings committing out of allocation order produce.
+ *
+ */
+public class ReservationSnapshot{
+	static final boolean ENABLED = !"false".equals(System.getProperty("dbproject.snapshot"));
+	static final long MAX_AGE_MILLIS = Long.getLong("dbproject.snapshot.maxAgeMs", 60000L);
+	static final String SQL_LOAD = "SELECT rnum, cid, fid, status FROM Reservation ORDER BY rnum";
+	//the histogram from the database, when the copy is off
+	static final String SQL_HISTOGRAM =
+		"SELECT fid, COUNT(*) FILTER (WHERE status = 'W'), COUNT(*) FILTER (WHERE status = 'C'), COUNT(*) FILTER (WHERE status = 'R') " +
+		"FROM Reservation GROUP BY fid ORDER BY fid";
+	static final String[] HISTOGRAM_COLUMNS = {"fnum", "waitlisted", "cancelled", "reserved"};
+	static final boolean[] HISTOGRAM_NUMERIC = {true, true, true, true};
+
+	//status codes stored in the status column; anything else (NULL) is OTHER
+	static final byte WAITLISTED = 0;
+	static final byte CANCELLED = 1;
+	static final byte RESERVED = 2;
+	static final byte OTHER = 3;
+	//rows one parallel task scans
+	static final int CHUNK_ROWS = 1 << 16;
+	//widest fnum range the histogram counts in flat arrays; wider ones are sorted
+	static final int DENSE_FLIGHTS = 1 << 14;
+
+	/**
+	 * Open addressing map from rnum to row for the rows appended after the
+	 * ascending prefix.  Only used with the lock held.
+	 */
+	static class RowIndex{
+		int[] keys = new int[16];
+		//row + 1, 0 for an empty slot
+		int[] rows = new int[16];
+		int size = 0;
+
+		int get(int rnum){
+			int mask = this.keys.length - 1;
+			for (int i = mix(rnum) & mask; this.rows[i] != 0; i = (i + 1) & mask){
+				if (this.keys[i] == rnum){
+					return this.rows[i] - 1;
+				}
+			}
+			return -1;
+		}
+
+		void put(int rnum, int row){
+			if ((this.size + 1) * 2 > this.keys.length){
+				int[] keys = this.keys;
+				int[] rows = this.rows;
+				this.keys = new int[keys.length * 2];
+				this.rows = new int[keys.length * 2];
+				this.size = 0;
+				for (int i = 0; i < keys.length; ++i){
+					if (rows[i] != 0){
+						put(keys[i], rows[i] - 1);
+					}
+				}
+			}
+			int mask = this.keys.length - 1;
+			int i = mix(rnum) & mask;
+			while (this.rows[i] != 0 && this.keys[i] != rnum){
+				i = (i + 1) & mask;
+			}
+			if (this.rows[i] == 0){
+				++this.size;
+			}
+			this.keys[i] = rnum;
+			this.rows[i] = row + 1;
+		}
+
+		private static int mix(int key){
+			int h = key * 0x9E3779B9;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	/**
+	 * The column arrays.  Replaced by larger copies when they fill up; rows
+	 * below the published size are never moved within one instance.
+	 */
+	static class Columns{
+		final int[] rnum;
+		final int[] cid;
+		final int[] fid;
+		final byte[] status;
+		//rows below this are ascending by rnum and found by binary search
+		int sortedRows = 0;
+		//the rows from sortedRows on, once one was appended out of order
+		RowIndex tail = null;
+
+		Columns(int capacity){
+			this.rnum = new int[capacity];
+			this.cid = new int[capacity];
+			this.fid = new int[capacity];
+			this.status = new byte[capacity];
+		}
+
+		Columns grow(int size, int capacity){
+			Columns c = new Columns(capacity);
+			System.arraycopy(this.rnum, 0, c.rnum, 0, size);
+			System.arraycopy(this.cid, 0, c.cid, 0, size);
+			System.arraycopy(this.fid, 0, c.fid, 0, size);
+			System.arraycopy(this.status, 0, c.status, 0, size);
+			c.sortedRows = this.sortedRows;
+			c.tail = this.tail;
+			return c;
+		}
+
+		int find(int rnum){
+			int lo = 0, hi = this.sortedRows - 1;
+			while (lo <= hi){
+				int mid = (lo + hi) >>> 1;
+				if (this.rnum[mid] < rnum){
+					lo = mid + 1;
+				}else if (this.rnum[mid] > rnum){
+					hi = mid - 1;
+				}else{
+					return mid;
+				}
+			}
+			return this.tail == null ? -1 : this.tail.get(rnum);
+		}
+
+		/*
+		 * Records the row just written at index row for find().
+		 */
+		void appended(int row){
+			if (this.tail == null && row == this.sortedRows && (row == 0 || this.rnum[row - 1] < this.rnum[row])){
+				++this.sortedRows;
+				return;
+			}
+			if (this.tail == null){
+				this.tail = new RowIndex();
+			}
+			this.tail.put(this.rnum[row], row);
+		}
+	}
+
+	/**
+	 * Columns and row count, published together so a scan never pairs the
+	 * count of one copy with the arrays of another.
+	 */
+	static class View{
+		final Columns columns;
+		final int size;
+
+		View(Columns columns, int size){
+			this.columns = columns;
+			this.size = size;
+		}
+	}
+
+	private final DBproject _esql;
+	//serializes appends, status changes and the swap after a reload
+	private final ReentrantLock _lock = new ReentrantLock();
+	//held by the thread reloading the table
+	private final ReentrantLock _reload = new ReentrantLock();
+	//the columns and how many of their rows are published; null until loaded
+	private volatile View _view = null;
+	private volatile long _loadedAt = 0;
+	//changes made while a reload runs, replayed onto the reloaded copy; null otherwise
+	private List<int[]> _changesDuringReload = null;
+	private long _reloads = 0;
+
+	public ReservationSnapshot(DBproject esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to load the table if it is not loaded yet or the copy is
+	 * older than the maximum age.
+	 *
+	 * @throws java.sql.SQLException when the table cannot be read
+	 */
+	public void refreshIfStale() throws SQLException {
+		if (this._view != null && System.currentTimeMillis() - this._loadedAt < MAX_AGE_MILLIS){
+			return;
+		}
+		if (this._view != null){
+			// someone else is already reloading; their copy will do
+			if (this._reload.tryLock()){
+				try{
+					reload();
+				}finally{
+					this._reload.unlock();
+				}
+			}
+			return;
+		}
+		this._reload.lock();
+		try{
+			if (this._view == null){
+				reload();
+			}
+		}finally{
+			this._reload.unlock();
+		}
+	}
+
+	/**
+	 * Method to read the whole table into new column arrays and swap them
+	 * in.  The table is read from the primary even for a report routed to
+	 * the replica.  Changes applied while the table was read are replayed
+	 * onto the new copy, since its query may have started before they
+	 * committed.
+	 */
+	private void reload() throws SQLException {
+		this._lock.lock();
+		try{
+			this._changesDuringReload = new ArrayList<int[]>();
+		}finally{
+			this._lock.unlock();
+		}
+		View current = this._view;
+		int expected = current == null ? 0 : current.size;
+		final Columns[] loaded = {new Columns(Math.max(1024, expected + expected / 4))};
+		final int[] n = {0};
+		long startedAt = System.currentTimeMillis();
+		try{
+			// from the primary: a replica may miss bookings of this process older than the reload
+			this._esql.onPrimary(() -> this._esql.streamQuery(SQL_LOAD, rs -> {
+				if (n[0] == loaded[0].rnum.length){
+					loaded[0] = loaded[0].grow(n[0], n[0] * 2);
+				}
+				Columns c = loaded[0];
+				c.rnum[n[0]] = rs.getInt(1);
+				c.cid[n[0]] = rs.getInt(2);
+				c.fid[n[0]] = rs.getInt(3);
+				c.status[n[0]] = code(rs.getString(4));
+				++n[0];
+			}));
+			// ordered by rnum
+			loaded[0].sortedRows = n[0];
+		}catch (SQLException | RuntimeException e){
+			this._lock.lock();
+			try{
+				this._changesDuringReload = null;
+			}finally{
+				this._lock.unlock();
+			}
+			throw e;
+		}
+
+		this._lock.lock();
+		try{
+			List<int[]> changes = this._changesDuringReload;
+			this._changesDuringReload = null;
+			this._view = new View(loaded[0], n[0]);
+			for (int[] change : changes){
+				apply(change[0], change[1], change[2], (byte) change[3]);
+			}
+			this._loadedAt = startedAt;
+			++this._reloads;
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to forget the copy so the next count reloads it, e.g. after
+	 * changes made with set based statements the snapshot cannot follow.
+	 */
+	public void invalidate(){
+		this._loadedAt = 0;
+	}
+
+	/**
+	 * Method to record a reservation this process created or changed.
+	 * Does nothing while the table has never been loaded.
+	 *
+	 * @param rnum the Reservation.rnum
+	 * @param cid the Customer.id
+	 * @param fid the Flight.fnum
+	 * @param status the new status, W, C or R
+	 */
+	public void update(int rnum, int cid, int fid, char status){
+		if (!ENABLED){
+			return;
+		}
+		this._lock.lock();
+		try{
+			byte s = code(String.valueOf(status));
+			if (this._changesDuringReload != null){
+				this._changesDuringReload.add(new int[]{rnum, cid, fid, s});
+			}
+			if (this._view != null){
+				apply(rnum, cid, fid, s);
+			}
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to change the status of a known row or append a new one.
+	 * Called with the lock held.
+	 */
+	private void apply(int rnum, int cid, int fid, byte status){
+		Columns c = this._view.columns;
+		int size = this._view.size;
+		int i = c.find(rnum);
+		if (i >= 0){
+			c.status[i] = status;
+			return;
+		}
+		if (size == c.rnum.length){
+			c = c.grow(size, size * 2);
+		}
+		c.rnum[size] = rnum;
+		c.cid[size] = cid;
+		c.fid[size] = fid;
+		c.status[size] = status;
+		c.appended(size);
+		// publishes the row to scans
+		this._view = new View(c, size + 1);
+	}
+
+	/**
+	 * Method to count the reservations of a flight with a status.
+	 *
+	 * @param flightNum the Flight.fnum
+	 * @param status W, C or R
+	 * @return the number of reservations
+	 * @throws java.sql.SQLException when the table has to be loaded and cannot be read
+	 */
+	public int count(int flightNum, char status) throws SQLException {
+		refreshIfStale();
+		View view = this._view;
+		final int size = view.size;
+		final Columns c = view.columns;
+		final byte s = code(String.valueOf(status));
+		return IntStream.range(0, chunks(size)).parallel().map(chunk -> {
+			int count = 0;
+			int end = Math.min(size, (chunk + 1) * CHUNK_ROWS);
+			for (int i = chunk * CHUNK_ROWS; i < end; ++i){
+				if (c.fid[i] == flightNum && c.status[i] == s){
+					++count;
+				}
+			}
+			return count;
+		}).sum();
+	}
+
+	/**
+	 * Method to count the reservations per flight and status.
+	 *
+	 * @return one row per flight with reservations, ascending by fnum:
+	 *         {fnum, waitlisted, cancelled, reserved, other}
+	 * @throws java.sql.SQLException when the table has to be loaded and cannot be read
+	 */
+	public List<int[]> histogram() throws SQLException {
+		refreshIfStale();
+		View view = this._view;
+		final int size = view.size;
+		final Columns c = view.columns;
+		List<int[]> rows = new ArrayList<int[]>();
+		if (size == 0){
+			return rows;
+		}
+		IntSummaryStatistics fids = IntStream.range(0, size).parallel().map(i -> c.fid[i]).summaryStatistics();
+		if ((long) fids.getMax() - fids.getMin() >= DENSE_FLIGHTS){
+			return sortedHistogram(c, size);
+		}
+		// flight numbers are dense, so a flat array indexed by fnum - min holds the counts
+		final int base = fids.getMin();
+		final int width = fids.getMax() - fids.getMin() + 1;
+		long[] counts = IntStream.range(0, chunks(size)).parallel().mapToObj(chunk -> {
+			long[] local = new long[width * 4];
+			int end = Math.min(size, (chunk + 1) * CHUNK_ROWS);
+			for (int i = chunk * CHUNK_ROWS; i < end; ++i){
+				++local[(c.fid[i] - base) * 4 + c.status[i]];
+			}
+			return local;
+		}).reduce((a, b) -> {
+			for (int i = 0; i < a.length; ++i){
+				a[i] += b[i];
+			}
+			return a;
+		}).get();
+		for (int f = 0; f < width; ++f){
+			long total = counts[f * 4] + counts[f * 4 + 1] + counts[f * 4 + 2] + counts[f * 4 + 3];
+			if (total > 0){
+				rows.add(new int[]{base + f, (int) counts[f * 4], (int) counts[f * 4 + 1], (int) counts[f * 4 + 2], (int) counts[f * 4 + 3]});
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Method to count the reservations per flight and status by sorting
+	 * fnum and status of every row, for fnums too far apart to count in
+	 * flat arrays.
+	 */
+	private static List<int[]> sortedHistogram(Columns c, int size){
+		long[] keys = new long[size];
+		Arrays.parallelSetAll(keys, i -> (long) c.fid[i] * 4 + c.status[i]);
+		Arrays.parallelSort(keys);
+		List<int[]> rows = new ArrayList<int[]>();
+		int[] row = null;
+		for (long key : keys){
+			int fid = (int) Math.floorDiv(key, 4L);
+			if (row == null || row[0] != fid){
+				row = new int[]{fid, 0, 0, 0, 0};
+				rows.add(row);
+			}
+			++row[1 + (int) Math.floorMod(key, 4L)];
+		}
+		return rows;
+	}
+
+	/**
+	 * Method to write the number of waitlisted, cancelled and reserved
+	 * passengers of every flight with reservations, ascending by fnum.
+	 *
+	 * @param printer where the rows go
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when the counts cannot be read
+	 */
+	public int printHistogram(ResultPrinter printer) throws SQLException {
+		long started = this._esql.getMetrics().beginOperation();
+		int rows = -1;
+		try{
+			// read in full before printing: a replica failure reruns the read on the primary
+			List<int[]> histogram = ENABLED ? this._esql.readOnly(this::histogram)
+				: this._esql.readOnly(() -> this._esql.queryForList(SQL_HISTOGRAM,
+					rs -> new int[]{rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4)}));
+			if (!histogram.isEmpty()){
+				printer.begin(HISTOGRAM_COLUMNS, HISTOGRAM_NUMERIC);
+			}
+			String[] cells = new String[4];
+			for (int[] flight : histogram){
+				for (int i = 0; i < 4; ++i){
+					cells[i] = Integer.toString(flight[i]);
+				}
+				printer.row(cells);
+			}
+			rows = histogram.size();
+			return rows;
+		}finally{
+			this._esql.getMetrics().endOperation("status-histogram", started, rows);
+		}
+	}
+
+	private static int chunks(int size){
+		return (size + CHUNK_ROWS - 1) / CHUNK_ROWS;
+	}
+
+	static byte code(String status){
+		if (status == null || status.length() != 1){
+			return OTHER;
+		}
+		switch (Character.toUpperCase(status.charAt(0))){
+			case 'W': return WAITLISTED;
+			case 'C': return CANCELLED;
+			case 'R': return RESERVED;
+			default: return OTHER;
+		}
+	}
+
+	public int getSize(){
+		View view = this._view;
+		return view == null ? 0 : view.size;
+	}
+
+	/**
+	 * Method to describe the copy for the statistics screen.
+	 */
+	public String getStats(){
+		long age = this._view == null ? -1 : (System.currentTimeMillis() - this._loadedAt) / 1000;
+		return String.format("reservation snapshot: %d rows, %d reloads, loaded %s", getSize(), this._reloads,
+			age < 0 ? "never" : age + " s ago");
+	}
+}
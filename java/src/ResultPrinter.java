@@ -0,0 +1,343 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class renders query results through one large buffered writer, to
+ * standard out or to a file, in one of several formats:
+ *
+ *   table  columns padded to a common width (widths taken from the first rows)
+ *   tsv    tab separated, header line first
+ *   csv    RFC 4180 quoting, header line first
+ *   json   one JSON object per row (JSON lines)
+ *
+ * It can be used as a RowHandler for DBproject.streamQuery(), in which case
+ * the column metadata is read once, on the first row.
+ *
+ */
+public class ResultPrinter implements RowHandler{
+
+	public enum Format{
+		TABLE, TSV, CSV, JSON;
+
+		/**
+		 * Method to parse a format name, case insensitive ("jsonl" is accepted for JSON).
+		 */
+		public static Format parse(String name){
+			String n = name.trim().toUpperCase();
+			if (n.equals("JSONL")){
+				return JSON;
+			}
+			return Format.valueOf(n);
+		}
+	}
+
+	//rows held back to size the columns of the table format
+	static final int TABLE_SAMPLE_ROWS = 1000;
+	static final int BUFFER_SIZE = 1 << 16;
+
+	private final Writer _out;
+	private final boolean _closeOut;
+	private final Format _format;
+
+	private String[] _columns = null;
+	private boolean[] _numeric = null;
+	private String[] _cells = null;
+	private long _rowCount = 0;
+
+	//table format: sampled rows and the column widths once they are fixed
+	private List<String[]> _pending = null;
+	private int[] _widths = null;
+
+	public ResultPrinter(Writer out, Format format, boolean closeOut){
+		this._out = out;
+		this._format = format;
+		this._closeOut = closeOut;
+	}
+
+	/**
+	 * Method to open a printer on standard out (path null or "-") or on a
+	 * file, which is appended to.
+	 *
+	 * @param format the output format
+	 * @param path the output file, or null for standard out
+	 * @return the printer; finish() must be called when done
+	 * @throws java.io.IOException when the file cannot be opened
+	 */
+	public static ResultPrinter open(Format format, String path) throws IOException {
+		if (path == null || path.isEmpty() || path.equals("-")){
+			// System.out is line flushed; buffer in front of it so it is written and flushed once per buffer
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), BUFFER_SIZE);
+			return new ResultPrinter(out, format, false);
+		}
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true), StandardCharsets.UTF_8), BUFFER_SIZE);
+		return new ResultPrinter(out, format, true);
+	}
+
+	/**
+	 * Method to start a result with the given column names.
+	 *
+	 * @param columns the column names
+	 * @param numeric which columns hold numbers (written unquoted in JSON), may be null
+	 */
+	public void begin(String[] columns, boolean[] numeric){
+		this._columns = columns;
+		this._numeric = numeric != null ? numeric : new boolean[columns.length];
+		this._cells = new String[columns.length];
+		if (this._format == Format.TABLE){
+			this._pending = new ArrayList<String[]>();
+			return;
+		}
+		if (this._format == Format.TSV || this._format == Format.CSV){
+			writeDelimited(columns);
+		}
+	}
+
+	/**
+	 * Method to write the current row of a result set.  The column names
+	 * are taken from the metadata on the first call.
+	 */
+	public void row(ResultSet rs) throws SQLException {
+		if (this._columns == null){
+			ResultSetMetaData rsmd = rs.getMetaData();
+			int numCol = rsmd.getColumnCount();
+			String[] columns = new String[numCol];
+			boolean[] numeric = new boolean[numCol];
+			for (int i = 1; i <= numCol; ++i){
+				columns[i - 1] = rsmd.getColumnName(i);
+				numeric[i - 1] = isNumeric(rsmd.getColumnType(i));
+			}
+			begin(columns, numeric);
+		}
+		String[] cells = this._cells;
+		for (int i = 0; i < cells.length; ++i){
+			cells[i] = rs.getString(i + 1);
+		}
+		row(cells);
+	}
+
+	/**
+	 * Method to write one row.  The array may be reused by the caller after
+	 * the call returns.
+	 */
+	public void row(String[] cells){
+		++this._rowCount;
+		switch (this._format){
+			case TABLE:
+				if (this._widths == null){
+					this._pending.add(cells.clone());
+					if (this._pending.size() >= TABLE_SAMPLE_ROWS){
+						flushPending();
+					}
+				}else{
+					writeAligned(cells);
+				}
+				break;
+			case TSV:
+			case CSV:
+				writeDelimited(cells);
+				break;
+			case JSON:
+				writeJson(cells);
+				break;
+		}
+	}
+
+	/**
+	 * Method to end the output: writes rows still held back and flushes
+	 * the buffer.  A file is closed, standard out is left open.
+	 *
+	 * @return the number of rows written
+	 */
+	public long finish() throws IOException {
+		try{
+			if (this._format == Format.TABLE && this._pending != null && this._widths == null){
+				flushPending();
+			}
+			this._out.flush();
+		}catch (UncheckedIOException e){
+			throw e.getCause();
+		}finally{
+			if (this._closeOut){
+				this._out.close();
+			}
+		}
+		return this._rowCount;
+	}
+
+	public long getRowCount(){
+		return this._rowCount;
+	}
+
+	private void flushPending(){
+		int[] widths = new int[this._columns.length];
+		for (int i = 0; i < widths.length; ++i){
+			widths[i] = this._columns[i].length();
+		}
+		for (String[] r : this._pending){
+			for (int i = 0; i < widths.length; ++i){
+				widths[i] = Math.max(widths[i], r[i] == null ? 0 : r[i].length());
+			}
+		}
+		this._widths = widths;
+		writeAligned(this._columns);
+		StringBuilder rule = new StringBuilder();
+		for (int i = 0; i < widths.length; ++i){
+			if (i > 0){
+				rule.append("-+-");
+			}
+			for (int j = 0; j < widths[i]; ++j){
+				rule.append('-');
+			}
+		}
+		write(rule.append('\n'));
+		for (String[] r : this._pending){
+			writeAligned(r);
+		}
+		this._pending = null;
+	}
+
+	private void writeAligned(String[] cells){
+		StringBuilder line = new StringBuilder(128);
+		for (int i = 0; i < cells.length; ++i){
+			if (i > 0){
+				line.append(" | ");
+			}
+			String v = cells[i] == null ? "" : cells[i];
+			boolean right = this._numeric[i] && cells != this._columns;
+			int pad = this._widths[i] - v.length();
+			if (right){
+				for (int j = 0; j < pad; ++j){
+					line.append(' ');
+				}
+			}
+			line.append(v);
+			if (!right && i < cells.length - 1){
+				for (int j = 0; j < pad; ++j){
+					line.append(' ');
+				}
+			}
+		}
+		write(line.append('\n'));
+	}
+
+	private void writeDelimited(String[] cells){
+		StringBuilder line = new StringBuilder(128);
+		char sep = this._format == Format.CSV ? ',' : '\t';
+		for (int i = 0; i < cells.length; ++i){
+			if (i > 0){
+				line.append(sep);
+			}
+			String v = cells[i] == null ? "" : cells[i];
+			if (this._format == Format.CSV){
+				appendCsv(line, v);
+			}else{
+				// keep one row per line
+				line.append(v.indexOf('\t') >= 0 || v.indexOf('\n') >= 0 ? v.replace('\t', ' ').replace('\n', ' ') : v);
+			}
+		}
+		write(line.append('\n'));
+	}
+
+	private void writeJson(String[] cells){
+		StringBuilder line = new StringBuilder(128);
+		line.append('{');
+		for (int i = 0; i < cells.length; ++i){
+			if (i > 0){
+				line.append(',');
+			}
+			appendJsonString(line, this._columns[i]);
+			line.append(':');
+			if (cells[i] == null){
+				line.append("null");
+			}else if (this._numeric[i]){
+				// NaN and the infinities of float and numeric columns are not JSON numbers
+				line.append(isJsonNumber(cells[i]) ? cells[i] : "null");
+			}else{
+				appendJsonString(line, cells[i]);
+			}
+		}
+		write(line.append("}\n"));
+	}
+
+	private static boolean isJsonNumber(String v){
+		return !v.equals("NaN") && !v.endsWith("Infinity");
+	}
+
+	private static void appendCsv(StringBuilder sb, String v){
+		boolean quote = v.indexOf(',') >= 0 || v.indexOf('"') >= 0 || v.indexOf('\n') >= 0 || v.indexOf('\r') >= 0;
+		if (!quote){
+			sb.append(v);
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < v.length(); ++i){
+			char c = v.charAt(i);
+			if (c == '"'){
+				sb.append('"');
+			}
+			sb.append(c);
+		}
+		sb.append('"');
+	}
+
+	/**
+	 * Method to append a string as a quoted, escaped JSON string.
+	 */
+	static void appendJsonString(StringBuilder sb, String v){
+		sb.append('"');
+		for (int i = 0; i < v.length(); ++i){
+			char c = v.charAt(i);
+			switch (c){
+				case '"': sb.append("\\\""); break;
+				case '\\': sb.append("\\\\"); break;
+				case '\n': sb.append("\\n"); break;
+				case '\r': sb.append("\\r"); break;
+				case '\t': sb.append("\\t"); break;
+				default:
+					if (c < 0x20){
+						sb.append(String.format("\\u%04x", (int) c));
+					}else{
+						sb.append(c);
+					}
+			}
+		}
+		sb.append('"');
+	}
+
+	private static boolean isNumeric(int sqlType){
+		switch (sqlType){
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+			case Types.BIGINT:
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	private void write(CharSequence s){
+		try{
+			this._out.append(s);
+		}catch (IOException e){
+			// RowHandler.row() can only throw SQLException; unwrapped again in finish()
+			throw new UncheckedIOException(e);
+		}
+	}
+}
@@ -0,0 +1,441 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class finds itineraries between two airports: the direct flights
+ * departing in a date window, and the connections with the earliest
+ * arrival for each number of legs, with a minimum time between arriving
+ * and departing again.
+ *
+ * The Flight table is held in memory as an index from each departure
+ * airport to its flights sorted by actual_departure_date.  The search goes
+ * in rounds, one per leg: round k extends the airports reached with k - 1
+ * legs by every flight leaving them after the connection time, and keeps
+ * the earliest arrival per airport.  Flights departing after the best
+ * arrival at the destination found so far cannot improve it and are not
+ * looked at.  So a search touches each flight at most once per leg and
+ * takes milliseconds over hundreds of thousands of flights.
+ *
+ * The index is reloaded when it is older than -Ddbproject.routes.maxAgeMs
+ * (300000 ms) or a flight was added by this process.  Times are minutes;
+ * the dates of create.sql carry no time of day, so connections there are
+ * counted in whole days.
+ *
+ */
+public class RouteSearch{
+	static final long MAX_AGE_MILLIS = Long.getLong("dbproject.routes.maxAgeMs", 300000L);
+	static final int DEFAULT_MAX_LEGS = 3;
+	//direct flights listed at most
+	static final int MAX_DIRECT = 20;
+	static final int UNREACHED = Integer.MAX_VALUE;
+	static final String SQL_LOAD =
+		"SELECT fnum, cost, actual_departure_date, actual_arrival_date, departure_airport, arrival_airport FROM Flight";
+	static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+	static final String[] COLUMNS = {"legs", "flights", "route", "departure", "arrival", "cost"};
+	static final boolean[] NUMERIC = {true, false, false, false, false, true};
+
+	/**
+	 * The flights in column arrays, and per departure airport the flights
+	 * in departure order.  Never changed once built.
+	 */
+	static class Index{
+		final String[] airports;
+		final Map<String, Integer> airportIds;
+		final int[] fnum;
+		final int[] cost;
+		//minutes since 1970-01-01 00:00
+		final int[] departure;
+		final int[] arrival;
+		final int[] from;
+		final int[] to;
+		//per airport: its flights, and their departures for binary search
+		final int[][] flightsFrom;
+		final int[][] departuresFrom;
+
+		Index(List<String> airports, Map<String, Integer> airportIds, int[] fnum, int[] cost, int[] departure, int[] arrival,
+				int[] from, int[] to, int size){
+			this.airports = airports.toArray(new String[0]);
+			this.airportIds = airportIds;
+			this.fnum = Arrays.copyOf(fnum, size);
+			this.cost = Arrays.copyOf(cost, size);
+			this.departure = Arrays.copyOf(departure, size);
+			this.arrival = Arrays.copyOf(arrival, size);
+			this.from = Arrays.copyOf(from, size);
+			this.to = Arrays.copyOf(to, size);
+
+			int n = this.airports.length;
+			int[] counts = new int[n];
+			for (int i = 0; i < size; ++i){
+				++counts[this.from[i]];
+			}
+			// departure in the high half, flight in the low half: sorting the keys sorts by departure
+			long[][] keys = new long[n][];
+			for (int a = 0; a < n; ++a){
+				keys[a] = new long[counts[a]];
+				counts[a] = 0;
+			}
+			for (int i = 0; i < size; ++i){
+				int a = this.from[i];
+				keys[a][counts[a]++] = ((long) this.departure[i] << 32) | i;
+			}
+			this.flightsFrom = new int[n][];
+			this.departuresFrom = new int[n][];
+			for (int a = 0; a < n; ++a){
+				Arrays.sort(keys[a]);
+				int[] flights = new int[keys[a].length];
+				int[] departures = new int[keys[a].length];
+				for (int j = 0; j < flights.length; ++j){
+					flights[j] = (int) keys[a][j];
+					departures[j] = (int) (keys[a][j] >> 32);
+				}
+				this.flightsFrom[a] = flights;
+				this.departuresFrom[a] = departures;
+			}
+		}
+
+		/**
+		 * Method to find the first flight from an airport departing at or
+		 * after a time.
+		 */
+		int firstDeparting(int airport, int time){
+			int[] departures = this.departuresFrom[airport];
+			int lo = 0, hi = departures.length;
+			while (lo < hi){
+				int mid = (lo + hi) >>> 1;
+				if (departures[mid] < time){
+					lo = mid + 1;
+				}else{
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+	}
+
+	/**
+	 * One flight of an itinerary.
+	 */
+	public static class Leg{
+		public final int fnum;
+		public final String from;
+		public final String to;
+		public final LocalDateTime departure;
+		public final LocalDateTime arrival;
+		public final int cost;
+
+		Leg(Index index, int flight){
+			this.fnum = index.fnum[flight];
+			this.from = index.airports[index.from[flight]];
+			this.to = index.airports[index.to[flight]];
+			this.departure = toTime(index.departure[flight]);
+			this.arrival = toTime(index.arrival[flight]);
+			this.cost = index.cost[flight];
+		}
+	}
+
+	/**
+	 * The flights to take, in order.
+	 */
+	public static class Itinerary{
+		public final List<Leg> legs;
+
+		Itinerary(List<Leg> legs){
+			this.legs = legs;
+		}
+
+		public LocalDateTime getDeparture(){
+			return this.legs.get(0).departure;
+		}
+
+		public LocalDateTime getArrival(){
+			return this.legs.get(this.legs.size() - 1).arrival;
+		}
+
+		public int getCost(){
+			int cost = 0;
+			for (Leg leg : this.legs){
+				cost += leg.cost;
+			}
+			return cost;
+		}
+
+		@Override
+		public String toString(){
+			StringBuilder sb = new StringBuilder();
+			for (Leg leg : this.legs){
+				sb.append(sb.length() == 0 ? "" : ", ").append("flight ").append(leg.fnum).append(' ').append(leg.from)
+					.append(' ').append(leg.departure.format(TIME)).append(" -> ").append(leg.to).append(' ').append(leg.arrival.format(TIME));
+			}
+			return sb.append(" (cost ").append(getCost()).append(')').toString();
+		}
+	}
+
+	private final DBproject _esql;
+	//held by the thread reloading the flights
+	private final ReentrantLock _reload = new ReentrantLock();
+	private volatile Index _index = null;
+	private volatile long _loadedAt = 0;
+
+	public RouteSearch(DBproject esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to find itineraries from one airport to another.
+	 *
+	 * @param from the departure airport code
+	 * @param to the arrival airport code
+	 * @param after the first flight departs at or after this time
+	 * @param before the first flight departs at or before this time
+	 * @param minConnectMinutes least time between landing and the next departure
+	 * @param maxLegs most flights per itinerary
+	 * @return the direct flights by departure, then the connections that arrive
+	 *         earlier than any itinerary with fewer legs
+	 * @throws java.sql.SQLException when the flights have to be loaded and cannot be read
+	 */
+	public List<Itinerary> search(String from, String to, LocalDateTime after, LocalDateTime before, int minConnectMinutes,
+			int maxLegs) throws SQLException {
+		if (maxLegs < 1){
+			throw new IllegalArgumentException("an itinerary needs at least one leg");
+		}
+		if (minConnectMinutes < 0){
+			throw new IllegalArgumentException("the connection time cannot be negative");
+		}
+		long started = this._esql.getMetrics().beginOperation();
+		long rows = -1;
+		try{
+			this._esql.readOnly(() -> {
+				refreshIfStale();
+				return null;
+			});
+			Index index = this._index;
+			List<Itinerary> result = new ArrayList<Itinerary>();
+			Integer origin = index.airportIds.get(from.trim());
+			Integer target = index.airportIds.get(to.trim());
+			if (origin == null || target == null || origin.equals(target)){
+				rows = 0;
+				return result;
+			}
+			int n = index.airports.length;
+			int windowStart = toMinutes(after);
+			int windowEnd = toMinutes(before);
+
+			// arrivals[k][a]: earliest arrival at a with at most k legs; via[k][a]: the flight taken in round k, or -1
+			int[][] arrivals = new int[maxLegs + 1][];
+			int[][] via = new int[maxLegs + 1][];
+			arrivals[0] = new int[n];
+			Arrays.fill(arrivals[0], UNREACHED);
+			boolean[] marked = new boolean[n];
+			int best = UNREACHED;
+
+			// round 1: the flights leaving the origin in the window
+			arrivals[1] = arrivals[0].clone();
+			via[1] = new int[n];
+			Arrays.fill(via[1], -1);
+			int[] flights = index.flightsFrom[origin];
+			for (int j = index.firstDeparting(origin, windowStart); j < flights.length && index.departure[flights[j]] <= windowEnd; ++j){
+				int f = flights[j];
+				int b = index.to[f];
+				if (b == target && result.size() < MAX_DIRECT){
+					result.add(new Itinerary(Arrays.asList(new Leg(index, f))));
+				}
+				if (b != origin && index.arrival[f] < arrivals[1][b]){
+					arrivals[1][b] = index.arrival[f];
+					via[1][b] = f;
+					marked[b] = true;
+				}
+			}
+			best = arrivals[1][target];
+
+			for (int k = 2; k <= maxLegs; ++k){
+				arrivals[k] = arrivals[k - 1].clone();
+				via[k] = new int[n];
+				Arrays.fill(via[k], -1);
+				boolean[] next = new boolean[n];
+				boolean any = false;
+				for (int a = 0; a < n; ++a){
+					if (!marked[a] || a == target){
+						continue;
+					}
+					long ready = (long) arrivals[k - 1][a] + minConnectMinutes;
+					if (ready >= best){
+						continue;
+					}
+					flights = index.flightsFrom[a];
+					for (int j = index.firstDeparting(a, (int) ready); j < flights.length; ++j){
+						int f = flights[j];
+						if (index.departure[f] >= best){
+							break;
+						}
+						int b = index.to[f];
+						int arrival = index.arrival[f];
+						if (b != origin && arrival < arrivals[k][b] && arrival < best){
+							arrivals[k][b] = arrival;
+							via[k][b] = f;
+							next[b] = true;
+							any = true;
+							if (b == target){
+								best = arrival;
+							}
+						}
+					}
+				}
+				if (via[k][target] >= 0){
+					result.add(trace(index, via, k, target));
+				}
+				if (!any){
+					break;
+				}
+				marked = next;
+			}
+			rows = result.size();
+			return result;
+		}finally{
+			this._esql.getMetrics().endOperation("route-search", started, rows);
+		}
+	}
+
+	/**
+	 * Method to follow the flights back from an airport reached in a round.
+	 */
+	private static Itinerary trace(Index index, int[][] via, int round, int airport){
+		List<Leg> legs = new ArrayList<Leg>();
+		for (int k = round; k > 0; --k){
+			int f = via[k][airport];
+			if (f < 0){
+				// reached no earlier in this round than in the one before
+				continue;
+			}
+			legs.add(0, new Leg(index, f));
+			airport = index.from[f];
+		}
+		return new Itinerary(legs);
+	}
+
+	/**
+	 * Method to write itineraries, one row each.
+	 *
+	 * @return the number of rows written
+	 */
+	public static int print(ResultPrinter printer, List<Itinerary> itineraries){
+		if (itineraries.isEmpty()){
+			return 0;
+		}
+		printer.begin(COLUMNS, NUMERIC);
+		String[] cells = new String[COLUMNS.length];
+		for (Itinerary it : itineraries){
+			StringBuilder flights = new StringBuilder();
+			StringBuilder route = new StringBuilder(it.legs.get(0).from);
+			for (Leg leg : it.legs){
+				flights.append(flights.length() == 0 ? "" : " ").append(leg.fnum);
+				route.append('-').append(leg.to);
+			}
+			cells[0] = Integer.toString(it.legs.size());
+			cells[1] = flights.toString();
+			cells[2] = route.toString();
+			cells[3] = it.getDeparture().format(TIME);
+			cells[4] = it.getArrival().format(TIME);
+			cells[5] = Integer.toString(it.getCost());
+			printer.row(cells);
+		}
+		return itineraries.size();
+	}
+
+	/**
+	 * Method to have the next search reload the flights, e.g. after one was added.
+	 */
+	public void invalidate(){
+		this._loadedAt = 0;
+	}
+
+	private void refreshIfStale() throws SQLException {
+		if (this._index != null && System.currentTimeMillis() - this._loadedAt < MAX_AGE_MILLIS){
+			return;
+		}
+		if (this._index != null){
+			// someone else is already reloading; the current index will do until then
+			if (this._reload.tryLock()){
+				try{
+					load();
+				}finally{
+					this._reload.unlock();
+				}
+			}
+			return;
+		}
+		this._reload.lock();
+		try{
+			if (this._index == null){
+				load();
+			}
+		}finally{
+			this._reload.unlock();
+		}
+	}
+
+	private void load() throws SQLException {
+		final List<String> airports = new ArrayList<String>();
+		final Map<String, Integer> airportIds = new HashMap<String, Integer>();
+		final int[][] columns = new int[6][4096];
+		final int[] n = {0};
+		long startedAt = System.currentTimeMillis();
+		this._esql.streamQuery(SQL_LOAD, rs -> {
+			Timestamp departure = rs.getTimestamp(3);
+			Timestamp arrival = rs.getTimestamp(4);
+			if (departure == null || arrival == null){
+				return;
+			}
+			if (n[0] == columns[0].length){
+				for (int c = 0; c < columns.length; ++c){
+					columns[c] = Arrays.copyOf(columns[c], n[0] * 2);
+				}
+			}
+			int i = n[0]++;
+			columns[0][i] = rs.getInt(1);
+			columns[1][i] = rs.getInt(2);
+			columns[2][i] = toMinutes(departure.toLocalDateTime());
+			columns[3][i] = toMinutes(arrival.toLocalDateTime());
+			columns[4][i] = airportId(airports, airportIds, rs.getString(5));
+			columns[5][i] = airportId(airports, airportIds, rs.getString(6));
+		});
+		this._index = new Index(airports, airportIds, columns[0], columns[1], columns[2], columns[3], columns[4], columns[5], n[0]);
+		this._loadedAt = startedAt;
+	}
+
+	private static int airportId(List<String> airports, Map<String, Integer> airportIds, String code){
+		String key = code == null ? "" : code.trim();
+		Integer id = airportIds.get(key);
+		if (id == null){
+			id = airports.size();
+			airports.add(key);
+			airportIds.put(key, id);
+		}
+		return id;
+	}
+
+	static int toMinutes(LocalDateTime time){
+		return (int) Math.floorDiv(time.toEpochSecond(ZoneOffset.UTC), 60L);
+	}
+
+	static LocalDateTime toTime(int minutes){
+		return LocalDateTime.ofEpochSecond(minutes * 60L, 0, ZoneOffset.UTC);
+	}
+
+	/**
+	 * Method to describe the index for the statistics screen.
+	 */
+	public String getStats(){
+		Index index = this._index;
+		return index == null ? "route index: not loaded"
+			: String.format("route index: %d flights from %d airports", index.fnum.length, index.airports.length);
+	}
+}
@@ -0,0 +1,12 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This interface receives the rows of a streamed query one at a time, see
+ * DBproject.streamQuery().  The result set is positioned on the current row
+ * and must not be advanced or kept after the call returns.
+ *
+ */
+public interface RowHandler{
+	void row(ResultSet rs) throws SQLException;
+}
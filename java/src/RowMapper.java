@@ -0,0 +1,13 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * This interface turns the current row of a result set into an object,
+ * reading the columns with the typed getters (getInt, getLong, ...) instead
+ * of going through strings.  See DBproject.queryForObject() and
+ * DBproject.queryForList().
+ *
+ */
+public interface RowMapper<T>{
+	T map(ResultSet rs) throws SQLException;
+}
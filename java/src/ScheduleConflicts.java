@@ -0,0 +1,472 @@
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+/**
+ * This class finds flights whose pilot or plane is already flying at the
+ * same time.  Every pilot and every plane has an interval tree of the
+ * flights assigned to it in FlightInfo, timed by their Schedule row or,
+ * without one, by the Flight's actual departure and arrival.  An interval
+ * tree is a balanced search tree on the departures in which every node
+ * also keeps the latest arrival below it, so the flights overlapping a new
+ * one are found in O(log n) plus one step per overlap, and a subtree
+ * ending before the new flight departs is skipped whole.
+ *
+ * The trees are never changed in place: adding a flight copies the path to
+ * the new node, so checks read them without locking while a flight is
+ * being assigned.  Assignments in this process are checked and added one
+ * at a time; flights added by other processes are seen when the trees are
+ * reloaded from the primary, after -Ddbproject.schedule.maxAgeMs
+ * (60000 ms).  So that two processes cannot assign a pilot or plane twice
+ * meanwhile, an assignment also locks the pilot and the plane in the
+ * database and checks their flights there before it commits.
+ *
+ * Intervals are in minutes, from the departure up to but not including
+ * the arrival, so a flight may depart when the one before it lands.  The
+ * dates of create.sql carry no time of day: a flight departing and
+ * arriving on the same date takes that whole day, so two of them on one
+ * day overlap, while a flight landing on a day and one departing that day
+ * do not.  Conflicts are shown with these intervals.
+ *
+ */
+public class ScheduleConflicts{
+	static final long MAX_AGE_MILLIS = Long.getLong("dbproject.schedule.maxAgeMs", 60000L);
+	static final int DAY_MINUTES = 24 * 60;
+	//the SQLSTATE of an exclusion constraint violation, the database's own word for overlapping rows
+	static final String SQLSTATE_OVERLAP = "23P01";
+	static final String SQL_LOAD =
+		"SELECT fi.flight_id, fi.pilot_id, fi.plane_id, COALESCE(s.departure_time, f.actual_departure_date), " +
+		"COALESCE(s.arrival_time, f.actual_arrival_date) " +
+		"FROM FlightInfo fi JOIN Flight f ON f.fnum = fi.flight_id LEFT JOIN Schedule s ON s.flightNum = fi.flight_id";
+	//pilot first, then plane, in every process, so two assignments never wait for each other in turn
+	static final String SQL_LOCK =
+		"SELECT pg_advisory_xact_lock(hashtext('dbproject.schedule.pilot'), ?), pg_advisory_xact_lock(hashtext('dbproject.schedule.plane'), ?)";
+	//the flights of a pilot or plane overlapping an interval, as assigned in the database
+	static final String SQL_OVERLAPS =
+		"SELECT CASE WHEN t.pilot_id = ? THEN 'pilot' ELSE 'plane' END, CASE WHEN t.pilot_id = ? THEN t.pilot_id ELSE t.plane_id END, " +
+		"t.flight_id, LEAST(t.departure, t.arrival), " +
+		"CASE WHEN t.departure = t.arrival THEN t.departure + INTERVAL '1 day' ELSE GREATEST(t.departure, t.arrival) END FROM (" +
+		"SELECT fi.flight_id, fi.pilot_id, fi.plane_id, COALESCE(s.departure_time, f.actual_departure_date) AS departure, " +
+		"COALESCE(s.arrival_time, f.actual_arrival_date) AS arrival " +
+		"FROM FlightInfo fi JOIN Flight f ON f.fnum = fi.flight_id LEFT JOIN Schedule s ON s.flightNum = fi.flight_id " +
+		"WHERE (fi.pilot_id = ? OR fi.plane_id = ?) AND fi.flight_id <> ?) t " +
+		"WHERE LEAST(t.departure, t.arrival) < ? " +
+		"AND CASE WHEN t.departure = t.arrival THEN t.departure + INTERVAL '1 day' ELSE GREATEST(t.departure, t.arrival) END > ?";
+	static final String[] COLUMNS = {"assigned", "id", "flight", "departure", "arrival", "other_flight", "other_departure", "other_arrival"};
+	static final boolean[] NUMERIC = {false, true, true, false, false, true, false, false};
+
+	/*
+	 * A node of an interval tree, ordered by start and then flight.  maxEnd
+	 * is the latest end in the subtree.  Never changed once built.
+	 */
+	static final class Node{
+		final int start;
+		final int end;
+		final int fnum;
+		final int maxEnd;
+		final int height;
+		final Node left;
+		final Node right;
+
+		Node(int start, int end, int fnum, Node left, Node right){
+			this.start = start;
+			this.end = end;
+			this.fnum = fnum;
+			this.left = left;
+			this.right = right;
+			this.maxEnd = Math.max(end, Math.max(left == null ? Integer.MIN_VALUE : left.maxEnd, right == null ? Integer.MIN_VALUE : right.maxEnd));
+			this.height = 1 + Math.max(height(left), height(right));
+		}
+
+		int compareTo(int start, int fnum){
+			return this.start != start ? Integer.compare(this.start, start) : Integer.compare(this.fnum, fnum);
+		}
+	}
+
+	/**
+	 * Two flights of the same pilot or plane that overlap.
+	 */
+	public static class Conflict{
+		//"pilot" or "plane"
+		public final String assigned;
+		public final int id;
+		public final int flight;
+		public final int start;
+		public final int end;
+		public final int otherFlight;
+		public final int otherStart;
+		public final int otherEnd;
+
+		Conflict(String assigned, int id, int flight, int start, int end, int otherFlight, int otherStart, int otherEnd){
+			this.assigned = assigned;
+			this.id = id;
+			this.flight = flight;
+			this.start = start;
+			this.end = end;
+			this.otherFlight = otherFlight;
+			this.otherStart = otherStart;
+			this.otherEnd = otherEnd;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("%s %d flies flight %d from %s to %s", this.assigned, this.id, this.otherFlight,
+				RouteSearch.toTime(this.otherStart).format(RouteSearch.TIME), RouteSearch.toTime(this.otherEnd).format(RouteSearch.TIME));
+		}
+	}
+
+	/**
+	 * The database work of an assignment, run once the flight is known not
+	 * to conflict.
+	 */
+	public interface Assignment{
+		void run() throws SQLException;
+	}
+
+	private final DBproject _esql;
+	//held while trees are reloaded or a flight is assigned
+	private final ReentrantLock _lock = new ReentrantLock();
+	private volatile Map<Integer, Node> _pilots = null;
+	private volatile Map<Integer, Node> _planes = null;
+	private volatile long _loadedAt = 0;
+
+	public ScheduleConflicts(DBproject esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to find the flights a pilot or plane already flies during an
+	 * interval.
+	 *
+	 * @param pilotId the Pilot.id
+	 * @param planeId the Plane.id
+	 * @param start departure, minutes since 1970-01-01 00:00
+	 * @param end arrival, minutes since 1970-01-01 00:00
+	 * @return the overlapping flights, the pilot's first
+	 * @throws java.sql.SQLException when the trees have to be loaded and cannot be read
+	 */
+	public List<Conflict> check(int pilotId, int planeId, int start, int end) throws SQLException {
+		refreshIfStale();
+		int[] slot = slot(start, end);
+		List<Conflict> conflicts = new ArrayList<Conflict>();
+		overlaps("pilot", pilotId, this._pilots.get(pilotId), slot[0], slot[1], conflicts);
+		overlaps("plane", planeId, this._planes.get(planeId), slot[0], slot[1], conflicts);
+		return conflicts;
+	}
+
+	/**
+	 * Method to assign a flight to a pilot and a plane if neither flies
+	 * during it.  The check, the database work and the update of the trees
+	 * run as one step with respect to other assignments of this process.
+	 * Call it in a transaction on the pinned connection: the pilot and plane
+	 * stay locked against assignments of other processes until it commits,
+	 * and their flights are checked in the database as well.
+	 *
+	 * @param fnum the Flight.fnum
+	 * @param pilotId the Pilot.id
+	 * @param planeId the Plane.id
+	 * @param start departure, minutes since 1970-01-01 00:00
+	 * @param end arrival, minutes since 1970-01-01 00:00
+	 * @param assignment the inserts to run and commit when there is no conflict
+	 * @throws java.sql.SQLException when the trees cannot be loaded or the assignment fails
+	 * @throws java.sql.SQLException with SQLSTATE 23P01 when the pilot or plane is already flying, listing the flights
+	 */
+	public void assign(int fnum, int pilotId, int planeId, int start, int end, Assignment assignment) throws SQLException {
+		int[] slot = slot(start, end);
+		int from = slot[0];
+		int to = slot[1];
+		this._lock.lock();
+		try{
+			List<Conflict> conflicts = check(pilotId, planeId, from, to);
+			if (conflicts.isEmpty()){
+				this._esql.queryForList(SQL_LOCK, rs -> null, pilotId, planeId);
+				conflicts = this._esql.queryForList(SQL_OVERLAPS,
+					rs -> new Conflict(rs.getString(1), rs.getInt(2), fnum, from, to, rs.getInt(3),
+						RouteSearch.toMinutes(rs.getTimestamp(4).toLocalDateTime()), RouteSearch.toMinutes(rs.getTimestamp(5).toLocalDateTime())),
+					pilotId, pilotId, pilotId, planeId, fnum,
+					Timestamp.valueOf(RouteSearch.toTime(to)), Timestamp.valueOf(RouteSearch.toTime(from)));
+				if (!conflicts.isEmpty()){
+					// assigned by another process since the trees were loaded
+					invalidate();
+				}
+			}
+			if (!conflicts.isEmpty()){
+				StringBuilder sb = new StringBuilder("flight " + fnum + " overlaps other flights:");
+				for (Conflict c : conflicts){
+					sb.append("\n  ").append(c);
+				}
+				// refused for the state of the database, like a constraint violation, not for bad input
+				throw new SQLException(sb.toString(), SQLSTATE_OVERLAP);
+			}
+			assignment.run();
+			add(this._pilots, pilotId, from, to, fnum);
+			add(this._planes, planeId, from, to, fnum);
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to find every pair of overlapping flights of the same pilot or
+	 * plane, one tree per task in parallel.  A flight overlapping several
+	 * earlier ones is paired with the one that lands last.
+	 *
+	 * @return the conflicts by pilot, then plane, each by id and departure
+	 * @throws java.sql.SQLException when the trees have to be loaded and cannot be read
+	 */
+	public List<Conflict> sweep() throws SQLException {
+		long started = this._esql.getMetrics().beginOperation();
+		long rows = -1;
+		try{
+			refreshIfStale();
+			List<Conflict> conflicts = new ArrayList<Conflict>();
+			conflicts.addAll(sweep("pilot", this._pilots));
+			conflicts.addAll(sweep("plane", this._planes));
+			rows = conflicts.size();
+			return conflicts;
+		}finally{
+			this._esql.getMetrics().endOperation("schedule-conflicts", started, rows);
+		}
+	}
+
+	private static List<Conflict> sweep(String assigned, Map<Integer, Node> trees){
+		return new ArrayList<Map.Entry<Integer, Node>>(trees.entrySet()).parallelStream().flatMap(tree -> {
+			List<Node> nodes = new ArrayList<Node>();
+			inOrder(tree.getValue(), nodes);
+			List<Conflict> found = new ArrayList<Conflict>();
+			Node latest = null;
+			for (Node n : nodes){
+				if (latest != null && n.start < latest.end && n.fnum != latest.fnum){
+					found.add(new Conflict(assigned, tree.getKey(), n.fnum, n.start, n.end, latest.fnum, latest.start, latest.end));
+				}
+				if (latest == null || n.end > latest.end){
+					latest = n;
+				}
+			}
+			return found.stream();
+		}).sorted(Comparator.comparingInt((Conflict c) -> c.id).thenComparingInt(c -> c.start).thenComparingInt(c -> c.flight))
+			.collect(Collectors.toList());
+	}
+
+	/**
+	 * Method to write conflicts as rows.
+	 *
+	 * @param printer where the rows go
+	 * @param conflicts the conflicts to write
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when the rows cannot be written
+	 */
+	public static int print(ResultPrinter printer, List<Conflict> conflicts) throws SQLException {
+		if (!conflicts.isEmpty()){
+			printer.begin(COLUMNS, NUMERIC);
+		}
+		for (Conflict c : conflicts){
+			printer.row(new String[]{c.assigned, Integer.toString(c.id), Integer.toString(c.flight),
+				RouteSearch.toTime(c.start).format(RouteSearch.TIME), RouteSearch.toTime(c.end).format(RouteSearch.TIME),
+				Integer.toString(c.otherFlight),
+				RouteSearch.toTime(c.otherStart).format(RouteSearch.TIME), RouteSearch.toTime(c.otherEnd).format(RouteSearch.TIME)});
+		}
+		return conflicts.size();
+	}
+
+	/**
+	 * Method to have the trees reloaded on next use, e.g. after flights
+	 * were assigned outside assign().
+	 */
+	public void invalidate(){
+		this._loadedAt = 0;
+	}
+
+	private void refreshIfStale() throws SQLException {
+		if (this._pilots != null && System.currentTimeMillis() - this._loadedAt < MAX_AGE_MILLIS){
+			return;
+		}
+		if (this._pilots != null){
+			// someone else is already reloading or assigning; the current trees will do until then
+			if (this._lock.tryLock()){
+				try{
+					load();
+				}finally{
+					this._lock.unlock();
+				}
+			}
+			return;
+		}
+		this._lock.lock();
+		try{
+			if (this._pilots == null){
+				load();
+			}
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to read the assignments and build every tree balanced from
+	 * its flights sorted by departure.
+	 */
+	private void load() throws SQLException {
+		final Map<Integer, List<int[]>> pilots = new HashMap<Integer, List<int[]>>();
+		final Map<Integer, List<int[]>> planes = new HashMap<Integer, List<int[]>>();
+		long startedAt = System.currentTimeMillis();
+		// from the primary: a replica may not have the flights this process just assigned
+		this._esql.onPrimary(() -> this._esql.streamQuery(SQL_LOAD, rs -> {
+			Timestamp departure = rs.getTimestamp(4);
+			Timestamp arrival = rs.getTimestamp(5);
+			if (departure == null || arrival == null){
+				return;
+			}
+			int start = RouteSearch.toMinutes(departure.toLocalDateTime());
+			int end = RouteSearch.toMinutes(arrival.toLocalDateTime());
+			int[] slot = slot(start, end);
+			int[] interval = {slot[0], slot[1], rs.getInt(1)};
+			pilots.computeIfAbsent(rs.getInt(2), k -> new ArrayList<int[]>()).add(interval);
+			planes.computeIfAbsent(rs.getInt(3), k -> new ArrayList<int[]>()).add(interval);
+		}));
+		Map<Integer, Node> pilotTrees = build(pilots);
+		Map<Integer, Node> planeTrees = build(planes);
+		this._pilots = pilotTrees;
+		this._planes = planeTrees;
+		this._loadedAt = startedAt;
+	}
+
+	private static Map<Integer, Node> build(Map<Integer, List<int[]>> intervals){
+		Map<Integer, Node> trees = new ConcurrentHashMap<Integer, Node>(intervals.size() * 2);
+		intervals.entrySet().parallelStream().forEach(e -> {
+			int[][] sorted = e.getValue().toArray(new int[0][]);
+			Arrays.sort(sorted, (a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(a[2], b[2]));
+			trees.put(e.getKey(), balanced(sorted, 0, sorted.length - 1));
+		});
+		return trees;
+	}
+
+	private static Node balanced(int[][] sorted, int lo, int hi){
+		if (lo > hi){
+			return null;
+		}
+		int mid = (lo + hi) >>> 1;
+		return new Node(sorted[mid][0], sorted[mid][1], sorted[mid][2], balanced(sorted, lo, mid - 1), balanced(sorted, mid + 1, hi));
+	}
+
+	/**
+	 * Method to turn a departure and arrival into the interval a flight
+	 * takes: {from, to}, to not included, a whole day for a flight that
+	 * departs and arrives at the same time, i.e. on the same date.
+	 */
+	static int[] slot(int departure, int arrival){
+		int from = Math.min(departure, arrival);
+		int to = Math.max(departure, arrival);
+		return new int[]{from, to == from ? from + DAY_MINUTES : to};
+	}
+
+	static void overlaps(String assigned, int id, Node node, int start, int end, List<Conflict> out){
+		if (node == null || node.maxEnd <= start){
+			return;
+		}
+		overlaps(assigned, id, node.left, start, end, out);
+		if (node.start < end){
+			if (node.end > start){
+				out.add(new Conflict(assigned, id, 0, start, end, node.fnum, node.start, node.end));
+			}
+			overlaps(assigned, id, node.right, start, end, out);
+		}
+	}
+
+	private static void inOrder(Node node, List<Node> out){
+		if (node != null){
+			inOrder(node.left, out);
+			out.add(node);
+			inOrder(node.right, out);
+		}
+	}
+
+	/**
+	 * Method to replace the tree of a pilot or plane with one that also
+	 * holds the interval.  Called with the lock held.
+	 */
+	private static void add(Map<Integer, Node> trees, int id, int start, int end, int fnum){
+		trees.put(id, insert(trees.get(id), start, end, fnum));
+	}
+
+	/*
+	 * AVL insertion that copies the nodes on the path instead of changing them.
+	 */
+	static Node insert(Node node, int start, int end, int fnum){
+		if (node == null){
+			return new Node(start, end, fnum, null, null);
+		}
+		int cmp = node.compareTo(start, fnum);
+		if (cmp == 0){
+			return node;
+		}
+		Node n = cmp > 0
+			? new Node(node.start, node.end, node.fnum, insert(node.left, start, end, fnum), node.right)
+			: new Node(node.start, node.end, node.fnum, node.left, insert(node.right, start, end, fnum));
+		return rebalance(n);
+	}
+
+	private static Node rebalance(Node n){
+		int balance = height(n.left) - height(n.right);
+		if (balance > 1){
+			Node l = n.left;
+			if (height(l.left) < height(l.right)){
+				l = rotateLeft(l);
+			}
+			return rotateRight(new Node(n.start, n.end, n.fnum, l, n.right));
+		}
+		if (balance < -1){
+			Node r = n.right;
+			if (height(r.right) < height(r.left)){
+				r = rotateRight(r);
+			}
+			return rotateLeft(new Node(n.start, n.end, n.fnum, n.left, r));
+		}
+		return n;
+	}
+
+	private static Node rotateRight(Node n){
+		Node l = n.left;
+		return new Node(l.start, l.end, l.fnum, l.left, new Node(n.start, n.end, n.fnum, l.right, n.right));
+	}
+
+	private static Node rotateLeft(Node n){
+		Node r = n.right;
+		return new Node(r.start, r.end, r.fnum, new Node(n.start, n.end, n.fnum, n.left, r.left), r.right);
+	}
+
+	private static int height(Node n){
+		return n == null ? 0 : n.height;
+	}
+
+	/**
+	 * Method to describe the trees for the statistics screen.
+	 */
+	public String getStats(){
+		Map<Integer, Node> pilots = this._pilots;
+		Map<Integer, Node> planes = this._planes;
+		if (pilots == null){
+			return "schedule index: not loaded";
+		}
+		long flights = 0;
+		int deepest = 0;
+		for (Node n : pilots.values()){
+			flights += size(n);
+			deepest = Math.max(deepest, n.height);
+		}
+		return String.format("schedule index: %d pilots and %d planes, %d assignments, deepest tree %d, loaded %d s ago",
+			pilots.size(), planes.size(), flights, deepest, (System.currentTimeMillis() - this._loadedAt) / 1000);
+	}
+
+	private static long size(Node n){
+		return n == null ? 0 : 1 + size(n.left) + size(n.right);
+	}
+}
@@ -0,0 +1,273 @@
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * This class caches the number of available seats per flight in a
+ * primitive array indexed by flight number.  Entries are filled lazily
+ * by a lookup or all at once by preload(), and are updated in place
+ * (compare-and-set) when this process books a seat, so availability reads
+ * do not touch the database.
+ *
+ * Every entry carries a stamp that each change of the entry raises.  A
+ * lookup remembers the entry it missed on and only caches what it read if
+ * the entry is unchanged, so a booking committed while the lookup ran
+ * makes it discard its possibly older answer instead of caching it.
+ *
+ * Bookings made by other processes are not seen by the cache; an entry is
+ * loaded again once it is older than -Ddbproject.seatCache.maxAgeMs
+ * (60000 ms), which also bounds any drift from a lookup that read a
+ * booking of this process just before the booking adjusted the entry.
+ *
+ */
+public class SeatCache{
+	//marks a flight whose availability is not cached
+	public static final int UNKNOWN = Integer.MIN_VALUE;
+	static final long MAX_AGE_MILLIS = Long.getLong("dbproject.seatCache.maxAgeMs", 60000L);
+
+	static final String SQL_ALL_SEATS_AVAILABLE =
+		"SELECT f.fnum, SUM(pl.seats - f.num_sold) FROM Flight f, FlightInfo fi, Plane pl " +
+		"WHERE f.fnum = fi.flight_id AND fi.plane_id = pl.id GROUP BY f.fnum";
+
+	//growing the arrays copies them, so updates share the read lock and growth takes the write lock
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	//per flight the stamp in the high and the available seats in the low 32 bits
+	private AtomicLongArray _seats;
+	//per flight when the entry was loaded from the database
+	private AtomicLongArray _loadedAt;
+
+	private final AtomicLong _hits = new AtomicLong();
+	private final AtomicLong _misses = new AtomicLong();
+
+	public SeatCache(int initialCapacity){
+		this._seats = newArray(Math.max(initialCapacity, 16));
+		this._loadedAt = new AtomicLongArray(this._seats.length());
+	}
+
+	/**
+	 * Method to read the cached availability of a flight.
+	 *
+	 * @param fnum the flight number
+	 * @return the available seats, or UNKNOWN if not cached or too old
+	 */
+	public int get(int fnum){
+		return cached(fnum, entry(fnum));
+	}
+
+	/*
+	 * Reads the stamp and seats of a flight.
+	 */
+	private long entry(int fnum){
+		this._lock.readLock().lock();
+		try{
+			return fnum >= 0 && fnum < this._seats.length() ? this._seats.get(fnum) : pack(0, UNKNOWN);
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Returns the seats of an entry read for a flight, or UNKNOWN when the
+	 * entry is too old.
+	 */
+	private int cached(int fnum, long entry){
+		if (seats(entry) == UNKNOWN){
+			return UNKNOWN;
+		}
+		this._lock.readLock().lock();
+		try{
+			return System.currentTimeMillis() - this._loadedAt.get(fnum) > MAX_AGE_MILLIS ? UNKNOWN : seats(entry);
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to read the availability of a flight, asking the primary on a
+	 * miss and caching the answer unless the entry changed meanwhile.
+	 *
+	 * @param esql the database to load from
+	 * @param fnum the flight number
+	 * @return the available seats, or null if the flight has no plane assigned
+	 * @throws java.sql.SQLException when the lookup fails
+	 */
+	public Integer getOrLoad(DBproject esql, int fnum) throws SQLException {
+		long entry = entry(fnum);
+		int seats = cached(fnum, entry);
+		if (seats != UNKNOWN){
+			this._hits.incrementAndGet();
+			return seats;
+		}
+		this._misses.incrementAndGet();
+		// from the primary: a replica may not have the bookings already applied to the cache
+		Integer loaded = esql.onPrimary(() -> esql.queryForInteger(DBproject.SQL_SEATS_AVAILABLE, fnum));
+		if (loaded != null){
+			putIfUnchanged(fnum, entry, loaded);
+		}
+		return loaded;
+	}
+
+	/**
+	 * Method to load the availability of every flight in one query.
+	 *
+	 * @param esql the database to load from
+	 * @return the number of flights loaded
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public long preload(DBproject esql) throws SQLException {
+		return esql.streamQuery(SQL_ALL_SEATS_AVAILABLE, rs -> put(rs.getInt(1), rs.getInt(2)));
+	}
+
+	public void put(int fnum, int seats){
+		if (fnum < 0){
+			return;
+		}
+		ensureCapacity(fnum);
+		this._lock.readLock().lock();
+		try{
+			long current;
+			do{
+				current = this._seats.get(fnum);
+			}while (!this._seats.compareAndSet(fnum, current, pack(stamp(current) + 1, seats)));
+			this._loadedAt.set(fnum, System.currentTimeMillis());
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to cache a value loaded from the database unless the entry
+	 * changed since the lookup missed on it.
+	 */
+	private void putIfUnchanged(int fnum, long missed, int seats){
+		if (fnum < 0){
+			return;
+		}
+		ensureCapacity(fnum);
+		this._lock.readLock().lock();
+		try{
+			if (this._seats.compareAndSet(fnum, missed, pack(stamp(missed) + 1, seats))){
+				this._loadedAt.set(fnum, System.currentTimeMillis());
+			}
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Method to apply a change in sold seats to a cached entry, e.g. -1 for
+	 * a booking or +1 for a cancellation.  Entries not cached stay unknown,
+	 * but a lookup running for them does not cache its answer.
+	 *
+	 * @param fnum the flight number
+	 * @param delta the change in available seats
+	 */
+	public void adjust(int fnum, int delta){
+		change(fnum, seats -> seats == UNKNOWN ? UNKNOWN : seats + delta);
+	}
+
+	/**
+	 * Method to record that a flight turned out to be full, e.g. when a
+	 * booking was waitlisted.
+	 */
+	public void markFull(int fnum){
+		change(fnum, seats -> seats == UNKNOWN ? UNKNOWN : Math.min(seats, 0));
+	}
+
+	public void invalidate(int fnum){
+		change(fnum, seats -> UNKNOWN);
+	}
+
+	/*
+	 * Replaces the seats of an entry and raises its stamp.
+	 */
+	private void change(int fnum, IntUnaryOperator update){
+		if (fnum < 0){
+			return;
+		}
+		// an entry past the end is grown, so a lookup of it sees the change
+		ensureCapacity(fnum);
+		this._lock.readLock().lock();
+		try{
+			long current;
+			do{
+				current = this._seats.get(fnum);
+			}while (!this._seats.compareAndSet(fnum, current, pack(stamp(current) + 1, update.applyAsInt(seats(current)))));
+		}finally{
+			this._lock.readLock().unlock();
+		}
+	}
+
+	public void clear(){
+		this._lock.writeLock().lock();
+		try{
+			// raising every stamp keeps lookups running now from caching their answers
+			AtomicLongArray seats = newArray(this._seats.length());
+			for (int i = 0; i < seats.length(); ++i){
+				seats.set(i, pack(stamp(this._seats.get(i)) + 1, UNKNOWN));
+			}
+			this._seats = seats;
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	public long getHits(){
+		return this._hits.get();
+	}
+
+	public long getMisses(){
+		return this._misses.get();
+	}
+
+	private void ensureCapacity(int fnum){
+		this._lock.readLock().lock();
+		try{
+			if (fnum < this._seats.length()){
+				return;
+			}
+		}finally{
+			this._lock.readLock().unlock();
+		}
+		this._lock.writeLock().lock();
+		try{
+			int length = this._seats.length();
+			if (fnum < length){
+				return;
+			}
+			int grown = Math.max(fnum + 1, length + (length >> 1));
+			AtomicLongArray seats = newArray(grown);
+			AtomicLongArray loadedAt = new AtomicLongArray(grown);
+			for (int i = 0; i < length; ++i){
+				seats.set(i, this._seats.get(i));
+				loadedAt.set(i, this._loadedAt.get(i));
+			}
+			this._seats = seats;
+			this._loadedAt = loadedAt;
+		}finally{
+			this._lock.writeLock().unlock();
+		}
+	}
+
+	private static long pack(int stamp, int seats){
+		return ((long) stamp << 32) | (seats & 0xFFFFFFFFL);
+	}
+
+	private static int stamp(long entry){
+		return (int) (entry >>> 32);
+	}
+
+	private static int seats(long entry){
+		return (int) entry;
+	}
+
+	private static AtomicLongArray newArray(int length){
+		AtomicLongArray seats = new AtomicLongArray(length);
+		for (int i = 0; i < length; ++i){
+			seats.set(i, pack(0, UNKNOWN));
+		}
+		return seats;
+	}
+}
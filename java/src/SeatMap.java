@@ -0,0 +1,569 @@
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class assigns seats on flights.  Every flight has a row per seat in
+ * Seat (migration V005) and, once booked through this class, a bitmap of
+ * its taken seats in memory.  A booking claims a specific seat or the
+ * lowest free one by compare-and-set on the bitmap, so concurrent bookers
+ * of the same flight never wait for each other to pick a seat.
+ *
+ * Claims are persisted in batches by -Ddbproject.seatmap.writers (4)
+ * writer threads, each owning the flights whose fnum falls in its shard:
+ * whatever claims of the shard queued up while its previous batch was being
+ * written go to the database in one transaction and one set based
+ * statement, which seats them, inserts their reservations and raises
+ * num_sold once per flight.  The booker waits for its batch to commit, so a
+ * booking that returns is durable, but a popular flight's row is locked
+ * once per batch instead of once per booking, and bookings of flights in
+ * other shards are written at the same time.  Flights are locked in fnum
+ * order like BulkBooking and Waitlist; the shards share no flights, so the
+ * writers never wait for each other.
+ *
+ * The database has the last word: a claimed seat another process took
+ * first, or a flight whose num_sold was raised by a booking without a seat,
+ * makes the flight's map reload and a booking for any seat try again.
+ * Loading a map locks the flight's row like the writers do and gives a
+ * seat to every reserved reservation of the flight that has none, e.g. ones booked in bulk or promoted from the
+ * waitlist.  A map older than -Ddbproject.seatmap.maxAgeMs (60000) is
+ * reloaded on its next booking.
+ *
+ * bookFlight() books through the seat map when -Ddbproject.seatmap=true.
+ *
+ */
+public class SeatMap{
+	public static final boolean ENABLED = Boolean.getBoolean("dbproject.seatmap");
+	static final long MAX_AGE_MILLIS = Long.getLong("dbproject.seatmap.maxAgeMs", 60000L);
+	//claims per transaction of the writer
+	static final int BATCH_SIZE = Integer.getInteger("dbproject.seatmap.batchSize", 256);
+	//writer threads, each persisting the claims of the flights in its shard
+	static final int WRITERS = Math.max(Integer.getInteger("dbproject.seatmap.writers", 4), 1);
+	//times a booking for any seat picks another after losing one to another process
+	static final int MAX_RETRIES = 3;
+
+	static final String SQL_LOCK_FLIGHT = "SELECT fnum FROM Flight WHERE fnum = ? FOR UPDATE";
+	static final String SQL_CREATE_SEATS =
+		"INSERT INTO Seat (flight_id, seat_no) SELECT f.fnum, generate_series(1, " +
+		"(SELECT CAST(COALESCE(SUM(pl.seats), 0) AS INTEGER) FROM FlightInfo fi JOIN Plane pl ON pl.id = fi.plane_id WHERE fi.flight_id = f.fnum)) " +
+		"FROM Flight f WHERE f.fnum = ? ON CONFLICT DO NOTHING";
+	/*
+	 * Gives the reserved reservations of a flight that have no seat the
+	 * lowest free seats, oldest reservation first.  A seat is only given if
+	 * it is still free when updated.
+	 */
+	static final String SQL_SEAT_UNSEATED =
+		"WITH unseated AS (" +
+		"SELECT r.rnum, row_number() OVER (ORDER BY r.rnum) AS n FROM Reservation r " +
+		"WHERE r.fid = ? AND r.status = 'R' AND NOT EXISTS (SELECT 1 FROM Seat s WHERE s.rnum = r.rnum)), " +
+		"free AS (" +
+		"SELECT seat_no, row_number() OVER (ORDER BY seat_no) AS n FROM Seat WHERE flight_id = ? AND rnum IS NULL) " +
+		"UPDATE Seat s SET rnum = u.rnum FROM unseated u JOIN free fr ON fr.n = u.n WHERE s.flight_id = ? AND s.seat_no = fr.seat_no AND s.rnum IS NULL";
+	static final String SQL_SEATS = "SELECT seat_no, rnum IS NOT NULL FROM Seat WHERE flight_id = ?";
+	static final String SQL_LOCK_FLIGHTS = "SELECT fnum FROM Flight WHERE fnum = ANY (CAST(? AS INTEGER[])) ORDER BY fnum FOR UPDATE";
+	/*
+	 * Persists a batch of claims, given as arrays of rnum, customer, flight
+	 * and seat (0 to waitlist).  A claim is reserved if its seat is still
+	 * free and the flight has room by num_sold, waitlisted if the seat is
+	 * free but the flight is full; the outcome of every claim is returned,
+	 * 'taken' when the seat was not free any more.  The seat is tested
+	 * again by the update, as free_seats reads the statement's snapshot.
+	 */
+	static final String SQL_PERSIST =
+		"WITH requested AS (" +
+		"SELECT * FROM unnest(CAST(? AS INTEGER[]), CAST(? AS INTEGER[]), CAST(? AS INTEGER[]), CAST(? AS INTEGER[])) " +
+		"AS c(rnum, cid, fid, seat_no)), " +
+		"valid AS (" +
+		"SELECT r.* FROM requested r JOIN Customer cu ON cu.id = r.cid JOIN Flight f ON f.fnum = r.fid), " +
+		"capacity AS (" +
+		"SELECT fi.flight_id AS fid, SUM(pl.seats) AS seats FROM FlightInfo fi JOIN Plane pl ON pl.id = fi.plane_id " +
+		"WHERE fi.flight_id IN (SELECT fid FROM valid) GROUP BY fi.flight_id), " +
+		"free_seats AS (" +
+		"SELECT v.rnum, v.cid, v.fid, v.seat_no, row_number() OVER (PARTITION BY v.fid ORDER BY v.rnum) AS pos, " +
+		"COALESCE(cap.seats, 0) - f.num_sold AS room " +
+		"FROM valid v JOIN Seat s ON s.flight_id = v.fid AND s.seat_no = v.seat_no AND s.rnum IS NULL " +
+		"JOIN Flight f ON f.fnum = v.fid LEFT JOIN capacity cap ON cap.fid = v.fid), " +
+		"seated AS (" +
+		"UPDATE Seat s SET rnum = fs.rnum FROM free_seats fs " +
+		"WHERE s.flight_id = fs.fid AND s.seat_no = fs.seat_no AND s.rnum IS NULL AND fs.pos <= fs.room RETURNING fs.rnum, fs.cid, fs.fid), " +
+		"booked AS (" +
+		"INSERT INTO Reservation (rnum, cid, fid, status) " +
+		"SELECT rnum, cid, fid, 'R' FROM seated " +
+		"UNION ALL SELECT rnum, cid, fid, 'W' FROM free_seats WHERE pos > room " +
+		"UNION ALL SELECT rnum, cid, fid, 'W' FROM valid WHERE seat_no = 0 " +
+		"RETURNING rnum, fid, status), " +
+		"sold AS (" +
+		"UPDATE Flight f SET num_sold = f.num_sold + n.cnt " +
+		"FROM (SELECT fid, COUNT(*) AS cnt FROM booked WHERE status = 'R' GROUP BY fid) n WHERE f.fnum = n.fid RETURNING f.fnum) " +
+		"SELECT r.rnum, CASE WHEN b.rnum IS NOT NULL THEN CAST(b.status AS TEXT) " +
+		"WHEN NOT EXISTS (SELECT 1 FROM Customer cu WHERE cu.id = r.cid) THEN 'customer' " +
+		"WHEN NOT EXISTS (SELECT 1 FROM Flight f WHERE f.fnum = r.fid) THEN 'flight' ELSE 'taken' END " +
+		"FROM requested r LEFT JOIN booked b ON b.rnum = r.rnum";
+	static final String SQL_FREE = "UPDATE Seat SET rnum = NULL WHERE rnum = ? RETURNING seat_no";
+
+	/*
+	 * Taken seats of one flight, bit i of word w for seat w * 64 + i + 1.
+	 * The bits past the last seat are set, so they are never free.
+	 */
+	static class Seats{
+		final int count;
+		final AtomicLongArray bits;
+		final long loadedAt = System.currentTimeMillis();
+		//word the search for a free seat starts at; a release racing a claim
+		//can leave it past a free seat, so a failed search starts over at 0
+		final AtomicInteger firstFree = new AtomicInteger();
+
+		Seats(int count){
+			this.count = count;
+			this.bits = new AtomicLongArray(Math.max((count + 63) / 64, 1));
+			int tail = count % 64;
+			if (tail != 0 || count == 0){
+				this.bits.set(this.bits.length() - 1, count == 0 ? -1L : -1L << tail);
+			}
+		}
+
+		boolean claim(int seat){
+			int w = (seat - 1) >>> 6;
+			long bit = 1L << ((seat - 1) & 63);
+			while (true){
+				long word = this.bits.get(w);
+				if ((word & bit) != 0){
+					return false;
+				}
+				if (this.bits.compareAndSet(w, word, word | bit)){
+					return true;
+				}
+			}
+		}
+
+		/*
+		 * Claims the lowest free seat, or returns -1 when all are taken.
+		 */
+		int claimAny(){
+			int start = this.firstFree.get();
+			int seat = claimFrom(start);
+			return seat < 0 && start > 0 ? claimFrom(0) : seat;
+		}
+
+		private int claimFrom(int start){
+			for (int w = start; w < this.bits.length(); ++w){
+				long word;
+				while ((word = this.bits.get(w)) != -1L){
+					long bit = Long.lowestOneBit(~word);
+					if (this.bits.compareAndSet(w, word, word | bit)){
+						return (w << 6) + Long.numberOfTrailingZeros(bit) + 1;
+					}
+				}
+				this.firstFree.compareAndSet(w, w + 1);
+			}
+			return -1;
+		}
+
+		void release(int seat){
+			int w = (seat - 1) >>> 6;
+			long bit = 1L << ((seat - 1) & 63);
+			long word;
+			do{
+				word = this.bits.get(w);
+			}while ((word & bit) != 0 && !this.bits.compareAndSet(w, word, word & ~bit));
+			this.firstFree.accumulateAndGet(w, Math::min);
+		}
+
+		int free(){
+			int taken = 0;
+			for (int w = 0; w < this.bits.length(); ++w){
+				taken += Long.bitCount(this.bits.get(w));
+			}
+			return this.bits.length() * 64 - taken;
+		}
+	}
+
+	/*
+	 * A seat claimed in memory, waiting for the writer to persist it.
+	 */
+	private static class Claim{
+		final int rnum;
+		final int customerId;
+		final int flightNum;
+		final int seat;
+		final CompletableFuture<String> outcome = new CompletableFuture<String>();
+
+		Claim(int rnum, int customerId, int flightNum, int seat){
+			this.rnum = rnum;
+			this.customerId = customerId;
+			this.flightNum = flightNum;
+			this.seat = seat;
+		}
+	}
+
+	private final DBproject _esql;
+	private final ConcurrentHashMap<Integer, Seats> _flights = new ConcurrentHashMap<Integer, Seats>();
+	//one load per flight at a time; other bookers of the flight wait for it
+	private final ConcurrentHashMap<Integer, ReentrantLock> _loading = new ConcurrentHashMap<Integer, ReentrantLock>();
+	//claims waiting for the writer of each shard
+	private final List<LinkedBlockingQueue<Claim>> _queues = new ArrayList<LinkedBlockingQueue<Claim>>(WRITERS);
+	//guards starting and stopping the writers
+	private final ReentrantLock _writerLock = new ReentrantLock();
+	private final Thread[] _writers = new Thread[WRITERS];
+	private boolean _closed = false;
+
+	private final AtomicLong _bookings = new AtomicLong();
+	private final AtomicLong _batches = new AtomicLong();
+	private final AtomicLong _conflicts = new AtomicLong();
+	private final AtomicLong _loads = new AtomicLong();
+
+	public SeatMap(DBproject esql){
+		this._esql = esql;
+		for (int i = 0; i < WRITERS; ++i){
+			this._queues.add(new LinkedBlockingQueue<Claim>());
+		}
+	}
+
+	/**
+	 * Method to book a seat on a flight, waitlisting the customer when no
+	 * seat is free.
+	 *
+	 * @param customerId the Customer.id
+	 * @param flightNum the Flight.fnum
+	 * @param seat the seat wanted, or 0 for the lowest free one
+	 * @return the reservation with its seat, or waitlisted without one
+	 * @throws java.sql.SQLException when the customer or flight does not exist, or the batch failed
+	 * @throws IllegalArgumentException when the seat wanted is taken or does not exist
+	 */
+	public Booking book(int customerId, int flightNum, int seat) throws SQLException {
+		long started = this._esql.getMetrics().beginOperation();
+		long rows = -1;
+		try{
+			int rnum = this._esql.getReservationNums().next();
+			for (int attempt = 0; ; ++attempt){
+				Seats seats = seats(flightNum);
+				int claimed = 0;
+				if (seat > 0){
+					if (seat > seats.count){
+						throw new IllegalArgumentException("flight " + flightNum + " has no seat " + seat);
+					}
+					if (!seats.claim(seat)){
+						throw new IllegalArgumentException("seat " + seat + " of flight " + flightNum + " is taken");
+					}
+					claimed = seat;
+				}else if (attempt <= MAX_RETRIES){
+					// no free seat, or too many lost to other processes: waitlisted with seat 0
+					claimed = Math.max(seats.claimAny(), 0);
+				}
+				String outcome;
+				try{
+					outcome = persist(new Claim(rnum, customerId, flightNum, claimed));
+				}catch (SQLException | RuntimeException e){
+					if (claimed > 0){
+						seats.release(claimed);
+					}
+					throw e;
+				}
+				if (outcome.equals("R") || outcome.equals("W")){
+					if (outcome.equals("W") && claimed > 0){
+						// the seat is free but the flight is full by num_sold: something booked without a seat
+						invalidate(flightNum);
+					}
+					char status = outcome.charAt(0);
+					this._esql.getReservationSnapshot().update(rnum, customerId, flightNum, status);
+					if (status == 'R'){
+						this._esql.getSeatCache().adjust(flightNum, -1);
+					}else{
+						this._esql.getSeatCache().markFull(flightNum);
+					}
+					this._bookings.incrementAndGet();
+					rows = 1;
+					return new Booking(rnum, customerId, flightNum, status, status == 'R' ? claimed : 0);
+				}
+				if (claimed > 0){
+					seats.release(claimed);
+				}
+				if (outcome.equals("customer") || outcome.equals("flight")){
+					// the same SQLSTATE as the foreign key violation of bookFlight
+					throw new SQLException(outcome + " " + (outcome.equals("customer") ? customerId : flightNum) + " does not exist", "23503");
+				}
+				// another process took the seat: reload the flight's seats
+				this._conflicts.incrementAndGet();
+				invalidate(flightNum);
+				if (seat > 0){
+					throw new IllegalArgumentException("seat " + seat + " of flight " + flightNum + " is taken");
+				}
+			}
+		}finally{
+			this._esql.getMetrics().endOperation("book-seat", started, rows);
+		}
+	}
+
+	/**
+	 * Method to hand a claim to the writer of its flight's shard and wait
+	 * for its batch.
+	 */
+	private String persist(Claim claim) throws SQLException {
+		enqueue(claim);
+		try{
+			return claim.outcome.get();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while the booking was being written", e);
+		}catch (ExecutionException e){
+			Throwable cause = e.getCause();
+			if (cause instanceof SQLException){
+				throw (SQLException) cause;
+			}
+			throw new SQLException("Could not write the booking: " + cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Method to queue a claim for the writer of its shard, starting the
+	 * writer when needed.  The claim is queued under the writer lock, so a
+	 * close() either refuses it here or finds it queued and fails it.
+	 */
+	private void enqueue(Claim claim){
+		int shard = Math.floorMod(claim.flightNum, WRITERS);
+		this._writerLock.lock();
+		try{
+			if (this._closed){
+				throw new IllegalStateException("the seat map is closed");
+			}
+			LinkedBlockingQueue<Claim> queue = this._queues.get(shard);
+			if (this._writers[shard] == null){
+				this._writers[shard] = new Thread(() -> write(queue), "seat-map-writer-" + shard);
+				this._writers[shard].setDaemon(true);
+				this._writers[shard].start();
+			}
+			queue.add(claim);
+		}finally{
+			this._writerLock.unlock();
+		}
+	}
+
+	/**
+	 * Method run by a writer thread: persists the claims queued for its
+	 * shard, a batch per transaction, until the seat map is closed.
+	 */
+	private void write(LinkedBlockingQueue<Claim> queue){
+		List<Claim> batch = new ArrayList<Claim>(BATCH_SIZE);
+		while (true){
+			try{
+				batch.add(queue.take());
+			}catch (InterruptedException e){
+				break;
+			}
+			queue.drainTo(batch, BATCH_SIZE - 1);
+			try{
+				Map<Integer, String> outcomes = writeBatch(batch);
+				for (Claim c : batch){
+					String outcome = outcomes.get(c.rnum);
+					c.outcome.complete(outcome == null ? "taken" : outcome);
+				}
+			}catch (SQLException | RuntimeException e){
+				for (Claim c : batch){
+					c.outcome.completeExceptionally(e);
+				}
+			}
+			batch.clear();
+		}
+		SQLException closed = new SQLException("The seat map was closed before the booking was written");
+		for (Claim c = queue.poll(); c != null; c = queue.poll()){
+			c.outcome.completeExceptionally(closed);
+		}
+	}
+
+	private Map<Integer, String> writeBatch(List<Claim> batch) throws SQLException {
+		Integer[] rnums = new Integer[batch.size()];
+		Integer[] customers = new Integer[batch.size()];
+		Integer[] flights = new Integer[batch.size()];
+		Integer[] seats = new Integer[batch.size()];
+		TreeSet<Integer> distinct = new TreeSet<Integer>();
+		for (int i = 0; i < batch.size(); ++i){
+			Claim c = batch.get(i);
+			rnums[i] = c.rnum;
+			customers[i] = c.customerId;
+			flights[i] = c.flightNum;
+			seats[i] = c.seat;
+			distinct.add(c.flightNum);
+		}
+		Map<Integer, String> outcomes = new HashMap<Integer, String>();
+		Connection conn = this._esql.pinConnection();
+		try{
+			conn.setAutoCommit(false);
+			try{
+				Array locked = conn.createArrayOf("int4", distinct.toArray(new Integer[distinct.size()]));
+				this._esql.queryForList(SQL_LOCK_FLIGHTS, rs -> rs.getInt(1), locked);
+				this._esql.streamQuery(SQL_PERSIST, rs -> outcomes.put(rs.getInt(1), rs.getString(2)),
+					conn.createArrayOf("int4", rnums), conn.createArrayOf("int4", customers),
+					conn.createArrayOf("int4", flights), conn.createArrayOf("int4", seats));
+				conn.commit();
+				this._batches.incrementAndGet();
+				return outcomes;
+			}catch (SQLException | RuntimeException e){
+				conn.rollback();
+				throw e;
+			}finally{
+				conn.setAutoCommit(true);
+			}
+		}finally{
+			this._esql.unpinConnection();
+		}
+	}
+
+	/**
+	 * Method to get the seat bitmap of a flight, loading it when it is not
+	 * in memory or too old.
+	 */
+	private Seats seats(int flightNum) throws SQLException {
+		Seats seats = this._flights.get(flightNum);
+		if (seats != null && System.currentTimeMillis() - seats.loadedAt <= MAX_AGE_MILLIS){
+			return seats;
+		}
+		ReentrantLock lock = this._loading.computeIfAbsent(flightNum, k -> new ReentrantLock());
+		lock.lock();
+		try{
+			Seats current = this._flights.get(flightNum);
+			if (current != null && current != seats && System.currentTimeMillis() - current.loadedAt <= MAX_AGE_MILLIS){
+				return current;
+			}
+			current = load(flightNum);
+			this._flights.put(flightNum, current);
+			return current;
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Method to create the Seat rows of a flight if needed, seat its
+	 * reserved reservations that have none, and read which seats are taken.
+	 * The flight's row is locked for update, so loads and the writers of
+	 * every process take turns on the flight.
+	 */
+	private Seats load(int flightNum) throws SQLException {
+		Connection conn = this._esql.pinConnection();
+		try{
+			conn.setAutoCommit(false);
+			try{
+				this._esql.queryForList(SQL_LOCK_FLIGHT, rs -> rs.getInt(1), flightNum);
+				this._esql.executeUpdate(SQL_CREATE_SEATS, flightNum);
+				this._esql.executeUpdate(SQL_SEAT_UNSEATED, flightNum, flightNum, flightNum);
+				List<int[]> rows = this._esql.queryForList(SQL_SEATS, rs -> new int[]{rs.getInt(1), rs.getBoolean(2) ? 1 : 0}, flightNum);
+				conn.commit();
+				int count = 0;
+				for (int[] row : rows){
+					count = Math.max(count, row[0]);
+				}
+				Seats seats = new Seats(count);
+				for (int[] row : rows){
+					if (row[1] == 1){
+						seats.claim(row[0]);
+					}
+				}
+				this._loads.incrementAndGet();
+				return seats;
+			}catch (SQLException | RuntimeException e){
+				conn.rollback();
+				throw e;
+			}finally{
+				conn.setAutoCommit(true);
+			}
+		}finally{
+			this._esql.unpinConnection();
+		}
+	}
+
+	/**
+	 * Method to give up the seat of a reservation being cancelled, inside
+	 * the caller's transaction on the pinned connection.  Call released()
+	 * after the commit.
+	 *
+	 * @param rnum the Reservation.rnum
+	 * @return the seat it held, or 0 if it had none
+	 * @throws java.sql.SQLException when the update fails
+	 */
+	public int free(int rnum) throws SQLException {
+		Integer seat = this._esql.queryForInteger(SQL_FREE, rnum);
+		return seat == null ? 0 : seat;
+	}
+
+	/**
+	 * Method to mark a seat freed by a committed cancellation as free in
+	 * the flight's bitmap, if the flight is in memory.
+	 *
+	 * @param flightNum the Flight.fnum
+	 * @param seat the seat number
+	 */
+	public void released(int flightNum, int seat){
+		Seats seats = this._flights.get(flightNum);
+		if (seats != null && seat > 0 && seat <= seats.count){
+			seats.release(seat);
+		}
+	}
+
+	/**
+	 * Method to drop the bitmap of a flight, e.g. after reservations were
+	 * reserved without a seat, so the next booking reloads and seats them.
+	 *
+	 * @param flightNum the Flight.fnum
+	 */
+	public void invalidate(int flightNum){
+		this._flights.remove(flightNum);
+	}
+
+	/**
+	 * Method to drop every bitmap.
+	 */
+	public void invalidateAll(){
+		this._flights.clear();
+	}
+
+	/**
+	 * Method to read the free seats of a flight from its bitmap.
+	 *
+	 * @param flightNum the Flight.fnum
+	 * @return the free seats, or -1 when the flight is not in memory
+	 */
+	public int getFree(int flightNum){
+		Seats seats = this._flights.get(flightNum);
+		return seats == null ? -1 : seats.free();
+	}
+
+	/**
+	 * Method to describe the seat map for the statistics screen.
+	 */
+	public String getStats(){
+		long batches = this._batches.get();
+		long bookings = this._bookings.get();
+		return String.format("seat map: %d flights in memory, %d loads, %d bookings in %d batches (%.1f per batch), %d seats lost to other processes",
+			this._flights.size(), this._loads.get(), bookings, batches, batches == 0 ? 0.0 : (double) bookings / batches, this._conflicts.get());
+	}
+
+	/**
+	 * Method to stop the writers.  Bookings still queued fail.
+	 */
+	public void close(){
+		this._writerLock.lock();
+		try{
+			this._closed = true;
+			for (Thread writer : this._writers){
+				if (writer != null){
+					writer.interrupt();
+				}
+			}
+		}finally{
+			this._writerLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,286 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * This class writes the database calls that took longer than a threshold
+ * to a local log file, with their parameters, time and row count, so a
+ * report that suddenly got slow can be diagnosed after the fact.
+ *
+ * A sampled fraction of the slow statements is run again through EXPLAIN
+ * on a background thread with a connection of its own, and the plan is
+ * appended to the log under the number of the entry it belongs to.
+ * Queries are explained with (ANALYZE, BUFFERS) inside a read only
+ * transaction that is rolled back; statements that change data only get
+ * their estimated plan, since analyzing them would run them again.
+ *
+ * The log is rotated when it grows past its maximum size: slow.log becomes
+ * slow.log.1, slow.log.1 becomes slow.log.2 and so on, keeping a fixed
+ * number of old files.
+ *
+ *   -Ddbproject.slowlog.ms=200           log calls slower than 200 ms (off when unset)
+ *   -Ddbproject.slowlog.file=slow.log    where to log
+ *   -Ddbproject.slowlog.explain=0.1      fraction of slow statements to explain
+ *   -Ddbproject.slowlog.maxBytes=10485760, -Ddbproject.slowlog.files=5
+ *
+ */
+public class SlowQueryLog{
+	static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+	//longest parameter value written to the log
+	static final int MAX_PARAM_CHARS = 200;
+	//slow statements waiting to be explained; more are dropped
+	static final int MAX_PENDING_EXPLAINS = 16;
+	//statements EXPLAIN ANALYZE may run again: queries that cannot change data
+	static final Pattern READ_ONLY = Pattern.compile("(?is)\\s*(SELECT|WITH|VALUES|TABLE)\\b(?!.*\\b(INSERT|UPDATE|DELETE|MERGE)\\b).*");
+	static final Pattern EXPLAINABLE = Pattern.compile("(?is)\\s*(SELECT|WITH|VALUES|TABLE|INSERT|UPDATE|DELETE)\\b.*");
+
+	private final ConnectionPool _pool;
+	private final File _file;
+	private final long _thresholdNanos;
+	private final double _explainRate;
+	private final long _explainTimeoutMillis;
+	private final long _maxBytes;
+	private final int _keepFiles;
+	private final ReentrantLock _lock = new ReentrantLock();
+	private final ThreadPoolExecutor _explainer;
+	private final AtomicLong _entries = new AtomicLong();
+	private final AtomicLong _explained = new AtomicLong();
+	private final AtomicLong _dropped = new AtomicLong();
+	private boolean _writeFailed = false;
+
+	/**
+	 * Creates a slow query log.
+	 *
+	 * @param pool where the connections to explain statements with come from
+	 * @param file the log file
+	 * @param thresholdMillis calls taking longer than this are logged
+	 * @param explainRate fraction of the logged statements to explain, 0 for none
+	 * @param explainTimeoutMillis statement timeout of the EXPLAIN
+	 * @param maxBytes size at which the log is rotated
+	 * @param keepFiles rotated files to keep
+	 */
+	public SlowQueryLog(ConnectionPool pool, File file, long thresholdMillis, double explainRate, long explainTimeoutMillis,
+			long maxBytes, int keepFiles){
+		this._pool = pool;
+		this._file = file;
+		this._thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+		this._explainRate = explainRate;
+		this._explainTimeoutMillis = explainTimeoutMillis;
+		this._maxBytes = maxBytes;
+		this._keepFiles = keepFiles;
+		this._explainer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(MAX_PENDING_EXPLAINS), r -> {
+				Thread t = new Thread(r, "slow-query-explain");
+				t.setDaemon(true);
+				return t;
+			}, (r, executor) -> this._dropped.incrementAndGet());
+	}
+
+	/**
+	 * Method to create the log from the dbproject.slowlog.* system properties.
+	 *
+	 * @param pool where the connections to explain statements with come from
+	 * @return the log, or null when -Ddbproject.slowlog.ms is not set
+	 */
+	public static SlowQueryLog fromSystemProperties(ConnectionPool pool){
+		Long threshold = Long.getLong("dbproject.slowlog.ms");
+		if (threshold == null || threshold < 0){
+			return null;
+		}
+		double rate = Double.parseDouble(System.getProperty("dbproject.slowlog.explain", "0"));
+		return new SlowQueryLog(pool, new File(System.getProperty("dbproject.slowlog.file", "slow.log")), threshold,
+			Math.max(0, Math.min(rate, 1)),
+			Long.getLong("dbproject.slowlog.explainTimeoutMs", 30000L),
+			Long.getLong("dbproject.slowlog.maxBytes", 10L * 1024 * 1024),
+			Integer.getInteger("dbproject.slowlog.files", 5));
+	}
+
+	/**
+	 * Method to log a finished database call if it took longer than the
+	 * threshold, and to queue it for EXPLAIN at the sampled rate.
+	 *
+	 * @param sql the statement text
+	 * @param params the values bound to its placeholders
+	 * @param nanos how long the call took
+	 * @param rows the rows returned or changed, negative if the call failed
+	 */
+	public void check(String sql, Object[] params, long nanos, long rows){
+		if (nanos < this._thresholdNanos){
+			return;
+		}
+		long entry = this._entries.incrementAndGet();
+		String parameters = formatParams(params);
+		StringBuilder sb = new StringBuilder(256 + sql.length());
+		sb.append(LocalDateTime.now().format(TIMESTAMP)).append(" slow #").append(entry)
+			.append(String.format(" %.3f ms", nanos / 1e6))
+			.append(rows < 0 ? " failed" : " rows " + rows)
+			.append(" thread ").append(Thread.currentThread().getName()).append('\n');
+		sb.append("  sql: ").append(sql.trim().replace("\n", "\n       ")).append('\n');
+		if (params.length > 0){
+			sb.append("  params: ").append(parameters).append('\n');
+		}
+		write(sb);
+
+		if (rows >= 0 && this._explainRate > 0 && EXPLAINABLE.matcher(sql).matches()
+				&& ThreadLocalRandom.current().nextDouble() < this._explainRate){
+			this._explainer.execute(() -> explain(entry, sql, params.clone()));
+		}
+	}
+
+	/**
+	 * Method to run a logged statement through EXPLAIN and log its plan.
+	 */
+	private void explain(long entry, String sql, Object[] params){
+		boolean analyze = READ_ONLY.matcher(sql).matches();
+		String explain = analyze ? "EXPLAIN (ANALYZE, BUFFERS) " : "EXPLAIN ";
+		StringBuilder sb = new StringBuilder(1024);
+		ConnectionPool.PooledConnection pc = null;
+		try{
+			pc = this._pool.borrow();
+			Connection conn = pc.getConnection();
+			// release() rolls the transaction back, so nothing the statement did is kept
+			conn.setAutoCommit(false);
+			Statement settings = conn.createStatement();
+			try{
+				settings.execute("SET TRANSACTION READ ONLY");
+				settings.execute("SET LOCAL statement_timeout = " + this._explainTimeoutMillis);
+			}finally{
+				settings.close();
+			}
+			PreparedStatement stmt = conn.prepareStatement(explain + sql);
+			try{
+				for (int i = 0; i < params.length; ++i){
+					stmt.setObject(i + 1, params[i]);
+				}
+				ResultSet rs = stmt.executeQuery();
+				sb.append(LocalDateTime.now().format(TIMESTAMP)).append(" plan #").append(entry).append(' ').append(explain.trim()).append('\n');
+				while (rs.next()){
+					sb.append("    ").append(rs.getString(1)).append('\n');
+				}
+				rs.close();
+			}finally{
+				stmt.close();
+			}
+			this._explained.incrementAndGet();
+		}catch (SQLException e){
+			sb.setLength(0);
+			sb.append(LocalDateTime.now().format(TIMESTAMP)).append(" plan #").append(entry).append(" not available: ")
+				.append(e.getMessage()).append('\n');
+		}finally{
+			this._pool.release(pc);
+		}
+		write(sb);
+	}
+
+	/**
+	 * Method to append an entry to the log, rotating it first if it would
+	 * grow past the maximum size.  Failing to write is reported once on
+	 * standard error and does not disturb the caller.
+	 */
+	private void write(CharSequence entry){
+		byte[] bytes = entry.toString().getBytes(StandardCharsets.UTF_8);
+		this._lock.lock();
+		try{
+			if (this._file.length() > 0 && this._file.length() + bytes.length > this._maxBytes){
+				rotate();
+			}
+			OutputStream out = new FileOutputStream(this._file, true);
+			try{
+				out.write(bytes);
+			}finally{
+				out.close();
+			}
+		}catch (IOException e){
+			if (!this._writeFailed){
+				this._writeFailed = true;
+				System.err.println("Could not write the slow query log " + this._file + ": " + e.getMessage());
+			}
+		}finally{
+			this._lock.unlock();
+		}
+	}
+
+	private void rotate(){
+		String path = this._file.getPath();
+		new File(path + "." + this._keepFiles).delete();
+		for (int i = this._keepFiles - 1; i >= 1; --i){
+			File older = new File(path + "." + i);
+			if (older.exists()){
+				older.renameTo(new File(path + "." + (i + 1)));
+			}
+		}
+		if (this._keepFiles > 0){
+			this._file.renameTo(new File(path + ".1"));
+		}else{
+			this._file.delete();
+		}
+	}
+
+	static String formatParams(Object[] params){
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < params.length; ++i){
+			if (i > 0){
+				sb.append(", ");
+			}
+			Object p = params[i];
+			String value = p == null ? "NULL" : p.toString();
+			if (value.length() > MAX_PARAM_CHARS){
+				value = value.substring(0, MAX_PARAM_CHARS) + "...";
+			}
+			if (p instanceof CharSequence || p instanceof Character){
+				sb.append('\'').append(value.replace("'", "''")).append('\'');
+			}else{
+				sb.append(value);
+			}
+		}
+		return sb.append(']').toString();
+	}
+
+	public long getThresholdMillis(){
+		return TimeUnit.NANOSECONDS.toMillis(this._thresholdNanos);
+	}
+
+	public File getFile(){
+		return this._file;
+	}
+
+	/**
+	 * Method to summarize the log for the statistics screen.
+	 */
+	public String getStats(){
+		return String.format("slow query log %s: %d slow statements over %d ms, %d explained, %d explains dropped",
+			this._file, this._entries.get(), getThresholdMillis(), this._explained.get(), this._dropped.get());
+	}
+
+	/**
+	 * Method to let the queued EXPLAINs finish for a moment, then stop.
+	 * Call before the pool is closed.
+	 */
+	public void close(){
+		this._explainer.shutdown();
+		try{
+			if (!this._explainer.awaitTermination(5, TimeUnit.SECONDS)){
+				this._explainer.shutdownNow();
+			}
+		}catch (InterruptedException e){
+			this._explainer.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
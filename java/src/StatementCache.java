@@ -0,0 +1,113 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps a bounded set of prepared statements for one physical
+ * connection, keyed by their SQL text.  When the cache is full the least
+ * recently used statement is closed and dropped.
+ *
+ */
+public class StatementCache{
+	//connection the cached statements belong to
+	private final Connection _connection;
+	private final int _capacity;
+	private final LinkedHashMap<String, PreparedStatement> _statements;
+
+	private long _hits = 0;
+	private long _misses = 0;
+	private long _evictions = 0;
+
+	public StatementCache(Connection connection, int capacity){
+		if (capacity <= 0){
+			throw new IllegalArgumentException("statement cache capacity must be positive: " + capacity);
+		}
+		this._connection = connection;
+		this._capacity = capacity;
+		// access ordered, so iteration starts with the least recently used statement
+		this._statements = new LinkedHashMap<String, PreparedStatement>(capacity * 2, 0.75f, true){
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest){
+				if (size() <= StatementCache.this._capacity){
+					return false;
+				}
+				closeQuietly(eldest.getValue());
+				++StatementCache.this._evictions;
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * Method to return the prepared statement for the given SQL text,
+	 * preparing it on the connection the first time it is seen.
+	 *
+	 * @param sql the SQL text with '?' placeholders
+	 * @return a prepared statement owned by this cache; callers must not close it
+	 * @throws java.sql.SQLException when the statement cannot be prepared
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement stmt = this._statements.get(sql);
+		if (stmt != null && !stmt.isClosed()){
+			++this._hits;
+			return stmt;
+		}
+		++this._misses;
+		stmt = this._connection.prepareStatement(sql);
+		this._statements.put(sql, stmt);
+		return stmt;
+	}
+
+	/**
+	 * Method to drop a statement from the cache, e.g. after it failed and
+	 * its server side plan may no longer be valid.
+	 *
+	 * @param sql the SQL text of the statement
+	 */
+	public void invalidate(String sql){
+		closeQuietly(this._statements.remove(sql));
+	}
+
+	/**
+	 * Method to close every cached statement.
+	 */
+	public void close(){
+		for (PreparedStatement stmt : this._statements.values()){
+			closeQuietly(stmt);
+		}
+		this._statements.clear();
+	}
+
+	public int size(){
+		return this._statements.size();
+	}
+
+	public int getCapacity(){
+		return this._capacity;
+	}
+
+	public long getHits(){
+		return this._hits;
+	}
+
+	public long getMisses(){
+		return this._misses;
+	}
+
+	public long getEvictions(){
+		return this._evictions;
+	}
+
+	private static void closeQuietly(PreparedStatement stmt){
+		if (stmt == null){
+			return;
+		}
+		try{
+			stmt.close();
+		}catch (SQLException e){
+			// ignored.
+		}
+	}
+}
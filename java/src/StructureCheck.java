@@ -0,0 +1,217 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * This class checks the in-memory structures that answer menu queries
+ * without the database: the interval trees of ScheduleConflicts, the
+ * rnum index of ReservationSnapshot and the seat bitmaps of SeatMap.  It
+ * needs no database, so it can run right after compile.sh (see check.sh).
+ *
+ */
+public class StructureCheck{
+	private final Random _random;
+	private int _checks = 0;
+	private int _failures = 0;
+
+	public StructureCheck(long seed){
+		this._random = new Random(seed);
+	}
+
+	private void check(boolean ok, String what){
+		++this._checks;
+		if (!ok){
+			++this._failures;
+			System.out.println("FAILED: " + what);
+		}
+	}
+
+	/**
+	 * Method to check that insertions keep an interval tree ordered and
+	 * balanced, with the right height and maxEnd on every node, and that
+	 * overlap searches find what a scan of all intervals finds.
+	 */
+	public void checkIntervalTree(){
+		// ascending starts rotate on almost every insert
+		ScheduleConflicts.Node ascending = null;
+		for (int i = 0; i < 1000; ++i){
+			ascending = ScheduleConflicts.insert(ascending, i * 10, i * 10 + 5 + i % 7 * 40, i);
+		}
+		checkNode(ascending, "ascending");
+		check(ascending.height <= maxHeight(1000), "ascending: height " + ascending.height + " for 1000 intervals");
+
+		List<int[]> intervals = new ArrayList<int[]>();
+		ScheduleConflicts.Node tree = null;
+		for (int fnum = 0; fnum < 2000; ++fnum){
+			int departure = this._random.nextInt(30 * ScheduleConflicts.DAY_MINUTES);
+			// a tenth are date-only schedules, departure and arrival at midnight of the same day
+			int arrival = fnum % 10 == 0 ? departure : departure + this._random.nextInt(720) - 60;
+			if (fnum % 10 == 0){
+				departure -= departure % ScheduleConflicts.DAY_MINUTES;
+				arrival = departure;
+			}
+			int[] slot = ScheduleConflicts.slot(departure, arrival);
+			check(slot[0] < slot[1], "slot of " + departure + ", " + arrival + " is empty");
+			intervals.add(new int[]{slot[0], slot[1], fnum});
+			tree = ScheduleConflicts.insert(tree, slot[0], slot[1], fnum);
+		}
+		int nodes = checkNode(tree, "random");
+		check(nodes == intervals.size(), "random: " + nodes + " nodes for " + intervals.size() + " intervals");
+		check(tree.height <= maxHeight(nodes), "random: height " + tree.height + " for " + nodes + " intervals");
+		// the path is copied, but the interval is not added again
+		nodes = checkNode(ScheduleConflicts.insert(tree, intervals.get(5)[0], intervals.get(5)[1], 5), "reinserted");
+		check(nodes == intervals.size(), "reinserted: " + nodes + " nodes for " + intervals.size() + " intervals");
+
+		for (int q = 0; q < 2000; ++q){
+			int start;
+			int end;
+			if (q % 4 == 0){
+				// touching an existing interval at either end is no overlap
+				int[] other = intervals.get(this._random.nextInt(intervals.size()));
+				start = q % 8 == 0 ? other[1] : other[0] - 30;
+				end = q % 8 == 0 ? other[1] + 30 : other[0];
+			}else{
+				start = this._random.nextInt(31 * ScheduleConflicts.DAY_MINUTES) - 600;
+				end = start + 1 + this._random.nextInt(q % 3 == 0 ? ScheduleConflicts.DAY_MINUTES : 240);
+			}
+			Set<Integer> expected = new HashSet<Integer>();
+			for (int[] i : intervals){
+				if (i[0] < end && i[1] > start){
+					expected.add(i[2]);
+				}
+			}
+			List<ScheduleConflicts.Conflict> found = new ArrayList<ScheduleConflicts.Conflict>();
+			ScheduleConflicts.overlaps("pilot", 1, tree, start, end, found);
+			Set<Integer> flights = new HashSet<Integer>();
+			for (ScheduleConflicts.Conflict c : found){
+				flights.add(c.otherFlight);
+			}
+			check(found.size() == flights.size() && flights.equals(expected),
+				"overlaps of [" + start + ", " + end + "): found " + flights + ", expected " + expected);
+		}
+	}
+
+	/*
+	 * Checks a subtree and returns its number of nodes.
+	 */
+	private int checkNode(ScheduleConflicts.Node n, String tree){
+		if (n == null){
+			return 0;
+		}
+		String at = tree + ": node of flight " + n.fnum;
+		int leftHeight = n.left == null ? 0 : n.left.height;
+		int rightHeight = n.right == null ? 0 : n.right.height;
+		check(n.height == 1 + Math.max(leftHeight, rightHeight), at + " has height " + n.height);
+		check(Math.abs(leftHeight - rightHeight) <= 1, at + " is out of balance, " + leftHeight + " left and " + rightHeight + " right");
+		int maxEnd = Math.max(n.end, Math.max(n.left == null ? Integer.MIN_VALUE : n.left.maxEnd, n.right == null ? Integer.MIN_VALUE : n.right.maxEnd));
+		check(n.maxEnd == maxEnd, at + " has maxEnd " + n.maxEnd + " instead of " + maxEnd);
+		check(n.left == null || n.left.compareTo(n.start, n.fnum) < 0, at + " has a larger left child");
+		check(n.right == null || n.right.compareTo(n.start, n.fnum) > 0, at + " has a smaller right child");
+		return 1 + checkNode(n.left, tree) + checkNode(n.right, tree);
+	}
+
+	private static int maxHeight(int nodes){
+		// the AVL bound, 1.44 log2(n + 2)
+		return (int) (1.4405 * Math.log(nodes + 2) / Math.log(2));
+	}
+
+	/**
+	 * Method to check that the rnum index finds every row it was given
+	 * across its resizes, and nothing else.
+	 */
+	public void checkRowIndex(){
+		ReservationSnapshot.RowIndex index = new ReservationSnapshot.RowIndex();
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		int row = 0;
+		while (expected.size() < 50000){
+			// out of order and spread out, as appended rnums after a reload can be
+			int rnum = this._random.nextInt(1 << 24) - (1 << 20);
+			if (!expected.containsKey(rnum)){
+				expected.put(rnum, row);
+				index.put(rnum, row++);
+			}
+		}
+		check(index.size == expected.size(), "index holds " + index.size + " rnums instead of " + expected.size());
+		check(index.keys.length >= 2 * index.size, "index of " + index.size + " rnums has only " + index.keys.length + " slots");
+		for (Map.Entry<Integer, Integer> e : expected.entrySet()){
+			int got = index.get(e.getKey());
+			if (got != e.getValue()){
+				check(false, "rnum " + e.getKey() + " is row " + got + " instead of " + e.getValue());
+			}
+		}
+		int missing = 0;
+		for (int i = 0; i < 10000; ++i){
+			int rnum = this._random.nextInt();
+			if (!expected.containsKey(rnum) && index.get(rnum) != -1){
+				++missing;
+			}
+		}
+		check(missing == 0, missing + " rnums never put were found");
+		// putting a known rnum again moves it without growing the index
+		int rnum = expected.keySet().iterator().next();
+		index.put(rnum, 123456);
+		check(index.get(rnum) == 123456 && index.size == expected.size(), "putting rnum " + rnum + " again");
+	}
+
+	/**
+	 * Method to check the seat bitmaps at the word boundaries: seats past
+	 * the last one stay taken, claimAny hands out seats lowest first and
+	 * finds released ones, and a flight without seats has none free.
+	 */
+	public void checkSeats(){
+		int[] counts = {0, 1, 63, 64, 65, 127, 128, 200};
+		for (int count : counts){
+			String of = count + " seats";
+			SeatMap.Seats seats = new SeatMap.Seats(count);
+			check(seats.free() == count, of + ": " + seats.free() + " free when new");
+			for (int seat = 1; seat <= count; ++seat){
+				int got = seats.claimAny();
+				if (got != seat){
+					check(false, of + ": claimAny gave seat " + got + " instead of " + seat);
+					break;
+				}
+			}
+			check(seats.claimAny() == -1, of + ": claimAny found a seat when all were taken");
+			check(seats.free() == 0, of + ": " + seats.free() + " free when all were taken");
+			if (count == 0){
+				continue;
+			}
+			check(!seats.claim(count), of + ": claimed the last seat twice");
+
+			// releasing behind the search start must still be found
+			seats.release(1);
+			check(seats.free() == 1, of + ": " + seats.free() + " free after a release");
+			check(seats.claimAny() == 1, of + ": claimAny missed released seat 1");
+			seats.release(count);
+			check(seats.claimAny() == count, of + ": claimAny missed released seat " + count);
+			if (count > 2){
+				int middle = count / 2 + 1;
+				seats.release(middle);
+				seats.release(2);
+				check(seats.claimAny() == 2 && seats.claimAny() == middle, of + ": claimAny did not take seats 2 and " + middle + " lowest first");
+				check(seats.claimAny() == -1, of + ": claimAny found a seat after the released ones were taken again");
+			}
+			seats.release(count);
+			check(seats.claim(count) && !seats.claim(count), of + ": claim of released seat " + count);
+		}
+	}
+
+	/**
+	 * The main execution method
+	 *
+	 * @param args [seed]
+	 */
+	public static void main(String[] args){
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+		StructureCheck checker = new StructureCheck(seed);
+		checker.checkIntervalTree();
+		checker.checkRowIndex();
+		checker.checkSeats();
+		System.out.println(checker._checks + " checks, " + checker._failures + " failed (seed " + seed + ")");
+		System.exit(checker._failures == 0 ? 0 : 1);
+	}
+}
@@ -0,0 +1,259 @@
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class cancels reservations and promotes waitlisted ones.  When a
+ * reserved seat is cancelled the oldest waitlisted reservations of the
+ * flight (lowest rnum first) take the free seats, in the same transaction
+ * so a new booking cannot jump the queue.  Promotion is one set based
+ * statement per flight, and the sweep over all flights is one statement
+ * per batch of flights, so a burst of cancellations does not turn into a
+ * round trip per waitlisted passenger.
+ *
+ * Locks are taken in the order bookings take them, Flight row before the
+ * waitlisted Reservation rows, and the sweep locks its flights in fnum
+ * order like BulkBooking, so promotions cannot deadlock with bookings or
+ * with each other.  A reservation another promotion got to first is
+ * skipped; the next sweep picks up any seat left over that way.
+ *
+ */
+public class Waitlist{
+	//flights per statement of the sweep
+	public static final int DEFAULT_BATCH_SIZE = Integer.getInteger("dbproject.waitlist.batchSize", 500);
+
+	/*
+	 * Cancels a reservation that is not cancelled yet and gives its seat
+	 * back if it had one.  The FOR UPDATE re-reads the row if a concurrent
+	 * promotion changed it, so the status returned is the one cancelled.
+	 */
+	static final String SQL_CANCEL =
+		"WITH old AS (" +
+		"SELECT rnum, fid, status FROM Reservation WHERE rnum = ? AND status <> 'C' FOR UPDATE), " +
+		"cancelled AS (" +
+		"UPDATE Reservation r SET status = 'C' FROM old WHERE r.rnum = old.rnum RETURNING r.cid, old.fid, old.status), " +
+		"freed AS (" +
+		"UPDATE Flight f SET num_sold = f.num_sold - 1 FROM cancelled c WHERE f.fnum = c.fid AND c.status = 'R' AND f.num_sold > 0 RETURNING f.fnum) " +
+		"SELECT cid, fid, status FROM cancelled";
+	/*
+	 * Locks the flight, reserves the oldest waitlisted reservations that fit
+	 * in its free seats and raises num_sold by as many.  A flight without a
+	 * plane has no free seats.
+	 */
+	static final String SQL_PROMOTE_FLIGHT =
+		"WITH capacity AS (" +
+		"SELECT SUM(pl.seats) AS seats FROM FlightInfo fi JOIN Plane pl ON pl.id = fi.plane_id WHERE fi.flight_id = ?), " +
+		"flight AS (" +
+		"SELECT f.fnum, COALESCE(c.seats, 0) - f.num_sold AS free FROM Flight f, capacity c WHERE f.fnum = ? FOR UPDATE OF f), " +
+		"promoted AS (" +
+		"UPDATE Reservation r SET status = 'R' WHERE r.status = 'W' AND r.rnum IN (" +
+		"SELECT w.rnum FROM Reservation w WHERE w.fid = ? AND w.status = 'W' ORDER BY w.rnum " +
+		"LIMIT COALESCE((SELECT GREATEST(free, 0) FROM flight), 0)) RETURNING r.rnum, r.cid), " +
+		"sold AS (" +
+		"UPDATE Flight f SET num_sold = f.num_sold + (SELECT COUNT(*) FROM promoted) " +
+		"WHERE f.fnum = ? AND EXISTS (SELECT 1 FROM promoted) RETURNING f.fnum) " +
+		"SELECT rnum, cid FROM promoted ORDER BY rnum";
+	/*
+	 * The same for the next batch of flights with waitlisted reservations:
+	 * ranks the waitlist of each flight by rnum and reserves the ranks that
+	 * fit.  Returns every flight of the batch with the number promoted, so
+	 * the caller knows where the next batch starts.
+	 */
+	static final String SQL_PROMOTE_BATCH =
+		"WITH waiting AS (" +
+		"SELECT DISTINCT fid FROM Reservation WHERE status = 'W' AND fid > ? ORDER BY fid LIMIT ?), " +
+		"capacity AS (" +
+		"SELECT fi.flight_id AS fid, SUM(pl.seats) AS seats FROM FlightInfo fi JOIN Plane pl ON pl.id = fi.plane_id " +
+		"WHERE fi.flight_id IN (SELECT fid FROM waiting) GROUP BY fi.flight_id), " +
+		"flights AS (" +
+		"SELECT f.fnum, c.seats - f.num_sold AS free FROM Flight f JOIN capacity c ON c.fid = f.fnum ORDER BY f.fnum FOR UPDATE OF f), " +
+		"ranked AS (" +
+		"SELECT w.rnum, w.fid, row_number() OVER (PARTITION BY w.fid ORDER BY w.rnum) AS pos FROM Reservation w " +
+		"WHERE w.status = 'W' AND w.fid IN (SELECT fnum FROM flights WHERE free > 0)), " +
+		"promoted AS (" +
+		"UPDATE Reservation r SET status = 'R' FROM ranked k JOIN flights fl ON fl.fnum = k.fid " +
+		"WHERE r.rnum = k.rnum AND k.pos <= fl.free AND r.status = 'W' RETURNING r.fid), " +
+		"sold AS (" +
+		"UPDATE Flight f SET num_sold = f.num_sold + n.cnt " +
+		"FROM (SELECT fid, COUNT(*) AS cnt FROM promoted GROUP BY fid) n WHERE f.fnum = n.fid RETURNING f.fnum) " +
+		"SELECT w.fid, COUNT(p.fid) FROM waiting w LEFT JOIN promoted p ON p.fid = w.fid GROUP BY w.fid ORDER BY w.fid";
+
+	/**
+	 * Outcome of a cancellation: the reservation as it was, and the
+	 * waitlisted reservations that took its seat.
+	 */
+	public static class Cancellation{
+		public final Booking cancelled;
+		public final List<Booking> promoted;
+
+		Cancellation(Booking cancelled, List<Booking> promoted){
+			this.cancelled = cancelled;
+			this.promoted = promoted;
+		}
+
+		@Override
+		public String toString(){
+			StringBuilder sb = new StringBuilder("Cancelled ").append(this.cancelled);
+			for (Booking b : this.promoted){
+				sb.append("\nPromoted ").append(b);
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Totals of one sweep.
+	 */
+	public static class Sweep{
+		public long flights = 0;
+		public long promoted = 0;
+		public long batches = 0;
+		public long millis = 0;
+
+		@Override
+		public String toString(){
+			return String.format("%d reservations promoted on %d waitlisted flights in %d batches, %d ms",
+				this.promoted, this.flights, this.batches, this.millis);
+		}
+	}
+
+	private final DBproject _esql;
+
+	public Waitlist(DBproject esql){
+		this._esql = esql;
+	}
+
+	/**
+	 * Method to cancel a reservation.  If it held a seat, the seat goes to
+	 * the oldest waitlisted reservations of the flight in the same
+	 * transaction.
+	 *
+	 * @param rnum the Reservation.rnum
+	 * @return the cancelled reservation with its status before the cancellation, and the promoted ones
+	 * @throws java.sql.SQLException when the update fails
+	 * @throws IllegalArgumentException when there is no such reservation or it is already cancelled
+	 */
+	public Cancellation cancel(int rnum) throws SQLException {
+		Connection conn = this._esql.pinConnection();
+		long started = this._esql.getMetrics().beginOperation();
+		long rows = -1;
+		try{
+			conn.setAutoCommit(false);
+			try{
+				Booking cancelled = this._esql.queryForObject(SQL_CANCEL,
+					rs -> new Booking(rnum, rs.getInt(1), rs.getInt(2), rs.getString(3).charAt(0)), rnum);
+				if (cancelled == null){
+					throw new IllegalArgumentException("reservation " + rnum + " does not exist or is already cancelled");
+				}
+				int seat = SeatMap.ENABLED && cancelled.isReserved() ? this._esql.getSeatMap().free(rnum) : 0;
+				List<Booking> promoted = cancelled.isReserved() ? promoteFlight(cancelled.getFlightNum()) : Collections.<Booking>emptyList();
+				conn.commit();
+				if (cancelled.isReserved()){
+					this._esql.getSeatCache().invalidate(cancelled.getFlightNum());
+				}
+				if (SeatMap.ENABLED){
+					// promoted reservations get their seats when the map reloads
+					if (promoted.isEmpty()){
+						this._esql.getSeatMap().released(cancelled.getFlightNum(), seat);
+					}else{
+						this._esql.getSeatMap().invalidate(cancelled.getFlightNum());
+					}
+				}
+				ReservationSnapshot snapshot = this._esql.getReservationSnapshot();
+				snapshot.update(rnum, cancelled.getCustomerId(), cancelled.getFlightNum(), 'C');
+				for (Booking b : promoted){
+					snapshot.update(b.getRnum(), b.getCustomerId(), b.getFlightNum(), 'R');
+				}
+				rows = 1 + promoted.size();
+				return new Cancellation(cancelled, promoted);
+			}catch (SQLException | RuntimeException e){
+				conn.rollback();
+				throw e;
+			}finally{
+				conn.setAutoCommit(true);
+			}
+		}finally{
+			this._esql.unpinConnection();
+			this._esql.getMetrics().endOperation("cancel", started, rows);
+		}
+	}
+
+	/**
+	 * Method to give the free seats of a flight to its oldest waitlisted
+	 * reservations.
+	 *
+	 * @param flightNum the Flight.fnum
+	 * @return the promoted reservations, oldest first
+	 * @throws java.sql.SQLException when the update fails
+	 */
+	public List<Booking> promote(int flightNum) throws SQLException {
+		long started = this._esql.getMetrics().beginOperation();
+		long rows = -1;
+		try{
+			List<Booking> promoted = promoteFlight(flightNum);
+			if (!promoted.isEmpty()){
+				this._esql.getSeatCache().invalidate(flightNum);
+				this._esql.getSeatMap().invalidate(flightNum);
+			}
+			for (Booking b : promoted){
+				this._esql.getReservationSnapshot().update(b.getRnum(), b.getCustomerId(), flightNum, 'R');
+			}
+			rows = promoted.size();
+			return promoted;
+		}finally{
+			this._esql.getMetrics().endOperation("promote", started, rows);
+		}
+	}
+
+	private List<Booking> promoteFlight(int flightNum) throws SQLException {
+		return this._esql.queryForList(SQL_PROMOTE_FLIGHT, rs -> new Booking(rs.getInt(1), rs.getInt(2), flightNum, 'R'),
+			flightNum, flightNum, flightNum, flightNum);
+	}
+
+	/**
+	 * Method to promote waitlisted reservations on every flight with free
+	 * seats, batchSize flights per statement and transaction, e.g. as a
+	 * periodic job after a burst of cancellations.
+	 *
+	 * @param batchSize flights per statement
+	 * @return the totals of the sweep
+	 * @throws java.sql.SQLException when an update fails; the batches before it stay committed
+	 */
+	public Sweep promoteAll(int batchSize) throws SQLException {
+		if (batchSize < 1){
+			throw new IllegalArgumentException("batch size must be at least 1");
+		}
+		long started = this._esql.getMetrics().beginOperation();
+		long begin = System.currentTimeMillis();
+		Sweep sweep = new Sweep();
+		long rows = -1;
+		try{
+			int after = Integer.MIN_VALUE;
+			while (true){
+				List<int[]> flights = this._esql.queryForList(SQL_PROMOTE_BATCH, rs -> new int[]{rs.getInt(1), rs.getInt(2)}, after, batchSize);
+				for (int[] flight : flights){
+					if (flight[1] > 0){
+						this._esql.getSeatCache().invalidate(flight[0]);
+						sweep.promoted += flight[1];
+					}
+					after = flight[0];
+				}
+				sweep.flights += flights.size();
+				++sweep.batches;
+				if (flights.size() < batchSize){
+					break;
+				}
+			}
+			if (sweep.promoted > 0){
+				this._esql.getReservationSnapshot().invalidate();
+				this._esql.getSeatMap().invalidateAll();
+			}
+			rows = sweep.promoted;
+			return sweep;
+		}finally{
+			sweep.millis = System.currentTimeMillis() - begin;
+			this._esql.getMetrics().endOperation("promote-all", started, rows);
+		}
+	}
+}
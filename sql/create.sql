@@ -8,6 +8,23 @@ DROP TABLE IF EXISTS Reservation CASCADE;--OK
 DROP TABLE IF EXISTS FlightInfo CASCADE;--OK
 DROP TABLE IF EXISTS Repairs CASCADE;--OK
 DROP TABLE IF EXISTS Schedule CASCADE;--OK
+DROP TABLE IF EXISTS Seat CASCADE;
+
+DROP TABLE IF EXISTS RepairsPerPlane CASCADE;
+DROP TABLE IF EXISTS RepairsPerYear CASCADE;
+DROP TABLE IF EXISTS RepairStatsVersion CASCADE;
+DROP FUNCTION IF EXISTS repair_stats_apply() CASCADE;
+DROP FUNCTION IF EXISTS repair_stats_truncate() CASCADE;
+
+DROP SEQUENCE IF EXISTS plane_id_seq;
+DROP SEQUENCE IF EXISTS pilot_id_seq;
+DROP SEQUENCE IF EXISTS flight_fnum_seq;
+DROP SEQUENCE IF EXISTS technician_id_seq;
+DROP SEQUENCE IF EXISTS reservation_rnum_seq;
+DROP SEQUENCE IF EXISTS flightinfo_fiid_seq;
+
+-- applied migrations describe the objects dropped above
+DROP TABLE IF EXISTS schema_version;
 
 -------------
 ---DOMAINS---
@@ -217,4 +234,104 @@ COPY Schedule (
 	arrival_time
 )
 FROM 'schedule.csv'
-WITH DELIMITER ',';
\ No newline at end of file
+WITH DELIMITER ',';
+
+---------------
+---SEQUENCES---
+---------------
+-- Ids are handed out in blocks: each nextval() reserves INCREMENT BY ids
+-- for one client (see IdAllocator.java), seeded past the loaded rows.
+CREATE SEQUENCE plane_id_seq INCREMENT BY 50 MINVALUE 0 START WITH 0;
+CREATE SEQUENCE pilot_id_seq INCREMENT BY 50 MINVALUE 0 START WITH 0;
+CREATE SEQUENCE flight_fnum_seq INCREMENT BY 50 MINVALUE 0 START WITH 0;
+CREATE SEQUENCE technician_id_seq INCREMENT BY 50 MINVALUE 0 START WITH 0;
+CREATE SEQUENCE reservation_rnum_seq INCREMENT BY 50 MINVALUE 0 START WITH 0;
+CREATE SEQUENCE flightinfo_fiid_seq INCREMENT BY 50 MINVALUE 0 START WITH 0;
+
+SELECT setval('plane_id_seq', (SELECT COALESCE(MAX(id), -1) + 1 FROM Plane), false);
+SELECT setval('pilot_id_seq', (SELECT COALESCE(MAX(id), -1) + 1 FROM Pilot), false);
+SELECT setval('flight_fnum_seq', (SELECT COALESCE(MAX(fnum), -1) + 1 FROM Flight), false);
+SELECT setval('technician_id_seq', (SELECT COALESCE(MAX(id), -1) + 1 FROM Technician), false);
+SELECT setval('reservation_rnum_seq', (SELECT COALESCE(MAX(rnum), -1) + 1 FROM Reservation), false);
+SELECT setval('flightinfo_fiid_seq', (SELECT COALESCE(MAX(fiid), -1) + 1 FROM FlightInfo), false);
+
+--------------------
+---REPAIR SUMMARY---
+--------------------
+-- Repair counts per plane and per year, kept current by statement level
+-- triggers on Repairs so the repair reports (menu options 7 and 8) never
+-- scan Repairs.  RepairStatsVersion is bumped on every change so clients
+-- can tell cheaply whether their cached copy is stale (see RepairStats.java).
+CREATE TABLE RepairsPerPlane
+(
+	plane_id INTEGER NOT NULL,
+	repair_count _PZEROINTEGER NOT NULL,
+	PRIMARY KEY (plane_id)
+);
+
+CREATE TABLE RepairsPerYear
+(
+	repair_year INTEGER NOT NULL,
+	repair_count _PZEROINTEGER NOT NULL,
+	PRIMARY KEY (repair_year)
+);
+
+CREATE TABLE RepairStatsVersion
+(
+	id INTEGER NOT NULL CHECK (id = 1),
+	version BIGINT NOT NULL,
+	PRIMARY KEY (id)
+);
+
+INSERT INTO RepairsPerPlane (plane_id, repair_count)
+SELECT plane_id, COUNT(*) FROM Repairs GROUP BY plane_id;
+
+INSERT INTO RepairsPerYear (repair_year, repair_count)
+SELECT EXTRACT(YEAR FROM repair_date), COUNT(*) FROM Repairs GROUP BY EXTRACT(YEAR FROM repair_date);
+
+INSERT INTO RepairStatsVersion (id, version) VALUES (1, 1);
+
+CREATE FUNCTION repair_stats_apply() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		INSERT INTO RepairsPerPlane (plane_id, repair_count)
+		SELECT plane_id, COUNT(*) FROM new_rows GROUP BY plane_id
+		ON CONFLICT (plane_id) DO UPDATE SET repair_count = RepairsPerPlane.repair_count + EXCLUDED.repair_count;
+
+		INSERT INTO RepairsPerYear (repair_year, repair_count)
+		SELECT EXTRACT(YEAR FROM repair_date), COUNT(*) FROM new_rows GROUP BY EXTRACT(YEAR FROM repair_date)
+		ON CONFLICT (repair_year) DO UPDATE SET repair_count = RepairsPerYear.repair_count + EXCLUDED.repair_count;
+	END IF;
+	IF TG_OP IN ('DELETE', 'UPDATE') THEN
+		UPDATE RepairsPerPlane p SET repair_count = p.repair_count - d.cnt
+		FROM (SELECT plane_id, COUNT(*) AS cnt FROM old_rows GROUP BY plane_id) d
+		WHERE p.plane_id = d.plane_id;
+		DELETE FROM RepairsPerPlane WHERE repair_count = 0;
+
+		UPDATE RepairsPerYear y SET repair_count = y.repair_count - d.cnt
+		FROM (SELECT EXTRACT(YEAR FROM repair_date) AS repair_year, COUNT(*) AS cnt FROM old_rows GROUP BY EXTRACT(YEAR FROM repair_date)) d
+		WHERE y.repair_year = d.repair_year;
+		DELETE FROM RepairsPerYear WHERE repair_count = 0;
+	END IF;
+	UPDATE RepairStatsVersion SET version = version + 1 WHERE id = 1;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE FUNCTION repair_stats_truncate() RETURNS trigger AS $$
+BEGIN
+	DELETE FROM RepairsPerPlane;
+	DELETE FROM RepairsPerYear;
+	UPDATE RepairStatsVersion SET version = version + 1 WHERE id = 1;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE TRIGGER repairs_stats_insert AFTER INSERT ON Repairs
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE repair_stats_apply();
+CREATE TRIGGER repairs_stats_update AFTER UPDATE ON Repairs
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE repair_stats_apply();
+CREATE TRIGGER repairs_stats_delete AFTER DELETE ON Repairs
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE repair_stats_apply();
+CREATE TRIGGER repairs_stats_truncate AFTER TRUNCATE ON Repairs
+	FOR EACH STATEMENT EXECUTE PROCEDURE repair_stats_truncate();
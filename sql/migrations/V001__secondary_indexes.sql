@@ -0,0 +1,20 @@
+-- Indexes for the access paths of the menu operations; create.sql only
+-- defines primary keys.
+
+-- passenger counts by flight and status (option 9), waitlist scans per flight
+CREATE INDEX IF NOT EXISTS reservation_fid_status_idx ON Reservation (fid, status);
+
+-- seat availability and booking join FlightInfo on the flight, then Plane
+CREATE INDEX IF NOT EXISTS flightinfo_flight_id_idx ON FlightInfo (flight_id);
+CREATE INDEX IF NOT EXISTS flightinfo_plane_id_idx ON FlightInfo (plane_id);
+
+-- repairs per plane (option 7 on databases without the repair summary)
+CREATE INDEX IF NOT EXISTS repairs_plane_id_idx ON Repairs (plane_id);
+
+-- schedule lookups by flight
+CREATE INDEX IF NOT EXISTS schedule_flightnum_idx ON Schedule (flightNum);
+
+ANALYZE Reservation;
+ANALYZE FlightInfo;
+ANALYZE Repairs;
+ANALYZE Schedule;
@@ -0,0 +1,83 @@
+-- Repair summary tables and triggers (see the REPAIR SUMMARY section of
+-- create.sql) for databases created before they existed.  Safe to run on a
+-- database that already has them.
+
+CREATE TABLE IF NOT EXISTS RepairsPerPlane
+(
+	plane_id INTEGER NOT NULL,
+	repair_count _PZEROINTEGER NOT NULL,
+	PRIMARY KEY (plane_id)
+);
+
+CREATE TABLE IF NOT EXISTS RepairsPerYear
+(
+	repair_year INTEGER NOT NULL,
+	repair_count _PZEROINTEGER NOT NULL,
+	PRIMARY KEY (repair_year)
+);
+
+CREATE TABLE IF NOT EXISTS RepairStatsVersion
+(
+	id INTEGER NOT NULL CHECK (id = 1),
+	version BIGINT NOT NULL,
+	PRIMARY KEY (id)
+);
+
+INSERT INTO RepairsPerPlane (plane_id, repair_count)
+SELECT plane_id, COUNT(*) FROM Repairs GROUP BY plane_id
+ON CONFLICT (plane_id) DO NOTHING;
+
+INSERT INTO RepairsPerYear (repair_year, repair_count)
+SELECT EXTRACT(YEAR FROM repair_date), COUNT(*) FROM Repairs GROUP BY EXTRACT(YEAR FROM repair_date)
+ON CONFLICT (repair_year) DO NOTHING;
+
+INSERT INTO RepairStatsVersion (id, version) VALUES (1, 1) ON CONFLICT (id) DO NOTHING;
+
+CREATE OR REPLACE FUNCTION repair_stats_apply() RETURNS trigger AS $$
+BEGIN
+	IF TG_OP IN ('INSERT', 'UPDATE') THEN
+		INSERT INTO RepairsPerPlane (plane_id, repair_count)
+		SELECT plane_id, COUNT(*) FROM new_rows GROUP BY plane_id
+		ON CONFLICT (plane_id) DO UPDATE SET repair_count = RepairsPerPlane.repair_count + EXCLUDED.repair_count;
+
+		INSERT INTO RepairsPerYear (repair_year, repair_count)
+		SELECT EXTRACT(YEAR FROM repair_date), COUNT(*) FROM new_rows GROUP BY EXTRACT(YEAR FROM repair_date)
+		ON CONFLICT (repair_year) DO UPDATE SET repair_count = RepairsPerYear.repair_count + EXCLUDED.repair_count;
+	END IF;
+	IF TG_OP IN ('DELETE', 'UPDATE') THEN
+		UPDATE RepairsPerPlane p SET repair_count = p.repair_count - d.cnt
+		FROM (SELECT plane_id, COUNT(*) AS cnt FROM old_rows GROUP BY plane_id) d
+		WHERE p.plane_id = d.plane_id;
+		DELETE FROM RepairsPerPlane WHERE repair_count = 0;
+
+		UPDATE RepairsPerYear y SET repair_count = y.repair_count - d.cnt
+		FROM (SELECT EXTRACT(YEAR FROM repair_date) AS repair_year, COUNT(*) AS cnt FROM old_rows GROUP BY EXTRACT(YEAR FROM repair_date)) d
+		WHERE y.repair_year = d.repair_year;
+		DELETE FROM RepairsPerYear WHERE repair_count = 0;
+	END IF;
+	UPDATE RepairStatsVersion SET version = version + 1 WHERE id = 1;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION repair_stats_truncate() RETURNS trigger AS $$
+BEGIN
+	DELETE FROM RepairsPerPlane;
+	DELETE FROM RepairsPerYear;
+	UPDATE RepairStatsVersion SET version = version + 1 WHERE id = 1;
+	RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS repairs_stats_insert ON Repairs;
+CREATE TRIGGER repairs_stats_insert AFTER INSERT ON Repairs
+	REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE repair_stats_apply();
+DROP TRIGGER IF EXISTS repairs_stats_update ON Repairs;
+CREATE TRIGGER repairs_stats_update AFTER UPDATE ON Repairs
+	REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE repair_stats_apply();
+DROP TRIGGER IF EXISTS repairs_stats_delete ON Repairs;
+CREATE TRIGGER repairs_stats_delete AFTER DELETE ON Repairs
+	REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE repair_stats_apply();
+DROP TRIGGER IF EXISTS repairs_stats_truncate ON Repairs;
+CREATE TRIGGER repairs_stats_truncate AFTER TRUNCATE ON Repairs
+	FOR EACH STATEMENT EXECUTE PROCEDURE repair_stats_truncate();
@@ -0,0 +1,6 @@
+-- Waitlist promotion takes the oldest waitlisted reservations of a flight
+-- and the sweep looks for flights with any; a partial index keeps both to
+-- the few 'W' rows, already in rnum order.
+CREATE INDEX IF NOT EXISTS reservation_waitlist_idx ON Reservation (fid, rnum) WHERE status = 'W';
+
+ANALYZE Reservation;
@@ -0,0 +1,51 @@
+-- Reservation becomes range partitioned on rnum, one partition per million
+-- reservation numbers.  New bookings always land in the newest partition,
+-- so the rows and indexes being worked on stay small enough to stay in
+-- shared buffers, and a partition emptied by the archival job
+-- (ReservationArchive) is dropped as a whole instead of being vacuumed
+-- row by row.  rnum stays the primary key since it is the partition key.
+-- Rows outside every range go to the default partition; the archival job
+-- creates the next range ahead of reservation_rnum_seq so it stays empty.
+ALTER TABLE Reservation RENAME TO reservation_unpartitioned;
+ALTER TABLE reservation_unpartitioned RENAME CONSTRAINT reservation_pkey TO reservation_unpartitioned_pkey;
+
+CREATE TABLE Reservation
+(
+	rnum INTEGER NOT NULL,
+	cid INTEGER NOT NULL,
+	fid INTEGER NOT NULL,
+	status _STATUS,
+	PRIMARY KEY (rnum),
+	FOREIGN KEY (cid) REFERENCES Customer(id),
+	FOREIGN KEY (fid) REFERENCES Flight(fnum)
+) PARTITION BY RANGE (rnum);
+
+DO $$
+DECLARE
+	top INTEGER;
+BEGIN
+	SELECT GREATEST(COALESCE(MAX(rnum), 0),
+		COALESCE((SELECT last_value FROM pg_sequences WHERE schemaname = current_schema() AND sequencename = 'reservation_rnum_seq'), 0))
+	INTO top FROM reservation_unpartitioned;
+	FOR p IN 0 .. top / 1000000 + 1 LOOP
+		EXECUTE format('CREATE TABLE reservation_p%s PARTITION OF Reservation FOR VALUES FROM (%s) TO (%s)',
+			p, p * 1000000, (p + 1) * 1000000);
+	END LOOP;
+END $$;
+
+CREATE TABLE reservation_default PARTITION OF Reservation DEFAULT;
+
+INSERT INTO Reservation (rnum, cid, fid, status)
+SELECT rnum, cid, fid, status FROM reservation_unpartitioned;
+
+DROP TABLE reservation_unpartitioned;
+
+-- the indexes of V001 and V003, now per partition
+CREATE INDEX IF NOT EXISTS reservation_fid_status_idx ON Reservation (fid, status);
+CREATE INDEX IF NOT EXISTS reservation_waitlist_idx ON Reservation (fid, rnum) WHERE status = 'W';
+
+-- the archival job looks for flights that departed before a cutoff
+CREATE INDEX IF NOT EXISTS flight_departure_idx ON Flight (actual_departure_date, fnum);
+
+ANALYZE Reservation;
+ANALYZE Flight;
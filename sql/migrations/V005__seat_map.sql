@@ -0,0 +1,16 @@
+-- Seat assignments for the seat map (SeatMap, -Ddbproject.seatmap=true).
+-- A flight's rows, one per seat of its planes, are created the first time
+-- its map is loaded; rnum is the reservation holding the seat, NULL while
+-- the seat is free.  num_sold stays the count of reserved seats, so the
+-- other booking paths and the availability report keep working.
+CREATE TABLE IF NOT EXISTS Seat
+(
+	flight_id INTEGER NOT NULL,
+	seat_no INTEGER NOT NULL,
+	rnum INTEGER,
+	PRIMARY KEY (flight_id, seat_no),
+	FOREIGN KEY (flight_id) REFERENCES Flight(fnum)
+);
+
+-- a reservation holds at most one seat, and a cancellation finds it by rnum
+CREATE UNIQUE INDEX IF NOT EXISTS seat_rnum_idx ON Seat (rnum) WHERE rnum IS NOT NULL;